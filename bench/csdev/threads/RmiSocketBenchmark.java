@@ -0,0 +1,92 @@
+package csdev.threads;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * <p>Compares RMI socket factories on loopback
+ * <p>Measures the latency of small calls (the size of a typical command) and the
+ * throughput of large calls with compressible (text) and incompressible data.
+ * <br>Use arguments: [calls] [large call size in KB]
+ * @author cin-tie
+ * @version 1.0
+ */
+public class RmiSocketBenchmark {
+
+    public interface Echo extends Remote {
+        byte[] echo(byte[] data) throws RemoteException;
+    }
+
+    private static class EchoImpl implements Echo {
+        @Override
+        public byte[] echo(byte[] data) {
+            return data;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int largeSize = (args.length > 1 ? Integer.parseInt(args[1]) : 256) * 1024;
+
+        byte[] small = new byte[128];
+        byte[] text = new byte[largeSize];
+        byte[] line = "drwxr-xr-x  2 user group  4096 Jan  1 12:00 directory-name\n".getBytes();
+        for (int i = 0; i < text.length; i++) {
+            text[i] = line[i % line.length];
+        }
+        byte[] random = new byte[largeSize];
+        new java.util.Random(1).nextBytes(random);
+
+        System.out.println(String.format("%-36s %14s %16s %16s", "FACTORY", "SMALL CALL(us)", "TEXT(MB/s)", "RANDOM(MB/s)"));
+        run("default", null, calls, small, text, random);
+        run("tuned", new RmiSocketFactory(64 * 1024, 0), calls, small, text, random);
+        run("compressed level 1", new RmiSocketFactory(64 * 1024, 1), calls, small, text, random);
+        run("compressed level 6", new RmiSocketFactory(64 * 1024, 6), calls, small, text, random);
+    }
+
+    private static void run(String name, RmiSocketFactory factory, int calls, byte[] small, byte[] text, byte[] random) throws Exception {
+        EchoImpl impl = new EchoImpl();
+        Echo echo = (Echo) (factory == null
+                ? UnicastRemoteObject.exportObject(impl, 0)
+                : UnicastRemoteObject.exportObject(impl, 0, (RMIClientSocketFactory) factory, (RMIServerSocketFactory) factory));
+        try {
+            // Warm up connections and JIT
+            for (int i = 0; i < Math.min(calls, 1000); i++) {
+                echo.echo(small);
+            }
+            echo.echo(text);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                echo.echo(small);
+            }
+            double smallMicros = (System.nanoTime() - start) / 1000.0 / calls;
+
+            double textRate = throughput(echo, text);
+            double randomRate = throughput(echo, random);
+            System.out.println(String.format("%-36s %14.1f %16.1f %16.1f",
+                    name + (factory != null ? "" : " (JDK sockets)"), smallMicros, textRate, randomRate));
+        } finally {
+            UnicastRemoteObject.unexportObject(impl, true);
+        }
+    }
+
+    /**
+     * MB/s of payload moved in both directions
+     */
+    private static double throughput(Echo echo, byte[] data) throws RemoteException {
+        int rounds = Math.max(4, (64 * 1024 * 1024) / data.length);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            byte[] back = echo.echo(data);
+            if (back.length != data.length) {
+                throw new IllegalStateException("Echo returned " + back.length + " bytes, expected " + data.length);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return 2.0 * rounds * data.length / (1024 * 1024) / seconds;
+    }
+}
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+echo "=== Running RMI Socket Factory Benchmark ==="
+
+if [ ! -d "build" ]; then
+    echo "Build directory not found. Please run compile.sh first."
+    exit 1
+fi
+
+# Benchmarks are kept out of the application sources and compiled against build/
+mkdir -p build-bench
+javac -d build-bench -cp build $(find bench -name "*.java")
+
+if [ $? -ne 0 ]; then
+    echo "Benchmark compilation failed!"
+    exit 1
+fi
+
+# Arguments: [calls] [large call size in KB]
+java -cp build:build-bench csdev.threads.RmiSocketBenchmark "$@"
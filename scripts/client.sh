@@ -32,6 +32,11 @@ while [[ $# -gt 0 ]]; do
             PROTOCOL="$2"
             shift 2
             ;;
+        -s|--socket)
+            HOST="unix:$2"
+            PROTOCOL="tcp"
+            shift 2
+            ;;
         *)
             echo "Unknown option: $1"
             echo "Usage: $0 [-u <nick> \"<full name>\"] [-h host] [-p password]"
@@ -40,6 +45,7 @@ while [[ $# -gt 0 ]]; do
             echo "    -h hostname"
             echo "    -p password"
             echo "    -pr tcp|udp|rmi (default: tcp)"
+            echo "    -s socket_path (Unix domain socket of a local server)"
             exit 1
             ;;
     esac
@@ -13,6 +13,9 @@ interface CMD{
     byte CMD_DOWNLOAD    = 5;  // Download file from server
     byte CMD_CHDIR       = 6;  // Change directory
     byte CMD_GETDIR      = 7;  // Get current directory
+    byte CMD_OUTPUT      = 8;  // Read captured command output
+    byte CMD_LIST        = 9;  // List directory
+    byte CMD_ARCHIVE     = 10; // Transfer directory tree as a stream
 }
 
 /**
@@ -49,7 +52,7 @@ interface PROTOCOL{
  */
 public class Protocol implements CMD, RESULT, PORT,  PROTOCOL{
     private static final byte CMD_MIN = CMD_CONNECT;
-    private static final byte CMD_MAX = CMD_GETDIR;
+    private static final byte CMD_MAX = CMD_ARCHIVE;
 
     public static boolean validID(byte id){
         return id >= CMD_MIN && id <= CMD_MAX;
@@ -3,14 +3,28 @@ package csdev.client;
 import csdev.Protocol;
 import csdev.messages.*;
 import csdev.threads.RemoteShellService;
+import csdev.utils.Checksums;
 import csdev.utils.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>Main class of client application using RMI protocol
@@ -61,13 +75,20 @@ public class RmiClientMain {
     }
 
     static class RmiSession{
-        boolean connected = false;
+        volatile boolean connected = false;
         String username = null;
         String usernameFull = null;
         String password = "";
+        String token = null;        // Session token from the server, used instead of the password
         String sessionId = null;
         String currentDirectory = "";
         String serverOS = "";
+        String outputId = null;     // Last spilled stdout
+        long outputOffset = 0;
+        String errorId = null;      // Last spilled stderr
+        long errorOffset = 0;
+        File uploadFile = null;     // Local file of the pending upload
+        MessageTransferHandle[] transfers;  // Transfers left open by the last resumption
         String serverAddress = null;
         RemoteShellService remoteService;
 
@@ -109,15 +130,18 @@ public class RmiClientMain {
         Logger.logDebug("Sending RMI connection request...");
         try {
             MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
+            messageConnect.token = s.token;
             MessageConnectResult msg = s.remoteService.connect(messageConnect, s.sessionId);
 
             if (!msg.Error()) {
                 s.connected = true;
                 s.serverOS = msg.serverOS;
                 s.currentDirectory = msg.currentDir;
+                s.token = msg.token;
                 Logger.logInfo("Connected via RMI to server: " + msg.serverOS);
                 Logger.logInfo("Current directory: " + msg.currentDir);
                 Logger.logInfo("Server version: " + msg.serverVersion);
+                startHeartbeat(s);
                 return true;
             }
 
@@ -133,6 +157,90 @@ public class RmiClientMain {
         return false;
     }
 
+    /**
+     * Keeps the session lease alive while the user is idle
+     */
+    static void startHeartbeat(RmiSession s) {
+        long lease;
+        try {
+            lease = s.remoteService.heartbeat(s.sessionId);
+        } catch (Exception e) {
+            Logger.logWarning("RMI heartbeat failed: " + e.getMessage());
+            return;
+        }
+        Thread t = new Thread(() -> {
+            while (s.connected) {
+                try {
+                    Thread.sleep(Math.max(100, lease / 3));
+                    s.remoteService.heartbeat(s.sessionId);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    if (s.connected) {
+                        Logger.logWarning("RMI heartbeat failed: " + e.getMessage());
+                        if (String.valueOf(e.getMessage()).contains("Session not found")) {
+                            resume(s);
+                        }
+                    }
+                }
+            }
+        }, "RmiHeartbeat");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Connects again after the server dropped the session (lease expired while the network
+     * was down); the server restores the session named by the token if its grace period has not run out
+     */
+    static void resume(RmiSession s) {
+        synchronized (s) {
+            try {
+                MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
+                messageConnect.token = s.token;
+                MessageConnectResult msg = s.remoteService.connect(messageConnect, s.sessionId);
+                if (msg.Error()) {
+                    Logger.logError("Server refused to reconnect: " + msg.getErrorMessage());
+                    return;
+                }
+                s.token = msg.token;
+                s.currentDirectory = msg.currentDir;
+                s.transfers = msg.transfers;
+                if (msg.resumed) {
+                    Logger.logInfo("Session resumed, current directory: " + msg.currentDir);
+                } else {
+                    s.outputId = null;
+                    s.errorId = null;
+                    Logger.logWarning("Session could not be resumed, connected with a new session");
+                }
+            } catch (Exception e) {
+                Logger.logDebug("Reconnect failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Resumes a session that was dropped during an upload, unless the heartbeat already did
+     * @return offset the upload continues at, -1 if the session or the transfer is gone
+     */
+    static long resumeUpload(RmiSession s, String handleId) {
+        synchronized (s) {
+            try {
+                s.remoteService.heartbeat(s.sessionId);
+            } catch (Exception e) {
+                resume(s);
+            }
+            if (s.transfers != null) {
+                for (MessageTransferHandle h : s.transfers) {
+                    if (h.handleId.equals(handleId)) {
+                        return h.received;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+
     static void closeSession(RmiSession s) {
         if(s.connected) {
             s.connected = false;
@@ -151,7 +259,14 @@ public class RmiClientMain {
             Logger.logDebug("Sending command type: " + msg.getId());
             try {
 
-                MessageResult res = s.remoteService.processCommand(msg, s.sessionId);
+                MessageResult res;
+                if (msg.getId() == Protocol.CMD_UPLOAD) {
+                    res = uploadChunked(s, (MessageUpload) msg);
+                } else if (msg.getId() == Protocol.CMD_DOWNLOAD) {
+                    res = downloadChunked(s, (MessageDownload) msg, in);
+                } else {
+                    res = s.remoteService.processCommand(msg, s.sessionId);
+                }
 
                 if (res.Error()) {
                     Logger.logError("Server error: " + res.getErrorMessage());
@@ -159,7 +274,7 @@ public class RmiClientMain {
                 } else {
                     switch (res.getId()) {
                         case Protocol.CMD_EXECUTE:
-                            printExecuteResult((MessageExecuteResult) res);
+                            printExecuteResult(s, (MessageExecuteResult) res);
                             break;
                         case Protocol.CMD_UPLOAD:
                             printUploadResult((MessageUploadResult) res);
@@ -173,6 +288,12 @@ public class RmiClientMain {
                         case Protocol.CMD_GETDIR:
                             printGetdirResult(s, (MessageGetdirResult) res);
                             break;
+                        case Protocol.CMD_LIST:
+                            printListResult((MessageListResult) res);
+                            break;
+                        case Protocol.CMD_OUTPUT:
+                            printOutputResult(s, (MessageOutputResult) res);
+                            break;
                         default:
                             Logger.logWarning("Unknown result type: " + res.getId());
                             break;
@@ -193,13 +314,263 @@ public class RmiClientMain {
         return false;
     }
 
-    static void printExecuteResult(MessageExecuteResult m) {
+    static final int CHUNK_SIZE = 512 * 1024;
+    static final int PIPELINE = 4;      // Chunk calls in flight
+    static final int MAX_RESUMES = 3;   // Session resumptions during one upload
+
+    private static final ExecutorService transferPool = Executors.newFixedThreadPool(PIPELINE, r -> {
+        Thread t = new Thread(r, "RmiTransfer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    interface ChunkCall {
+        void transfer(long offset, int length) throws Exception;
+    }
+
+    /**
+     * Moves [start, start + length) in chunks keeping up to PIPELINE calls in flight
+     */
+    static void transferChunks(long start, long length, int chunkSize, ChunkCall call) throws IOException {
+        ArrayDeque<Future<?>> inFlight = new ArrayDeque<>();
+        long done = 0;
+        try {
+            for (long pos = 0; pos < length; pos += chunkSize) {
+                long offset = start + pos;
+                int n = (int) Math.min(chunkSize, length - pos);
+                if (inFlight.size() >= PIPELINE) {
+                    awaitChunk(inFlight.removeFirst());
+                    done += chunkSize;
+                    System.out.print("\rTransferred " + done + " of " + length + " bytes");
+                    System.out.flush();
+                }
+                inFlight.addLast(transferPool.submit(() -> {
+                    call.transfer(offset, n);
+                    return null;
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                awaitChunk(inFlight.removeFirst());
+            }
+            System.out.println("\rTransferred " + length + " of " + length + " bytes");
+        } finally {
+            inFlight.forEach(f -> f.cancel(true));
+        }
+    }
+
+    private static void awaitChunk(Future<?> chunk) throws IOException {
+        try {
+            chunk.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    static MessageResult uploadChunked(RmiSession s, MessageUpload msg) throws IOException {
+        File file = s.uploadFile;
+        s.uploadFile = null;
+        MessageTransferHandle h = s.remoteService.openUpload(msg.fileName, msg.filePath, msg.fileSize, msg.overwrite, s.sessionId);
+        if (h.Error()) {
+            return h;
+        }
+        long start = 0;
+        for (int resumes = 0; ; resumes++) {
+            try (FileChannel local = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                transferChunks(start, h.fileSize - start, Math.min(CHUNK_SIZE, h.maxChunk), (offset, length) -> {
+                    ByteBuffer buf = ByteBuffer.allocate(length);
+                    while (buf.hasRemaining()) {
+                        if (local.read(buf, offset + buf.position()) < 0) {
+                            throw new IOException("Local file changed during upload");
+                        }
+                    }
+                    s.remoteService.writeChunk(h.handleId, offset, buf.array(), s.sessionId);
+                });
+                break;
+            } catch (IOException e) {
+                System.out.println();
+                // A session dropped by the server keeps its transfers until the grace period ends
+                long received = resumes < MAX_RESUMES && String.valueOf(e.getMessage()).contains("Session not found")
+                        ? resumeUpload(s, h.handleId) : -1;
+                if (received < 0) {
+                    s.remoteService.closeTransfer(h.handleId, s.sessionId);    // Discards the partial upload
+                    return new MessageUploadResult("File upload failed: " + e.getMessage());
+                }
+                Logger.logInfo("Upload continues at offset " + received + " of " + h.fileSize);
+                start = received;
+            }
+        }
+        // The server commits the upload only if its copy has the same digest
+        return s.remoteService.closeTransfer(h.handleId, Checksums.sha256(file.toPath()), s.sessionId);
+    }
+
+    static MessageResult downloadChunked(RmiSession s, MessageDownload msg, Scanner in) throws IOException {
+        MessageTransferHandle h = s.remoteService.openDownload(msg.filePath, s.sessionId);
+        if (h.Error()) {
+            return h;
+        }
+        long start = Math.min(Math.max(0, msg.offset), h.fileSize);
+        long length = msg.length < 0 ? h.fileSize - start : Math.min(msg.length, h.fileSize - start);
+
+        System.out.println("Remote file: " + h.filePath + " [" + h.fileSize + " bytes, downloading " + length + " from offset " + start + "]");
+        System.out.print("Enter local file path [" + h.fileName + "]: ");
+        String localPath = in.nextLine().trim();
+        if (localPath.isEmpty()) {
+            localPath = System.getProperty("user.dir") + File.separator + h.fileName;
+        } else if (new File(localPath).isDirectory() || localPath.endsWith(File.separator)) {
+            localPath = localPath + File.separator + h.fileName;
+        }
+        File file = new File(localPath);
+        if (file.exists()) {
+            System.out.print("File already exists. Overwrite? (y/n) [n]: ");
+            String overwrite = in.nextLine().trim().toLowerCase();
+            if (!overwrite.equals("y") && !overwrite.equals("yes")) {
+                s.remoteService.closeTransfer(h.handleId, s.sessionId);
+                return new MessageDownloadResult("Download cancelled");
+            }
+        }
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (parentDir != null && !parentDir.exists()) {
+            parentDir.mkdirs();
+        }
+
+        try (FileChannel local = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            transferChunks(start, length, Math.min(CHUNK_SIZE, h.maxChunk), (offset, n) -> {
+                byte[] data = s.remoteService.readChunk(h.handleId, offset, n, s.sessionId);
+                if (data.length != n) {
+                    throw new IOException("Remote file changed during download");
+                }
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                while (buf.hasRemaining()) {
+                    local.write(buf, offset - start + buf.position());
+                }
+            });
+        } catch (IOException e) {
+            System.out.println();
+            s.remoteService.closeTransfer(h.handleId, s.sessionId);
+            return new MessageDownloadResult("File download failed: " + e.getMessage());
+        }
+        MessageResult res = s.remoteService.closeTransfer(h.handleId, s.sessionId);
+        if (res instanceof MessageDownloadResult) {
+            MessageDownloadResult download = (MessageDownloadResult) res;
+            download.isPartial = length < h.fileSize;
+            if (!download.isPartial && download.sha256 != null && !download.sha256.equals(Checksums.sha256(file.toPath()))) {
+                Files.deleteIfExists(file.toPath());
+                return new MessageDownloadResult("File download failed: SHA-256 mismatch, " + file.getAbsolutePath() + " removed");
+            }
+        }
+        System.out.println("File saved successfully: " + file.getAbsolutePath());
+        return res;
+    }
+
+    static final int BATCH_SIZE = 64;
+
+    /**
+     * Runs a script: one shell command per line, "cd dir" and "pwd" change and show
+     * the session directory, empty lines and lines starting with # are skipped.
+     * Commands are sent in batches of BATCH_SIZE per remote call.
+     */
+    static void runBatch(RmiSession s, Scanner in) {
+        System.out.print("Enter local script path: ");
+        String path = in.nextLine().trim();
+        if (path.isEmpty()) {
+            return;
+        }
+        System.out.print("Run commands between cd lines in parallel? (y/n) [n]: ");
+        boolean parallel = in.nextLine().trim().equalsIgnoreCase("y");
+
+        List<String> lines = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(new File(path).toPath())) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Logger.logError("Error reading script: " + e.getMessage());
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        int failed = 0;
+        for (int i = 0; i < lines.size(); i += BATCH_SIZE) {
+            List<String> part = lines.subList(i, Math.min(i + BATCH_SIZE, lines.size()));
+            List<Message> msgs = new ArrayList<>(part.size());
+            for (String line : part) {
+                msgs.add(toMessage(line));
+            }
+            List<MessageResult> results;
+            try {
+                results = s.remoteService.processCommands(msgs, s.sessionId, parallel);
+            } catch (Exception e) {
+                Logger.logError("Batch failed: " + e.getMessage());
+                return;
+            }
+            for (int j = 0; j < results.size(); j++) {
+                if (!printBatchResult(s, part.get(j), results.get(j))) {
+                    failed++;
+                }
+            }
+        }
+        System.out.println("\n" + lines.size() + " commands, " + failed + " failed, "
+                + (System.currentTimeMillis() - start) + "ms, " + ((lines.size() + BATCH_SIZE - 1) / BATCH_SIZE) + " remote calls");
+    }
+
+    static Message toMessage(String line) {
+        if (line.equals("pwd")) {
+            return new MessageGetdir();
+        }
+        if (line.startsWith("cd ")) {
+            return new MessageChdir(line.substring(3).trim());
+        }
+        return new MessageExecute(line);
+    }
+
+    static boolean printBatchResult(RmiSession s, String line, MessageResult res) {
+        System.out.println("$ " + line);
+        if (res.Error()) {
+            System.out.println("Error: " + res.getErrorMessage());
+            return false;
+        }
+        switch (res.getId()) {
+            case Protocol.CMD_EXECUTE:
+                MessageExecuteResult m = (MessageExecuteResult) res;
+                System.out.print(m.output);
+                System.out.print(m.error);
+                if (m.outputId != null || m.errorId != null) {
+                    System.out.println("[output truncated at " + m.outputHeadSize + " of " + m.outputSize + " bytes]");
+                }
+                if (m.exitCode != 0) {
+                    System.out.println("[exit code " + m.exitCode + "]");
+                    return false;
+                }
+                return true;
+            case Protocol.CMD_CHDIR:
+                printChdirResult(s, (MessageChdirResult) res);
+                return true;
+            case Protocol.CMD_GETDIR:
+                printGetdirResult(s, (MessageGetdirResult) res);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    static void printExecuteResult(RmiSession s, MessageExecuteResult m) {
         System.out.println("\n" + "=".repeat(60));
         System.out.println("COMMAND EXECUTION RESULT");
         System.out.println("=".repeat(60));
         System.out.println("Exit code: " + m.exitCode);
-        System.out.println("Execution time: " + m.executionTime + "ms");
+        System.out.println("Execution time: " + m.executionTime + "ms" + (m.cached ? " (cached)" : ""));
         System.out.println("Working directory: " + m.workingDir);
+        if (!m.cached) {
+            System.out.println("Resources: cpu user=" + m.cpuUserMillis + "ms sys=" + m.cpuSystemMillis + "ms, peak rss="
+                    + m.peakRssKb + " KB, io read=" + m.ioReadBytes + " write=" + m.ioWriteBytes + " bytes");
+        }
 
         if (m.output != null && !m.output.isEmpty()) {
             System.out.println("\n--- STDOUT ---");
@@ -211,6 +582,17 @@ public class RmiClientMain {
             System.out.print(m.error);
         }
 
+        s.outputId = m.outputId;
+        s.outputOffset = m.outputHeadSize;
+        s.errorId = m.errorId;
+        s.errorOffset = m.errorHeadSize;
+        if (m.outputId != null) {
+            System.out.println("\n[stdout truncated: shown " + s.outputOffset + " of " + m.outputSize + " bytes, use 'output' to read more]");
+        }
+        if (m.errorId != null) {
+            System.out.println("[stderr truncated: shown " + s.errorOffset + " of " + m.errorSize + " bytes, use 'output' with 'err' to read more]");
+        }
+
         System.out.println("=".repeat(60));
     }
 
@@ -221,6 +603,9 @@ public class RmiClientMain {
         System.out.println("File path: " + msg.filePath);
         System.out.println("File size: " + msg.fileSize + " bytes");
         System.out.println("File existed: " + msg.fileExists);
+        if (msg.sha256 != null) {
+            System.out.println("SHA-256: " + msg.sha256);
+        }
         System.out.println("Status: " + (msg.Error() ? "FAILED" : "SUCCESS"));
         System.out.println("=".repeat(60));
     }
@@ -269,7 +654,7 @@ public class RmiClientMain {
             } else {
                 System.out.println("\nFile is too large for preview (" + msg.dataSize + " bytes)");
             }
-        } else {
+        } else if (msg.dataSize == 0) {
             System.out.println("\nNo file data received or file is empty");
         }
 
@@ -311,7 +696,18 @@ public class RmiClientMain {
 
     static void printGetdirResult(RmiSession s, MessageGetdirResult msg){
         s.currentDirectory = msg.currentDirectory;
-        System.out.println("Current directory: " + msg.currentDirectory);
+        System.out.println("Current directory: " + msg.currentDirectory + " (" + msg.filesCount + " entries)");
+    }
+
+    static void printListResult(MessageListResult msg) {
+        if (msg.offset == 0) {
+            System.out.println("Directory: " + msg.directory + " (" + msg.total + " entries" + (msg.cached ? ", cached" : "") + ")");
+        }
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (MessageListResult.Entry e : msg.entries) {
+            System.out.printf("%c %12d  %s  %s%n", e.type, e.size, date.format(new Date(e.modified)),
+                    e.name + (e.type == MessageListResult.DIRECTORY ? "/" : ""));
+        }
     }
 
     static void displayWelcome(RmiSession s){
@@ -334,6 +730,9 @@ public class RmiClientMain {
         System.out.println("  (d)ownload - Download file from server");
         System.out.println("  (c)d       - Change directory");
         System.out.println("  (p)wd      - Print working directory");
+        System.out.println("  (o)utput   - Page through truncated command output");
+        System.out.println("  (l)s       - List directory");
+        System.out.println("  (b)atch    - Run commands from a local script file");
         System.out.println("  (q)uit     - Exit client");
         System.out.println("=".repeat(60) + "\n");
     }
@@ -356,16 +755,27 @@ public class RmiClientMain {
                 case -2:
                     displayHelp();
                     break;
+                case -3:
+                    runBatch(ses, in);
+                    continue;
                 case Protocol.CMD_EXECUTE:
                     return inputExecute(in);
                 case Protocol.CMD_UPLOAD:
-                    return inputUpload(in);
+                    return inputUpload(ses, in);
                 case Protocol.CMD_DOWNLOAD:
                     return inputDownload(in);
                 case Protocol.CMD_CHDIR:
                     return inputChdir(in);
                 case Protocol.CMD_GETDIR:
                     return new MessageGetdir();
+                case Protocol.CMD_LIST:
+                    return inputList(in);
+                case Protocol.CMD_OUTPUT:
+                    Message output = inputOutput(ses, in);
+                    if (output != null) {
+                        return output;
+                    }
+                    continue;
                 case 0:
                     Logger.logWarning("Unknown command: " + str);
                     System.out.println("Unknown command. Type 'help' for available commands.");
@@ -382,6 +792,8 @@ public class RmiClientMain {
         System.out.flush();
     }
 
+    static final int OUTPUT_PAGE_SIZE = 65536;
+
     static TreeMap<String, Byte> commands = new TreeMap<String, Byte>();
 
     static {
@@ -398,8 +810,14 @@ public class RmiClientMain {
         commands.put("cd", Protocol.CMD_CHDIR);
         commands.put("p", Protocol.CMD_GETDIR);
         commands.put("pwd", Protocol.CMD_GETDIR);
+        commands.put("o", Protocol.CMD_OUTPUT);
+        commands.put("output", Protocol.CMD_OUTPUT);
+        commands.put("l", Protocol.CMD_LIST);
+        commands.put("ls", Protocol.CMD_LIST);
         commands.put("h", (byte) -2);
         commands.put("help", (byte) -2);
+        commands.put("b", (byte) -3);
+        commands.put("batch", (byte) -3);
     }
 
     static byte translateCmd(String str) {
@@ -431,7 +849,7 @@ public class RmiClientMain {
         return new MessageExecute(command, workingDir.isEmpty() ? null : workingDir, timeout);
     }
 
-    static MessageUpload inputUpload(Scanner in) {
+    static MessageUpload inputUpload(RmiSession s, Scanner in) {
         System.out.print("Enter local file path: ");
         String localPath = in.nextLine().trim();
         if (localPath.isEmpty()) {
@@ -445,25 +863,17 @@ public class RmiClientMain {
         String overwriteStr = in.nextLine().trim();
         boolean overwrite = overwriteStr.equalsIgnoreCase("y");
 
-        try {
-            File file = new File(localPath);
-            if (!file.exists() || !file.isFile()) {
-                Logger.logError("File not found: " + localPath);
-                return null;
-            }
-
-            byte[] fileData = new byte[(int) file.length()];
-            try (FileInputStream fis = new FileInputStream(file);
-                 BufferedInputStream bis = new BufferedInputStream(fis)) {
-                bis.read(fileData);
-            }
-
-            return new MessageUpload(file.getName(), targetDir, fileData, overwrite);
-
-        } catch (IOException e) {
-            Logger.logError("Error reading file: " + e.getMessage());
+        File file = new File(localPath);
+        if (!file.exists() || !file.isFile() || !file.canRead()) {
+            Logger.logError("File not found: " + localPath);
             return null;
         }
+
+        // File content is sent in chunks by uploadChunked
+        s.uploadFile = file;
+        MessageUpload msg = new MessageUpload(file.getName(), targetDir, null, overwrite);
+        msg.fileSize = file.length();
+        return msg;
     }
 
     static MessageDownload inputDownload(Scanner in) {
@@ -498,6 +908,66 @@ public class RmiClientMain {
         return new MessageDownload(remotePath, offset, length);
     }
 
+    static MessageOutput inputOutput(RmiSession s, Scanner in) {
+        if (s.outputId == null && s.errorId == null) {
+            System.out.println("No truncated output available");
+            return null;
+        }
+        System.out.print("Stream (out/err) [" + (s.outputId != null ? "out" : "err") + "]: ");
+        String stream = in.nextLine().trim().toLowerCase();
+        boolean err = stream.startsWith("e") || (stream.isEmpty() && s.outputId == null);
+        String id = err ? s.errorId : s.outputId;
+        if (id == null) {
+            System.out.println("No truncated " + (err ? "stderr" : "stdout") + " available");
+            return null;
+        }
+        long next = err ? s.errorOffset : s.outputOffset;
+
+        System.out.print("Offset [" + next + "]: ");
+        String offsetStr = in.nextLine().trim();
+        long offset = next;
+        try {
+            if (!offsetStr.isEmpty()) {
+                offset = Long.parseLong(offsetStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid offset, using default: " + next);
+        }
+
+        System.out.print("Length [" + OUTPUT_PAGE_SIZE + "]: ");
+        String lengthStr = in.nextLine().trim();
+        int length = OUTPUT_PAGE_SIZE;
+        try {
+            if (!lengthStr.isEmpty()) {
+                length = Integer.parseInt(lengthStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid length, using default: " + OUTPUT_PAGE_SIZE);
+        }
+
+        return new MessageOutput(id, offset, length);
+    }
+
+    static void printOutputResult(RmiSession s, MessageOutputResult msg) {
+        int size = msg.data != null ? msg.data.length : 0;
+        if (size > 0) {
+            System.out.write(msg.data, 0, size);
+            System.out.println();
+        }
+        long next = msg.offset + size;
+        if (msg.outputId.equals(s.outputId)) {
+            s.outputOffset = next;
+        } else if (msg.outputId.equals(s.errorId)) {
+            s.errorOffset = next;
+        }
+        System.out.println("[bytes " + msg.offset + "-" + next + " of " + msg.totalSize + (next >= msg.totalSize ? ", end of output]" : "]"));
+    }
+
+    static MessageList inputList(Scanner in) {
+        System.out.print("Enter directory [current]: ");
+        return new MessageList(in.nextLine().trim());
+    }
+
     static MessageChdir inputChdir(Scanner in) {
         System.out.print("Enter new directory: ");
         String newDir = in.nextLine().trim();
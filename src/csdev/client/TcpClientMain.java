@@ -2,23 +2,43 @@ package csdev.client;
 
 import csdev.Protocol;
 import csdev.messages.*;
+import csdev.utils.ChannelStreams;
+import csdev.utils.Checksums;
 import csdev.utils.Logger;
+import csdev.utils.TreeArchive;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>Main class of client application using TCP protocol
  * <p>Remote shell client for MacOS/Linux/Unix servers
  * <br>Use arguments: userNic userFullName host [password]
+ * <br>Host "unix:&lt;path&gt;" connects to the server's Unix domain socket
  * @author cin-tie
- * @version 1.2
+ * @version 1.3
  */
 public class TcpClientMain {
 
+    static final String UNIX_PREFIX = "unix:";
+
     public static void main(String[] args) {
         Logger.logClient("Starting Remote Shell TCP Client...");
 
@@ -27,6 +47,7 @@ public class TcpClientMain {
             Logger.logError("Examples:");
             Logger.logError("       john \"John Doe\" localhost");
             Logger.logError("       john \"John Doe\" localhost mypassword");
+            Logger.logError("       john \"John Doe\" unix:/tmp/remoteshell.sock");
             waitKeyToStop();
             return;
         }
@@ -38,16 +59,88 @@ public class TcpClientMain {
             Logger.logWarning("No password provided - connection may fail if server requires authentication");
         }
 
-        try (Socket sock = new Socket(host, Protocol.PORT)) {
-            Logger.logClient("TCP Client initialized");
-            session(sock, args[0], args[1], password, sock.getInetAddress());
+        boolean unix = host.startsWith(UNIX_PREFIX);
+        TcpSession s = new TcpSession(args[0], args[1], password, host);
+        try {
+            link(s);
+            Logger.logClient(unix ? "TCP Client initialized on Unix domain socket" : "TCP Client initialized");
+            session(s);
         } catch (Exception e) {
-            Logger.logError("TCP Connection failed: " + e.getMessage());
+            Logger.logError((unix ? "Unix socket connection failed: " : "TCP Connection failed: ") + e.getMessage());
         } finally {
+            unlink(s);
             Logger.logClient("TCP Client shutdown");
         }
     }
 
+    /**
+     * Connection to the server with its object streams
+     */
+    static class Link {
+        final Closeable connection;
+        final ObjectInputStream is;
+        final ObjectOutputStream os;
+
+        Link(Closeable connection, ObjectInputStream is, ObjectOutputStream os) {
+            this.connection = connection;
+            this.is = is;
+            this.os = os;
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static Link dial(String host) throws IOException {
+        Closeable connection;
+        InputStream input;
+        OutputStream output;
+        if (host.startsWith(UNIX_PREFIX)) {
+            SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(host.substring(UNIX_PREFIX.length())));
+            connection = channel;
+            input = ChannelStreams.in(channel);
+            output = ChannelStreams.out(channel);
+        } else {
+            Socket sock = new Socket(host, Protocol.PORT);
+            connection = sock;
+            sock.setTcpNoDelay(true);
+            input = sock.getInputStream();
+            output = sock.getOutputStream();
+        }
+        try {
+            ObjectOutputStream os = new ObjectOutputStream(output);
+            os.flush();
+            return new Link(connection, new ObjectInputStream(input), os);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the session connection to the session's host
+     */
+    static void link(TcpSession s) throws IOException {
+        Link link = dial(s.host);
+        s.connection = link.connection;
+        s.is = link.is;
+        s.os = link.os;
+    }
+
+    static void unlink(TcpSession s) {
+        if (s.connection != null) {
+            try {
+                s.connection.close();
+            } catch (IOException ignored) {
+            }
+            s.connection = null;
+        }
+    }
+
     static void waitKeyToStop(){
         Logger.logInfo("Press enter to stop...");
         try {
@@ -61,25 +154,34 @@ public class TcpClientMain {
         String username = null;
         String usernameFull = null;
         String password = "";
+        String token = null;        // Session token from the server, used instead of the password
         String currentDirectory = "";
         String serverOS = "";
-        InetAddress serverAddress = null;
+        String outputId = null;     // Last spilled stdout
+        long outputOffset = 0;
+        String errorId = null;      // Last spilled stderr
+        long errorOffset = 0;
+        String host;
+        Closeable connection = null;
+        ObjectInputStream is = null;
+        ObjectOutputStream os = null;
+        List<Link> data = new ArrayList<>();    // Data channels for file transfers, opened on first use
+        int dataLimit = PARALLEL_STREAMS;       // Data channels the server accepts
+        ExecutorService transfers = null;       // Runs transfers on the data channels one after another
+        ExecutorService streams = null;         // Moves the chunks of a large transfer over several data channels
+        File uploadFile = null;                 // Local file of the pending upload sent in chunks, or directory sent as an archive
 
-        TcpSession(String username, String usernameFull, String password, InetAddress serverAddress){
+        TcpSession(String username, String usernameFull, String password, String host){
             this.username = username;
             this.usernameFull = usernameFull;
             this.password = password;
-            this.serverAddress = serverAddress;
+            this.host = host;
         }
     }
 
-    static void session(Socket socket, String username, String usernameFull, String password, InetAddress serverAddress){
-        try(Scanner in = new Scanner(System.in);
-            ObjectInputStream is = new ObjectInputStream(socket.getInputStream());
-            ObjectOutputStream os = new ObjectOutputStream(socket.getOutputStream())){
-
-            TcpSession s = new TcpSession(username, usernameFull, password, serverAddress);
-            if(openSession(s, is, os, in)){
+    static void session(TcpSession s){
+        try(Scanner in = new Scanner(System.in)){
+            if(openSession(s, s.is, s.os, in)){
                 try {
                     displayWelcome(s);
                     while (s.connected) {
@@ -87,12 +189,21 @@ public class TcpClientMain {
                         if(msg == null) {
                             break;
                         }
-                        if (!processCommand(s, msg, is, os, in)) {
-                            break;
+                        if ((msg instanceof MessageUpload || msg instanceof MessageDownload) && startTransfer(s, msg, in)) {
+                            continue;
+                        }
+                        try {
+                            if (!processCommand(s, msg, s.is, s.os, in)) {
+                                break;
+                            }
+                        } catch (IOException e) {
+                            if (!isConnectionLost(e) || !resume(s)) {
+                                throw e;
+                            }
                         }
                     }
                 } finally {
-                    closeSession(s, os);
+                    closeSession(s, s.os);
                 }
             }
         } catch (Exception e){
@@ -108,13 +219,16 @@ public class TcpClientMain {
 
     static boolean openSession(TcpSession s, ObjectInputStream is, ObjectOutputStream os, Scanner in) throws IOException, ClassNotFoundException {
         Logger.logDebug("Sending TCP connection request...");
-        os.writeObject(new MessageConnect(s.username, s.usernameFull, s.password));
+        MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
+        messageConnect.token = s.token;
+        os.writeObject(messageConnect);
         MessageConnectResult msg = (MessageConnectResult) is.readObject();
 
         if(!msg.Error()){
             s.connected = true;
             s.serverOS = msg.serverOS;
             s.currentDirectory = msg.currentDir;
+            s.token = msg.token;
             Logger.logInfo("Connected via TCP to server: " + msg.serverOS);
             Logger.logInfo("Current directory: " + msg.currentDir);
             Logger.logInfo("Server version: " + msg.serverVersion);
@@ -129,7 +243,590 @@ public class TcpClientMain {
         return false;
     }
 
+    static boolean isConnectionLost(IOException e) {
+        String message = e.getMessage();
+        return e instanceof EOFException || (message != null && (message.contains("Connection reset") ||
+                message.contains("Broken pipe") || message.contains("Обрыв канала")));
+    }
+
+    static final int RESUME_ATTEMPTS = 5;
+
+    /**
+     * Reconnects after a dropped connection; the server restores the session
+     * named by the token if its grace period has not run out
+     * @return false if the server could not be reached
+     */
+    static boolean resume(TcpSession s) {
+        Logger.logWarning("Connection to server lost, reconnecting...");
+        closeDataChannel(s, false);
+        long delay = 500;
+        for (int attempt = 1; attempt <= RESUME_ATTEMPTS; attempt++) {
+            unlink(s);
+            try {
+                link(s);
+                MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
+                messageConnect.token = s.token;
+                s.os.writeObject(messageConnect);
+                Object reply = s.is.readObject();
+                if (!(reply instanceof MessageConnectResult) || ((MessageConnectResult) reply).Error()) {
+                    Logger.logError("Server refused to reconnect: "
+                            + (reply instanceof MessageResult ? ((MessageResult) reply).getErrorMessage() : "unexpected reply"));
+                    break;
+                }
+                MessageConnectResult msg = (MessageConnectResult) reply;
+                s.token = msg.token;
+                s.currentDirectory = msg.currentDir;
+                if (msg.resumed) {
+                    Logger.logInfo("Session resumed, current directory: " + msg.currentDir);
+                } else {
+                    s.outputId = null;
+                    s.errorId = null;
+                    Logger.logWarning("Session could not be resumed, connected with a new session");
+                }
+                System.out.println("Connection was lost, the result of the last command is unknown");
+                return true;
+            } catch (IOException | ClassNotFoundException e) {
+                Logger.logDebug("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay *= 2;
+        }
+        unlink(s);
+        s.connected = false;
+        return false;
+    }
+
+    static final int PARALLEL_STREAMS = 4;                      // Data channels used by one large transfer
+    static final long PARALLEL_THRESHOLD = 8L * 1024 * 1024;    // Smallest transfer split over several channels
+    static final int STREAM_CHUNK = 1024 * 1024;                // Bytes moved per request on a channel
+
+    /**
+     * Opens the first data channel of the session if it is not open
+     * @return the channel, null if the server refused it
+     */
+    static Link dataChannel(TcpSession s) throws IOException, ClassNotFoundException {
+        List<Link> links = dataChannels(s, 1);
+        return links.isEmpty() ? null : links.get(0);
+    }
+
+    /**
+     * Opens data channels of the session up to the given number or the server's limit
+     * @return the open channels, empty if the server refused the first one
+     */
+    static synchronized List<Link> dataChannels(TcpSession s, int count) throws IOException, ClassNotFoundException {
+        while (s.data.size() < Math.min(count, s.dataLimit)) {
+            Link link = dial(s.host);
+            MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, "");
+            messageConnect.token = s.token;
+            messageConnect.bulk = true;
+            link.os.writeObject(messageConnect);
+            link.os.flush();
+            Object reply = link.is.readObject();
+            if (!(reply instanceof MessageConnectResult) || ((MessageConnectResult) reply).Error()) {
+                link.close();
+                Logger.logDebug("Data channel refused: " + (reply instanceof MessageResult ? ((MessageResult) reply).getErrorMessage() : "unexpected reply"));
+                s.dataLimit = s.data.size();
+                break;
+            }
+            Logger.logDebug("Data channel " + (s.data.size() + 1) + " opened");
+            s.data.add(link);
+        }
+        return new ArrayList<>(s.data.subList(0, Math.min(count, s.data.size())));
+    }
+
+    static synchronized void closeDataChannel(TcpSession s, boolean notify) {
+        for (Link link : s.data) {
+            if (notify) {
+                try {
+                    link.os.writeObject(new MessageDisconnect("Data channel closed"));
+                    link.os.flush();
+                } catch (IOException ignored) {
+                }
+            }
+            link.close();
+        }
+        s.data.clear();
+        s.dataLimit = PARALLEL_STREAMS;
+    }
+
+    /**
+     * Runs an upload or download in the background on the data channel,
+     * so commands can be entered while it is in progress
+     * @return false if there is no data channel, the transfer then runs on the session connection
+     */
+    static boolean startTransfer(TcpSession s, Message msg, Scanner in) {
+        File upload = s.uploadFile;
+        s.uploadFile = null;
+        boolean open = false;
+        try {
+            open = s.token != null && dataChannel(s) != null;
+        } catch (IOException | ClassNotFoundException e) {
+            Logger.logWarning("Data channel unavailable: " + e.getMessage());
+        }
+        if (!open) {
+            if (upload != null && upload.isDirectory()) {
+                Logger.logError("Directory upload needs a data channel");
+                return true;
+            }
+            return upload != null && !loadUpload((MessageUpload) msg, upload);
+        }
+        File target = upload;
+        if (msg instanceof MessageDownload) {
+            target = inputSaveFile(((MessageDownload) msg).filePath, in);
+            if (target == null) {
+                return true;
+            }
+        }
+        if (s.transfers == null) {
+            s.transfers = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "TcpTransfer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        File file = target;
+        s.transfers.execute(() -> runTransfer(s, msg, file));
+        System.out.println("Transfer started in background");
+        return true;
+    }
+
+    static File inputSaveFile(String remotePath, Scanner in) {
+        String name = new File(remotePath).getName();
+        System.out.print("Save to local file [" + name + "]: ");
+        String localPath = in.nextLine().trim();
+        File file = localPath.isEmpty() ? new File(System.getProperty("user.dir"), name) : new File(localPath);
+        if (file.isDirectory() || localPath.endsWith(File.separator)) {
+            file = new File(file, name);
+        }
+        if (file.exists()) {
+            System.out.print("File already exists. Overwrite? (y/n) [n]: ");
+            String overwrite = in.nextLine().trim().toLowerCase();
+            if (!overwrite.equals("y") && !overwrite.equals("yes")) {
+                System.out.println("Download cancelled.");
+                return null;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Reads a deferred upload into its message, for sending without a data channel
+     * @return false if the file could not be read
+     */
+    static boolean loadUpload(MessageUpload msg, File file) {
+        try {
+            msg.fileData = Files.readAllBytes(file.toPath());
+            msg.fileSize = msg.fileData.length;
+            msg.crc32c = Checksums.crc32c(msg.fileData, 0, msg.fileData.length);
+            msg.sha256 = Checksums.sha256(msg.fileData, 0, msg.fileData.length);
+            return true;
+        } catch (IOException | OutOfMemoryError e) {
+            Logger.logError("Error reading file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a transfer on the data channels
+     * @param file download target, or local file of an upload sent in chunks
+     */
+    static void runTransfer(TcpSession s, Message msg, File file) {
+        String report;
+        try {
+            Link link = dataChannel(s);
+            if (link == null) {
+                throw new IOException("data channel refused");
+            }
+            if (msg instanceof MessageUpload && file != null && file.isDirectory()) {
+                report = uploadArchive(s, link, (MessageUpload) msg, file);
+            } else if (msg instanceof MessageUpload && file != null) {
+                report = uploadParallel(s, (MessageUpload) msg, file);
+            } else if (msg instanceof MessageDownload) {
+                report = download(s, link, (MessageDownload) msg, file);
+            } else {
+                MessageUploadResult upload = (MessageUploadResult) request(link, msg);
+                report = upload.Error() ? "failed: " + upload.getErrorMessage()
+                        : "uploaded " + upload.filePath + " (" + upload.fileSize + " bytes"
+                        + (((MessageUpload) msg).sha256 != null ? ", sha256 verified" : "") + ")";
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            closeDataChannel(s, false);
+            report = "failed: " + e.getMessage();
+        }
+        System.out.println("\n[transfer] " + report);
+        printPrompt(s);
+    }
+
+    /**
+     * Sends a request on a channel and reads its result
+     */
+    static MessageResult request(Link link, Message msg) throws IOException, ClassNotFoundException {
+        link.os.writeObject(msg);
+        link.os.flush();
+        // File data is not referenced again, don't keep it in the stream's handle table
+        link.os.reset();
+        return (MessageResult) link.is.readObject();
+    }
+
+    /**
+     * Downloads a file range; ranges of at least {@link #PARALLEL_THRESHOLD} bytes are
+     * requested in chunks over several data channels
+     */
+    static String download(TcpSession s, Link link, MessageDownload msg, File target) throws IOException, ClassNotFoundException {
+        MessageDownloadResult probe = (MessageDownloadResult) request(link, new MessageDownload(msg.filePath, msg.offset, 0));
+        if (probe.isDirectory) {
+            return downloadArchive(s, link, msg.filePath, target);
+        }
+        if (probe.Error()) {
+            return "failed: " + probe.getErrorMessage();
+        }
+        long size = probe.fileSize;
+        long start = Math.max(0, Math.min(msg.offset, size));
+        long length = msg.length >= 0 ? Math.min(size - start, msg.length) : size - start;
+        if (length >= PARALLEL_THRESHOLD) {
+            return downloadParallel(s, msg.filePath, target, start, length, size);
+        }
+
+        MessageDownloadResult download = (MessageDownloadResult) request(link, msg);
+        if (download.Error()) {
+            return "failed: " + download.getErrorMessage();
+        }
+        String mismatch = download.verify();
+        if (mismatch != null) {
+            return "failed: " + mismatch;
+        }
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        try (FileOutputStream fos = new FileOutputStream(target)) {
+            fos.write(download.fileData, 0, (int) download.dataSize);
+        }
+        return "downloaded " + download.fileName + " to " + target.getAbsolutePath() + " (" + download.dataSize + " bytes"
+                + (download.isPartial ? " of " + download.fileSize : "") + (download.sha256 != null ? ", sha256 verified" : "") + ")";
+    }
+
+    /**
+     * Downloads a range in chunks over the data channels into a temp file next to the target,
+     * which replaces the target once a whole file matches the server's SHA-256
+     */
+    static String downloadParallel(TcpSession s, String remotePath, File target, long start, long length, long size)
+            throws IOException, ClassNotFoundException {
+        List<Link> links = dataChannels(s, PARALLEL_STREAMS);
+        boolean whole = start == 0 && length == size;
+        Path path = target.getAbsoluteFile().toPath();
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling("." + path.getFileName() + ".part");
+        long started = System.currentTimeMillis();
+        String[] remoteDigest = new String[1];
+        try (FileChannel local = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ConcurrentLinkedQueue<Long> chunks = chunkOffsets(start, length, STREAM_CHUNK);
+            runStreams(s, links, (link, first) -> {
+                if (first && whole) {
+                    MessageDownload digest = new MessageDownload(remotePath, 0, 0);
+                    digest.digest = true;
+                    MessageDownloadResult res = (MessageDownloadResult) request(link, digest);
+                    if (res.Error() || res.fileSize != size) {
+                        throw new IOException(res.Error() ? res.getErrorMessage() : "Remote file changed during download");
+                    }
+                    remoteDigest[0] = res.sha256;
+                }
+                Long offset;
+                while ((offset = chunks.poll()) != null) {
+                    int n = (int) Math.min(STREAM_CHUNK, start + length - offset);
+                    MessageDownloadResult res = (MessageDownloadResult) request(link, new MessageDownload(remotePath, offset, n));
+                    if (res.Error()) {
+                        throw new IOException(res.getErrorMessage());
+                    }
+                    if (res.dataSize != n || res.fileSize != size) {
+                        throw new IOException("Remote file changed during download");
+                    }
+                    String mismatch = res.verify();
+                    if (mismatch != null) {
+                        throw new IOException(mismatch + " at " + offset);
+                    }
+                    ByteBuffer buf = ByteBuffer.wrap(res.fileData, 0, n);
+                    while (buf.hasRemaining()) {
+                        local.write(buf, offset - start + buf.position());
+                    }
+                }
+            });
+            if (whole) {
+                String digest = Checksums.sha256(local, length);
+                if (!digest.equals(remoteDigest[0])) {
+                    throw new IOException("Checksum mismatch: expected " + remoteDigest[0] + ", received " + digest);
+                }
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        return "downloaded " + path.getFileName() + " to " + path + " (" + length + " bytes" + (whole ? "" : " of " + size)
+                + ", " + rate(length, started, links.size()) + (whole ? ", sha256 verified" : "") + ")";
+    }
+
+    /**
+     * Uploads a file in chunks over the data channels; the server commits it
+     * only if its SHA-256 matches the local file
+     */
+    static String uploadParallel(TcpSession s, MessageUpload msg, File file) throws IOException, ClassNotFoundException {
+        List<Link> links = dataChannels(s, PARALLEL_STREAMS);
+        long started = System.currentTimeMillis();
+        try (FileChannel local = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            msg.fileSize = local.size();
+            msg.part = MessageUpload.OPEN;
+            MessageResult opened = request(links.get(0), msg);
+            if (opened.Error()) {
+                return "failed: " + opened.getErrorMessage();
+            }
+            MessageTransferHandle h = (MessageTransferHandle) opened;
+            int chunk = Math.min(STREAM_CHUNK, h.maxChunk);
+            Future<String> localDigest = streams(s).submit(() -> Checksums.sha256(local, h.fileSize));
+            ConcurrentLinkedQueue<Long> chunks = chunkOffsets(0, h.fileSize, chunk);
+            try {
+                runStreams(s, links, (link, first) -> {
+                    Long offset;
+                    while ((offset = chunks.poll()) != null) {
+                        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(chunk, h.fileSize - offset));
+                        while (buf.hasRemaining()) {
+                            if (local.read(buf, offset + buf.position()) < 0) {
+                                throw new IOException("Local file changed during upload");
+                            }
+                        }
+                        MessageUpload part = new MessageUpload(msg.fileName, msg.filePath, buf.array());
+                        part.part = MessageUpload.CHUNK;
+                        part.handleId = h.handleId;
+                        part.offset = offset;
+                        MessageResult res = request(link, part);
+                        if (res.Error()) {
+                            throw new IOException(res.getErrorMessage());
+                        }
+                    }
+                });
+            } catch (IOException | ClassNotFoundException e) {
+                abortUpload(s, msg, h.handleId);
+                throw e;
+            }
+            MessageUpload commit = new MessageUpload(msg.fileName, msg.filePath, null);
+            commit.part = MessageUpload.COMMIT;
+            commit.handleId = h.handleId;
+            commit.sha256 = await(localDigest);
+            MessageUploadResult res = (MessageUploadResult) request(links.get(0), commit);
+            if (res.Error()) {
+                return "failed: " + res.getErrorMessage();
+            }
+            return "uploaded " + res.filePath + " (" + res.fileSize + " bytes, " + rate(res.fileSize, started, links.size()) + ", sha256 verified)";
+        }
+    }
+
+    /**
+     * Deflate pays off on a network link, not on a local socket
+     */
+    static boolean compressArchive(TcpSession s) {
+        return !s.host.startsWith(UNIX_PREFIX);
+    }
+
+    /**
+     * Messages of an archive stream read from a channel
+     */
+    static TreeArchive.Source archiveSource(Link link) {
+        return () -> {
+            try {
+                return (Message) link.is.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid message received: " + e.getMessage());
+            }
+        };
+    }
+
+    /**
+     * Downloads a directory tree in one archive stream, extracted into the target
+     * directory while it arrives
+     */
+    static String downloadArchive(TcpSession s, Link link, String remotePath, File target) throws IOException, ClassNotFoundException {
+        MessageArchive msg = new MessageArchive(remotePath);
+        msg.compress = compressArchive(s);
+        long started = System.currentTimeMillis();
+        link.os.writeObject(msg);
+        link.os.flush();
+        TreeArchive.Stats stats = TreeArchive.extract(new TreeArchive.Input(archiveSource(link)), target.toPath(), true, msg.compress);
+        MessageArchiveResult res = (MessageArchiveResult) link.is.readObject();
+        if (res.Error()) {
+            return "failed: " + res.getErrorMessage();
+        }
+        return "downloaded " + res.directory + " to " + target.getAbsolutePath() + " (" + archiveReport(stats, msg.compress, started) + ")";
+    }
+
+    /**
+     * Uploads a directory tree in one archive stream; the server extracts it into a
+     * directory of the same name in the target directory
+     */
+    static String uploadArchive(TcpSession s, Link link, MessageUpload upload, File dir) throws IOException, ClassNotFoundException {
+        MessageArchive msg = new MessageArchive(dir.getName(), upload.filePath, upload.overwrite);
+        msg.compress = compressArchive(s);
+        long started = System.currentTimeMillis();
+        MessageResult opened = request(link, msg);
+        if (opened.Error()) {
+            return "failed: " + opened.getErrorMessage();
+        }
+        MessageTransferHandle h = (MessageTransferHandle) opened;
+        TreeArchive.Output frames = new TreeArchive.Output(h.handleId, h.fileName, m -> {
+            link.os.writeObject(m);
+            link.os.flush();
+            link.os.reset();
+        });
+        TreeArchive.Stats stats;
+        try {
+            stats = TreeArchive.pack(dir.toPath(), frames, msg.compress);
+        } catch (IOException e) {
+            try {
+                frames.abort();
+                link.is.readObject();
+            } catch (IOException | ClassNotFoundException ignored) {
+                // Channel is closed by the caller
+            }
+            throw e;
+        }
+        MessageArchiveResult res = (MessageArchiveResult) link.is.readObject();
+        if (res.Error()) {
+            return "failed: " + res.getErrorMessage();
+        }
+        if (!stats.sha256.equals(res.sha256)) {
+            return "failed: checksum mismatch: expected " + stats.sha256 + ", received " + res.sha256;
+        }
+        return "uploaded " + dir.getAbsolutePath() + " to " + res.directory + " (" + archiveReport(stats, msg.compress, started)
+                + (res.skipped > 0 ? ", " + res.skipped + " existing files kept" : "") + ")";
+    }
+
+    static String archiveReport(TreeArchive.Stats stats, boolean compressed, long started) {
+        long ms = Math.max(1, System.currentTimeMillis() - started);
+        return String.format("%d files, %d directories, %d bytes%s, %.1f MB/s%s, sha256 verified", stats.files, stats.directories, stats.bytes,
+                compressed ? " in " + stats.wireBytes + " compressed" : "", stats.bytes / 1048576.0 * 1000 / ms,
+                stats.skipped > 0 ? ", " + stats.skipped + " entries skipped" : "");
+    }
+
+    /**
+     * Discards a failed chunked upload on the server, the channels that carried it are closed
+     */
+    static void abortUpload(TcpSession s, MessageUpload msg, String handleId) {
+        closeDataChannel(s, false);
+        MessageUpload abort = new MessageUpload(msg.fileName, msg.filePath, null);
+        abort.part = MessageUpload.ABORT;
+        abort.handleId = handleId;
+        try {
+            Link link = dataChannel(s);
+            if (link != null) {
+                request(link, abort);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            Logger.logDebug("Upload abort failed: " + e.getMessage());
+        }
+    }
+
+    interface Stream {
+        void run(Link link, boolean first) throws IOException, ClassNotFoundException;
+    }
+
+    static ConcurrentLinkedQueue<Long> chunkOffsets(long start, long length, int chunk) {
+        ConcurrentLinkedQueue<Long> offsets = new ConcurrentLinkedQueue<>();
+        for (long pos = 0; pos < length; pos += chunk) {
+            offsets.add(start + pos);
+        }
+        return offsets;
+    }
+
+    /**
+     * Runs a stream on each channel and waits for all of them; the first failure is thrown
+     * after the other streams stopped
+     */
+    static void runStreams(TcpSession s, List<Link> links, Stream stream) throws IOException, ClassNotFoundException {
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Future<?>> running = new ArrayList<>();
+        for (int i = 0; i < links.size(); i++) {
+            Link link = links.get(i);
+            boolean first = i == 0;
+            running.add(streams(s).submit(() -> {
+                try {
+                    stream.run(link, first);
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    if (failure.compareAndSet(null, e)) {
+                        links.forEach(Link::close);     // Unblocks the other streams
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : running) {
+            await(f);
+        }
+        Exception e = failure.get();
+        if (e instanceof ClassNotFoundException) {
+            throw (ClassNotFoundException) e;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e != null) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    static <T> T await(Future<T> f) throws IOException, ClassNotFoundException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    static synchronized ExecutorService streams(TcpSession s) {
+        if (s.streams == null) {
+            s.streams = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "TcpStream");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return s.streams;
+    }
+
+    static String rate(long bytes, long started, int channels) {
+        long ms = Math.max(1, System.currentTimeMillis() - started);
+        return String.format("%.1f MB/s over %d channels", bytes / 1048576.0 * 1000 / ms, channels);
+    }
+
     static void closeSession(TcpSession s, ObjectOutputStream os) throws IOException {
+        if (s.transfers != null) {
+            s.transfers.shutdown();
+            if (!s.transfers.isTerminated()) {
+                System.out.println("Waiting for background transfers to finish...");
+                try {
+                    s.transfers.awaitTermination(1, TimeUnit.HOURS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (s.streams != null) {
+            s.streams.shutdownNow();
+        }
+        closeDataChannel(s, true);
         if(s.connected){
             s.connected = false;
             os.writeObject(new MessageDisconnect("Client shutdown"));
@@ -153,10 +850,12 @@ public class TcpClientMain {
         System.out.println("Available commands:");
         System.out.println("  (h)elp     - Watch all available commands");
         System.out.println("  (e)xecute  - Execute shell command");
-        System.out.println("  (u)pload   - Upload file to server");
-        System.out.println("  (d)ownload - Download file from server");
+        System.out.println("  (u)pload   - Upload file or directory to server");
+        System.out.println("  (d)ownload - Download file or directory from server");
         System.out.println("  (c)d       - Change directory");
         System.out.println("  (p)wd      - Print working directory");
+        System.out.println("  (o)utput   - Page through truncated command output");
+        System.out.println("  (l)s       - List directory");
         System.out.println("  (q)uit     - Exit client");
         System.out.println("=".repeat(60) + "\n");
     }
@@ -182,13 +881,21 @@ public class TcpClientMain {
                 case Protocol.CMD_EXECUTE:
                     return inputExecute(in);
                 case Protocol.CMD_UPLOAD:
-                    return inputUpload(in);
+                    return inputUpload(ses, in);
                 case Protocol.CMD_DOWNLOAD:
                     return inputDownload(in);
                 case Protocol.CMD_CHDIR:
                     return inputChdir(in);
                 case Protocol.CMD_GETDIR:
                     return new MessageGetdir();
+                case Protocol.CMD_LIST:
+                    return inputList(in);
+                case Protocol.CMD_OUTPUT:
+                    Message output = inputOutput(ses, in);
+                    if (output != null) {
+                        return output;
+                    }
+                    continue;
                 case 0:
                     Logger.logWarning("Unknown command: " + str);
                     System.out.println("Unknown command. Type 'help' for available commands.");
@@ -224,7 +931,7 @@ public class TcpClientMain {
     }
 
 
-    static MessageUpload inputUpload(Scanner in) {
+    static MessageUpload inputUpload(TcpSession s, Scanner in) {
         System.out.print("Enter local file path: ");
         String localPath = in.nextLine().trim();
         if (localPath.isEmpty()) {
@@ -240,18 +947,44 @@ public class TcpClientMain {
 
         try {
             File file = new File(localPath);
+            if (file.isDirectory()) {
+                if (s.token == null) {
+                    Logger.logError("Directory upload needs a data channel, the server did not issue a session token");
+                    return null;
+                }
+                // Directory tree is sent as an archive on a data channel
+                s.uploadFile = file;
+                return new MessageUpload(file.getName(), targetDir, null, overwrite);
+            }
             if (!file.exists() || !file.isFile()) {
                 Logger.logError("File not found: " + localPath);
                 return null;
             }
+            if (s.token != null && file.length() >= PARALLEL_THRESHOLD) {
+                // File content is sent in chunks over the data channels
+                s.uploadFile = file;
+                MessageUpload msg = new MessageUpload(file.getName(), targetDir, null, overwrite);
+                msg.fileSize = file.length();
+                return msg;
+            }
 
             byte[] fileData = new byte[(int) file.length()];
-            try (FileInputStream fis = new FileInputStream(file);
-                 BufferedInputStream bis = new BufferedInputStream(fis)) {
-                bis.read(fileData);
+            MessageDigest sha256 = Checksums.sha256();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                int n = 0;
+                while (n < fileData.length) {
+                    int r = fis.read(fileData, n, fileData.length - n);
+                    if (r < 0) {
+                        throw new IOException("File shrunk while reading: " + n + " of " + fileData.length + " bytes");
+                    }
+                    sha256.update(fileData, n, r);
+                    n += r;
+                }
             }
 
-            return new MessageUpload(file.getName(), targetDir, fileData, overwrite);
+            MessageUpload msg = new MessageUpload(file.getName(), targetDir, fileData, overwrite);
+            msg.sha256 = Checksums.toHex(sha256.digest());
+            return msg;
 
         } catch (IOException e) {
             Logger.logError("Error reading file: " + e.getMessage());
@@ -291,6 +1024,66 @@ public class TcpClientMain {
         return new MessageDownload(remotePath, offset, length);
     }
 
+    static MessageOutput inputOutput(TcpSession s, Scanner in) {
+        if (s.outputId == null && s.errorId == null) {
+            System.out.println("No truncated output available");
+            return null;
+        }
+        System.out.print("Stream (out/err) [" + (s.outputId != null ? "out" : "err") + "]: ");
+        String stream = in.nextLine().trim().toLowerCase();
+        boolean err = stream.startsWith("e") || (stream.isEmpty() && s.outputId == null);
+        String id = err ? s.errorId : s.outputId;
+        if (id == null) {
+            System.out.println("No truncated " + (err ? "stderr" : "stdout") + " available");
+            return null;
+        }
+        long next = err ? s.errorOffset : s.outputOffset;
+
+        System.out.print("Offset [" + next + "]: ");
+        String offsetStr = in.nextLine().trim();
+        long offset = next;
+        try {
+            if (!offsetStr.isEmpty()) {
+                offset = Long.parseLong(offsetStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid offset, using default: " + next);
+        }
+
+        System.out.print("Length [" + OUTPUT_PAGE_SIZE + "]: ");
+        String lengthStr = in.nextLine().trim();
+        int length = OUTPUT_PAGE_SIZE;
+        try {
+            if (!lengthStr.isEmpty()) {
+                length = Integer.parseInt(lengthStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid length, using default: " + OUTPUT_PAGE_SIZE);
+        }
+
+        return new MessageOutput(id, offset, length);
+    }
+
+    static void printOutputResult(TcpSession s, MessageOutputResult msg) {
+        int size = msg.data != null ? msg.data.length : 0;
+        if (size > 0) {
+            System.out.write(msg.data, 0, size);
+            System.out.println();
+        }
+        long next = msg.offset + size;
+        if (msg.outputId.equals(s.outputId)) {
+            s.outputOffset = next;
+        } else if (msg.outputId.equals(s.errorId)) {
+            s.errorOffset = next;
+        }
+        System.out.println("[bytes " + msg.offset + "-" + next + " of " + msg.totalSize + (next >= msg.totalSize ? ", end of output]" : "]"));
+    }
+
+    static MessageList inputList(Scanner in) {
+        System.out.print("Enter directory [current]: ");
+        return new MessageList(in.nextLine().trim());
+    }
+
     static MessageChdir inputChdir(Scanner in) {
         System.out.print("Enter new directory: ");
         String newDir = in.nextLine().trim();
@@ -301,6 +1094,8 @@ public class TcpClientMain {
         return new MessageChdir(newDir);
     }
 
+    static final int OUTPUT_PAGE_SIZE = 65536;
+
     static TreeMap<String, Byte> commands = new TreeMap<String, Byte>();
 
     static {
@@ -317,6 +1112,10 @@ public class TcpClientMain {
         commands.put("cd", Protocol.CMD_CHDIR);
         commands.put("p", Protocol.CMD_GETDIR);
         commands.put("pwd", Protocol.CMD_GETDIR);
+        commands.put("o", Protocol.CMD_OUTPUT);
+        commands.put("output", Protocol.CMD_OUTPUT);
+        commands.put("l", Protocol.CMD_LIST);
+        commands.put("ls", Protocol.CMD_LIST);
         commands.put("h", (byte) -2);
         commands.put("help", (byte) -2);
     }
@@ -346,7 +1145,7 @@ public class TcpClientMain {
                 } else {
                     switch (res.getId()) {
                         case Protocol.CMD_EXECUTE:
-                            printExecuteResult((MessageExecuteResult) res);
+                            printExecuteResult(s, (MessageExecuteResult) res);
                             break;
                         case Protocol.CMD_UPLOAD:
                             printUploadResult((MessageUploadResult) res);
@@ -360,6 +1159,12 @@ public class TcpClientMain {
                         case Protocol.CMD_GETDIR:
                             printGetdirResult(s, (MessageGetdirResult) res);
                             break;
+                        case Protocol.CMD_LIST:
+                            printListResult((MessageListResult) res);
+                            break;
+                        case Protocol.CMD_OUTPUT:
+                            printOutputResult(s, (MessageOutputResult) res);
+                            break;
                         default:
                             Logger.logWarning("Unknown result type: " + res.getId());
                             break;
@@ -367,9 +1172,7 @@ public class TcpClientMain {
                 }
                 return true;
             } catch (IOException e) {
-                if (e.getMessage().contains("Connection reset") ||
-                        e.getMessage().contains("Обрыв канала") ||
-                        e.getMessage().contains("EOF")) {
+                if (s.token == null && isConnectionLost(e)) {
                     Logger.logInfo("Disconnected from server");
                     s.connected = false;
                     return false;
@@ -380,13 +1183,17 @@ public class TcpClientMain {
         return false;
     }
 
-    static void printExecuteResult(MessageExecuteResult m) {
+    static void printExecuteResult(TcpSession s, MessageExecuteResult m) {
         System.out.println("\n" + "=".repeat(60));
         System.out.println("COMMAND EXECUTION RESULT");
         System.out.println("=".repeat(60));
         System.out.println("Exit code: " + m.exitCode);
-        System.out.println("Execution time: " + m.executionTime + "ms");
+        System.out.println("Execution time: " + m.executionTime + "ms" + (m.cached ? " (cached)" : ""));
         System.out.println("Working directory: " + m.workingDir);
+        if (!m.cached) {
+            System.out.println("Resources: cpu user=" + m.cpuUserMillis + "ms sys=" + m.cpuSystemMillis + "ms, peak rss="
+                    + m.peakRssKb + " KB, io read=" + m.ioReadBytes + " write=" + m.ioWriteBytes + " bytes");
+        }
 
         if (m.output != null && !m.output.isEmpty()) {
             System.out.println("\n--- STDOUT ---");
@@ -398,6 +1205,17 @@ public class TcpClientMain {
             System.out.print(m.error);
         }
 
+        s.outputId = m.outputId;
+        s.outputOffset = m.outputHeadSize;
+        s.errorId = m.errorId;
+        s.errorOffset = m.errorHeadSize;
+        if (m.outputId != null) {
+            System.out.println("\n[stdout truncated: shown " + s.outputOffset + " of " + m.outputSize + " bytes, use 'output' to read more]");
+        }
+        if (m.errorId != null) {
+            System.out.println("[stderr truncated: shown " + s.errorOffset + " of " + m.errorSize + " bytes, use 'output' with 'err' to read more]");
+        }
+
         System.out.println("=".repeat(60));
     }
 
@@ -408,6 +1226,9 @@ public class TcpClientMain {
         System.out.println("File path: " + msg.filePath);
         System.out.println("File size: " + msg.fileSize + " bytes");
         System.out.println("File existed: " + msg.fileExists);
+        if (msg.sha256 != null) {
+            System.out.println("SHA-256: " + msg.sha256);
+        }
         System.out.println("Status: " + (msg.Error() ? "FAILED" : "SUCCESS"));
         System.out.println("=".repeat(60));
     }
@@ -420,6 +1241,16 @@ public class TcpClientMain {
         System.out.println("Total size: " + msg.fileSize + " bytes");
         System.out.println("Downloaded: " + msg.dataSize + " bytes");
         System.out.println("Partial: " + msg.isPartial);
+        String mismatch = msg.verify();
+        if (mismatch != null) {
+            Logger.logError("Download corrupted: " + mismatch);
+            System.out.println("Error: " + mismatch + ", file not saved");
+            System.out.println("=".repeat(60));
+            return;
+        }
+        if (msg.sha256 != null) {
+            System.out.println("SHA-256: " + msg.sha256 + " (verified)");
+        }
 
         if (msg.fileData != null && msg.dataSize > 0) {
             System.out.print("\nSave file to local disk? (y/n) [y]: ");
@@ -498,6 +1329,17 @@ public class TcpClientMain {
 
     static void printGetdirResult(TcpSession s, MessageGetdirResult msg){
         s.currentDirectory = msg.currentDirectory;
-        System.out.println("Current directory: " + msg.currentDirectory);
+        System.out.println("Current directory: " + msg.currentDirectory + " (" + msg.filesCount + " entries)");
+    }
+
+    static void printListResult(MessageListResult msg) {
+        if (msg.offset == 0) {
+            System.out.println("Directory: " + msg.directory + " (" + msg.total + " entries" + (msg.cached ? ", cached" : "") + ")");
+        }
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (MessageListResult.Entry e : msg.entries) {
+            System.out.printf("%c %12d  %s  %s%n", e.type, e.size, date.format(new Date(e.modified)),
+                    e.name + (e.type == MessageListResult.DIRECTORY ? "/" : ""));
+        }
     }
 }
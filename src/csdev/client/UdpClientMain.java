@@ -2,30 +2,41 @@ package csdev.client;
 
 import csdev.Protocol;
 import csdev.messages.*;
+import csdev.utils.Checksums;
 import csdev.utils.Logger;
+import csdev.utils.ReliableDatagramChannel;
 
 import java.io.*;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Scanner;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>Main class of client application using UDP protocol
  * <p>Remote shell client for MacOS/Linux/Unix servers
  * <br>Use arguments: userNic userFullName host [password]
  * @author cin-tie
- * @version 1.2
+ * @version 1.3
  *
  */
 public class UdpClientMain {
 
     public static final int CLIENT_MAX_FRAGMENT_SIZE = 4000;
-    private static final int CLIENT_FRAGMENT_ACK_TIMEOUT = 5000; // ms
-    private static final int CLIENT_MAX_RETRIES = 5;
+
+    // Messages delivered by the receiving thread of the channel
+    private static final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+
+    static final String SERVER_LOST = "Server is not responding";
+    static final int RESUME_ATTEMPTS = 3;
 
     public static void main(String[] args) {
         Logger.logClient("Starting Remote Shell UDP Client...");
@@ -42,10 +53,12 @@ public class UdpClientMain {
         String password = args.length == 4 ? args[3] : "";
         String host = args[2];
 
-        try (DatagramSocket socket = new DatagramSocket()) {
+        try (ReliableDatagramChannel channel = new ReliableDatagramChannel(new DatagramSocket(), (a, p, m) -> inbox.offer(m))) {
             InetAddress serverAddress = InetAddress.getByName(host);
+            channel.setLossListener((a, p) -> inbox.offer(new MessageDisconnect(SERVER_LOST)));
+            channel.start();
             Logger.logClient("UDP Client initialized");
-            session(socket, serverAddress, args[0], args[1], password);
+            session(channel, serverAddress, args[0], args[1], password);
         } catch (Exception e) {
             Logger.logError("UDP Connection failed: " + e.getMessage());
         } finally {
@@ -62,6 +75,8 @@ public class UdpClientMain {
         public byte[][] fragments;
         public long lastActivity;
         public String fileName;
+        public String sha256;       // Of the whole file, from the start fragment
+        public String failure;      // First corrupted fragment, the file is not saved
 
         public FileAssemblySession(String fileId, int totalFragments, String fileName) {
             this.fileId = fileId;
@@ -86,8 +101,17 @@ public class UdpClientMain {
         String username = null;
         String usernameFull = null;
         String password = "";
+        String token = null;        // Session token from the server, used instead of the password
+        boolean lost = false;       // Server stopped acknowledging, the session may be resumed
         String currentDirectory = "";
         String serverOS = "";
+        String outputId = null;     // Last spilled stdout
+        long outputOffset = 0;
+        String errorId = null;      // Last spilled stderr
+        long errorOffset = 0;
+        HashMap<String, Integer> streams = new HashMap<>();  // Streamed output id -> next fragment index
+        long streamedOutput = 0;    // Bytes of stdout streamed for the last command
+        long streamedError = 0;     // Bytes of stderr streamed for the last command
         InetAddress serverAddress;
         int serverPort = Protocol.PORT;
 
@@ -100,10 +124,10 @@ public class UdpClientMain {
         }
     }
 
-    static void session(DatagramSocket socket, InetAddress serverAddress, String username, String usernameFull, String password){
+    static void session(ReliableDatagramChannel channel, InetAddress serverAddress, String username, String usernameFull, String password){
         try (Scanner in = new Scanner(System.in)) {
             UdpSession s = new UdpSession(username, usernameFull, password, serverAddress);
-            if(openSession(s, socket, in)){
+            if(openSession(s, channel, in)){
                 try {
                     displayWelcome(s);
                     while (s.connected) {
@@ -111,12 +135,22 @@ public class UdpClientMain {
                         if(msg == null) {
                             break;
                         }
-                        if (!processCommand(s, msg, socket, in)) {
+                        boolean done;
+                        try {
+                            done = processCommand(s, msg, channel, in);
+                        } catch (IOException e) {
+                            if (s.token == null || !e.getMessage().contains("not responding")) {
+                                throw e;
+                            }
+                            s.lost = true;
+                            done = false;
+                        }
+                        if (!done && !(s.lost && resume(s, channel))) {
                             break;
                         }
                     }
                 } finally {
-                    closeSession(s, socket);
+                    closeSession(s, channel);
                 }
             }
         } catch (Exception e) {
@@ -130,16 +164,21 @@ public class UdpClientMain {
         }
     }
 
-    static boolean openSession(UdpSession s, DatagramSocket socket, Scanner in) throws IOException, ClassNotFoundException {
+    static boolean openSession(UdpSession s, ReliableDatagramChannel channel, Scanner in) throws IOException, ClassNotFoundException {
         Logger.logDebug("Sending UDP connection request...");
         MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
-        sendMessage(socket, s.serverAddress, s.serverPort, messageConnect);
-        MessageConnectResult msg = (MessageConnectResult) recieveMessage(socket, 30000);
+        messageConnect.token = s.token;
+        sendMessage(channel, s.serverAddress, s.serverPort, messageConnect);
+        Message reply = recieveMessage(channel, 30000);
+        MessageConnectResult msg = reply instanceof MessageConnectResult ? (MessageConnectResult) reply : null;
 
         if(msg != null && !msg.Error()){
             s.connected = true;
             s.serverOS = msg.serverOS;
             s.currentDirectory = msg.currentDir;
+            s.token = msg.token;
+            // Uploads use the server's FEC setting
+            channel.setFecGroup(msg.fecGroup);
             Logger.logInfo("Connected via UDP to server: " + msg.serverOS);
             Logger.logInfo("Current directory: " + msg.currentDir);
             Logger.logInfo("Server version: " + msg.serverVersion);
@@ -158,38 +197,84 @@ public class UdpClientMain {
         return false;
     }
 
-    static void closeSession(UdpSession s, DatagramSocket socket) throws IOException {
+    /**
+     * Reconnects after the server stopped responding; the server restores the session
+     * named by the token if its grace period has not run out
+     * @return false if the server could not be reached
+     */
+    static boolean resume(UdpSession s, ReliableDatagramChannel channel) {
+        Logger.logWarning("Connection to server lost, reconnecting...");
+        s.lost = false;
+        long delay = 500;
+        for (int attempt = 1; attempt <= RESUME_ATTEMPTS; attempt++) {
+            // The connect starts a new connection, the server drops the old one
+            channel.abandon(s.serverAddress, s.serverPort);
+            try {
+                Thread.sleep(delay);
+                inbox.clear();
+                MessageConnect messageConnect = new MessageConnect(s.username, s.usernameFull, s.password);
+                messageConnect.token = s.token;
+                sendMessage(channel, s.serverAddress, s.serverPort, messageConnect);
+                // Replies to the interrupted command may still arrive first
+                Message reply;
+                do {
+                    reply = recieveMessage(channel, 30000);
+                } while (reply != null && !(reply instanceof MessageConnectResult) && !(reply instanceof MessageDisconnect));
+                if (reply instanceof MessageConnectResult) {
+                    MessageConnectResult msg = (MessageConnectResult) reply;
+                    if (msg.Error()) {
+                        Logger.logError("Server refused to reconnect: " + msg.getErrorMessage());
+                        break;
+                    }
+                    s.connected = true;
+                    s.token = msg.token;
+                    s.currentDirectory = msg.currentDir;
+                    if (msg.resumed) {
+                        Logger.logInfo("Session resumed, current directory: " + msg.currentDir);
+                    } else {
+                        s.outputId = null;
+                        s.errorId = null;
+                        Logger.logWarning("Session could not be resumed, connected with a new session");
+                    }
+                    System.out.println("Connection was lost, the result of the last command is unknown");
+                    return true;
+                }
+            } catch (IOException e) {
+                Logger.logDebug("Reconnect attempt " + attempt + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            delay *= 2;
+        }
+        s.connected = false;
+        return false;
+    }
+
+    static void closeSession(UdpSession s, ReliableDatagramChannel channel) throws IOException {
         if(s.connected) {
             s.connected = false;
             MessageDisconnect messageDisconnect = new MessageDisconnect("Client shutdown");
-            sendMessage(socket, s.serverAddress, Protocol.PORT, messageDisconnect);
+            sendMessage(channel, s.serverAddress, Protocol.PORT, messageDisconnect);
+            channel.flush(s.serverAddress, Protocol.PORT, 2000);
             Logger.logInfo("Disconnected from UDP server");
         }
     }
 
-    private static void sendMessage(DatagramSocket socket, InetAddress address, int port, Message msg) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeObject(msg);
-        oos.flush();
-        byte[] data = baos.toByteArray();
-        DatagramPacket dp = new DatagramPacket(data, data.length, address, port);
-        socket.send(dp);
+    private static void sendMessage(ReliableDatagramChannel channel, InetAddress address, int port, Message msg) throws IOException {
+        channel.send(address, port, msg);
     }
 
-    private static Message recieveMessage(DatagramSocket socket, int timeout) throws IOException, ClassNotFoundException {
-        socket.setSoTimeout(timeout);
-
-        byte[] data = new byte[65536];
-        DatagramPacket dp = new DatagramPacket(data, data.length);
-
-        try{
-            socket.receive(dp);
-            ByteArrayInputStream bais = new ByteArrayInputStream(dp.getData(), 0, dp.getLength());
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            return (Message) ois.readObject();
-        } catch (SocketTimeoutException e) {
-            return null;
+    /**
+     * Waits for the next message from the server
+     * @return the message, null on timeout
+     */
+    private static Message recieveMessage(ReliableDatagramChannel channel, int timeout) throws IOException {
+        try {
+            return inbox.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server");
         }
     }
 
@@ -213,6 +298,8 @@ public class UdpClientMain {
         System.out.println("  (d)ownload - Download file from server");
         System.out.println("  (c)d       - Change directory");
         System.out.println("  (p)wd      - Print working directory");
+        System.out.println("  (o)utput   - Page through truncated command output");
+        System.out.println("  (l)s       - List directory");
         System.out.println("  (q)uit     - Exit client");
         System.out.println("=".repeat(60) + "\n");
     }
@@ -245,6 +332,14 @@ public class UdpClientMain {
                     return inputChdir(in);
                 case Protocol.CMD_GETDIR:
                     return new MessageGetdir();
+                case Protocol.CMD_LIST:
+                    return inputList(in);
+                case Protocol.CMD_OUTPUT:
+                    Message output = inputOutput(ses, in);
+                    if (output != null) {
+                        return output;
+                    }
+                    continue;
                 case 0:
                     Logger.logWarning("Unknown command: " + str);
                     System.out.println("Unknown command. Type 'help' for available commands.");
@@ -302,12 +397,22 @@ public class UdpClientMain {
             }
 
             byte[] fileData = new byte[(int) file.length()];
-            try (FileInputStream fis = new FileInputStream(file);
-                 BufferedInputStream bis = new BufferedInputStream(fis)) {
-                bis.read(fileData);
+            MessageDigest sha256 = Checksums.sha256();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                int n = 0;
+                while (n < fileData.length) {
+                    int r = fis.read(fileData, n, fileData.length - n);
+                    if (r < 0) {
+                        throw new IOException("File shrunk while reading: " + n + " of " + fileData.length + " bytes");
+                    }
+                    sha256.update(fileData, n, r);
+                    n += r;
+                }
             }
 
-            return new MessageUpload(file.getName(), targetDir, fileData, overwrite);
+            MessageUpload msg = new MessageUpload(file.getName(), targetDir, fileData, overwrite);
+            msg.sha256 = Checksums.toHex(sha256.digest());
+            return msg;
 
         } catch (IOException e) {
             Logger.logError("Error reading file: " + e.getMessage());
@@ -347,6 +452,66 @@ public class UdpClientMain {
         return new MessageDownload(remotePath, offset, length);
     }
 
+    static MessageOutput inputOutput(UdpSession s, Scanner in) {
+        if (s.outputId == null && s.errorId == null) {
+            System.out.println("No truncated output available");
+            return null;
+        }
+        System.out.print("Stream (out/err) [" + (s.outputId != null ? "out" : "err") + "]: ");
+        String stream = in.nextLine().trim().toLowerCase();
+        boolean err = stream.startsWith("e") || (stream.isEmpty() && s.outputId == null);
+        String id = err ? s.errorId : s.outputId;
+        if (id == null) {
+            System.out.println("No truncated " + (err ? "stderr" : "stdout") + " available");
+            return null;
+        }
+        long next = err ? s.errorOffset : s.outputOffset;
+
+        System.out.print("Offset [" + next + "]: ");
+        String offsetStr = in.nextLine().trim();
+        long offset = next;
+        try {
+            if (!offsetStr.isEmpty()) {
+                offset = Long.parseLong(offsetStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid offset, using default: " + next);
+        }
+
+        System.out.print("Length [" + OUTPUT_PAGE_SIZE + "]: ");
+        String lengthStr = in.nextLine().trim();
+        int length = OUTPUT_PAGE_SIZE;
+        try {
+            if (!lengthStr.isEmpty()) {
+                length = Integer.parseInt(lengthStr);
+            }
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid length, using default: " + OUTPUT_PAGE_SIZE);
+        }
+
+        return new MessageOutput(id, offset, length);
+    }
+
+    static void printOutputResult(UdpSession s, MessageOutputResult msg) {
+        int size = msg.data != null ? msg.data.length : 0;
+        if (size > 0) {
+            System.out.write(msg.data, 0, size);
+            System.out.println();
+        }
+        long next = msg.offset + size;
+        if (msg.outputId.equals(s.outputId)) {
+            s.outputOffset = next;
+        } else if (msg.outputId.equals(s.errorId)) {
+            s.errorOffset = next;
+        }
+        System.out.println("[bytes " + msg.offset + "-" + next + " of " + msg.totalSize + (next >= msg.totalSize ? ", end of output]" : "]"));
+    }
+
+    static MessageList inputList(Scanner in) {
+        System.out.print("Enter directory [current]: ");
+        return new MessageList(in.nextLine().trim(), 0, LIST_PAGE);
+    }
+
     static MessageChdir inputChdir(Scanner in) {
         System.out.print("Enter new directory: ");
         String newDir = in.nextLine().trim();
@@ -357,33 +522,53 @@ public class UdpClientMain {
         return new MessageChdir(newDir);
     }
 
-    static boolean processCommand(UdpSession s, Message msg, DatagramSocket socket, Scanner in)
+    static boolean processCommand(UdpSession s, Message msg, ReliableDatagramChannel channel, Scanner in)
             throws IOException, ClassNotFoundException {
 
         if (msg != null) {
             Logger.logDebug("Sending command type: " + msg.getId());
 
             if (msg.getId() == Protocol.CMD_UPLOAD && ((MessageUpload) msg).fileData.length > CLIENT_MAX_FRAGMENT_SIZE) {
-                handleFragmentedUpload((MessageUpload) msg, socket, s.serverAddress, Protocol.PORT, in);
+                handleFragmentedUpload((MessageUpload) msg, channel, s.serverAddress, Protocol.PORT, in);
                 return true;
             }
 
-            sendMessage(socket, s.serverAddress, Protocol.PORT, msg);
+            int timeout = 30000;
+            if (msg.getId() == Protocol.CMD_EXECUTE) {
+                // Output arrives while the command runs, the result only after it finishes
+                long timeMillis = ((MessageExecute) msg).timeMillis;
+                timeout = (int) Math.min(Integer.MAX_VALUE, (timeMillis > 0 ? timeMillis : 30000) + 30000);
+                s.streams.clear();
+                s.streamedOutput = 0;
+                s.streamedError = 0;
+            }
+
+            sendMessage(channel, s.serverAddress, Protocol.PORT, msg);
 
             while (true) {
-                Message incoming = recieveMessage(socket, 30000);
+                Message incoming = recieveMessage(channel, timeout);
 
                 if (incoming == null) {
                     Logger.logWarning("Timeout waiting for server response.");
+                    s.lost = s.token != null;
                     return false;
                 }
 
-                if (incoming instanceof MessageFragment) {
-                    handleFileFragment((MessageFragment) incoming, socket, s.serverAddress, Protocol.PORT, in);
+                if (incoming instanceof MessageFragment && ((MessageFragment) incoming).streamType != MessageFragment.STREAM_FILE) {
+                    handleOutputFragment(s, (MessageFragment) incoming);
+                    continue;
+                } else if (incoming instanceof MessageFragment) {
+                    handleFileFragment((MessageFragment) incoming, in);
                     continue;
                 } else if (incoming instanceof MessageFragmentResult) {
-                    handleFragmentAck((MessageFragmentResult) incoming, socket, s.serverAddress, Protocol.PORT);
+                    handleFragmentAck((MessageFragmentResult) incoming);
                     continue;
+                } else if (incoming instanceof MessageDisconnect) {
+                    String reason = ((MessageDisconnect) incoming).reason;
+                    Logger.logInfo("Disconnected from server: " + reason);
+                    s.connected = false;
+                    s.lost = SERVER_LOST.equals(reason) && s.token != null;
+                    return false;
                 }
 
                 if (incoming instanceof MessageResult) {
@@ -395,7 +580,7 @@ public class UdpClientMain {
                     } else {
                         switch (res.getId()) {
                             case Protocol.CMD_EXECUTE:
-                                printExecuteResult((MessageExecuteResult) res);
+                                printExecuteResult(s, (MessageExecuteResult) res);
                                 break;
                             case Protocol.CMD_UPLOAD:
                                 printUploadResult((MessageUploadResult) res);
@@ -409,6 +594,19 @@ public class UdpClientMain {
                             case Protocol.CMD_GETDIR:
                                 printGetdirResult(s, (MessageGetdirResult) res);
                                 break;
+                            case Protocol.CMD_LIST:
+                                MessageListResult list = (MessageListResult) res;
+                                printListResult(list);
+                                int next = list.offset + list.entries.length;
+                                if (list.entries.length > 0 && next < list.total) {
+                                    // A page fits in a datagram, request the next one
+                                    sendMessage(channel, s.serverAddress, Protocol.PORT, new MessageList(list.directory, next, LIST_PAGE));
+                                    continue;
+                                }
+                                break;
+                            case Protocol.CMD_OUTPUT:
+                                printOutputResult(s, (MessageOutputResult) res);
+                                break;
                             default:
                                 Logger.logWarning("Unknown result type: " + res.getId());
                         }
@@ -422,7 +620,7 @@ public class UdpClientMain {
         return false;
     }
 
-    private static void handleFragmentedUpload(MessageUpload up, DatagramSocket socket, InetAddress address, int port, Scanner in)
+    private static void handleFragmentedUpload(MessageUpload up, ReliableDatagramChannel channel, InetAddress address, int port, Scanner in)
             throws IOException, ClassNotFoundException {
 
         byte[] fileData = up.fileData;
@@ -478,49 +676,31 @@ public class UdpClientMain {
             MessageFragment fragment = new MessageFragment(
                     fragmentType, totalFragments, fragmentIndex, fileId, up.fileName, payload, payloadSize
             );
-
-            boolean ackReceived = false;
-            int attempts = 0;
-
-            while (!ackReceived && attempts < CLIENT_MAX_RETRIES) {
-                attempts++;
-                sendMessage(socket, address, port, fragment);
-                Logger.logDebug("Sent upload fragment " + fragmentIndex + "/" + (totalFragments - 1) + " attempt=" + attempts);
-
-                Message response = recieveMessage(socket, CLIENT_FRAGMENT_ACK_TIMEOUT);
-
-                if (response instanceof MessageFragmentResult) {
-                    MessageFragmentResult ack = (MessageFragmentResult) response;
-                    if (ack.fileId != null && ack.fileId.equals(fileId) &&
-                            ack.fragmentIndex == fragmentIndex && ack.received) {
-                        ackReceived = true;
-                        Logger.logDebug("Received ACK for upload fragment " + fragmentIndex);
-                        break;
-                    }
-                } else if (response instanceof MessageResult) {
-                    MessageResult errorResult = (MessageResult) response;
-                    if (errorResult.Error()) {
-                        Logger.logError("Server error during upload: " + errorResult.getErrorMessage());
-                        return;
-                    }
-                }
-
-                if (!ackReceived && attempts < CLIENT_MAX_RETRIES) {
-                    Logger.logWarning("No ACK for fragment " + fragmentIndex + ", retrying...");
-                }
+            if (fragmentType == MessageFragment.FRAGMENT_START) {
+                fragment.sha256 = up.sha256;
             }
 
-            if (!ackReceived) {
-                Logger.logError("Failed to send fragment " + fragmentIndex + " after " + CLIENT_MAX_RETRIES + " attempts");
+            // The channel window paces the fragments and resends lost ones
+            channel.send(address, port, fragment, true);
+            Logger.logDebug("Sent upload fragment " + fragmentIndex + "/" + (totalFragments - 1));
+
+            MessageResult error = takeUploadError(fileId);
+            if (error != null) {
+                Logger.logError("Server error during upload: " + error.getErrorMessage());
                 return;
             }
         }
 
         Logger.logInfo("All fragments uploaded, waiting for final result...");
-        Message finalResult = recieveMessage(socket, 30000);
+        Message finalResult;
+        do {
+            finalResult = recieveMessage(channel, 30000);
+        } while (finalResult instanceof MessageFragmentResult && !fileId.equals(((MessageFragmentResult) finalResult).fileId));
 
         if (finalResult instanceof MessageUploadResult) {
             printUploadResult((MessageUploadResult) finalResult);
+        } else if (finalResult instanceof MessageResult && ((MessageResult) finalResult).Error()) {
+            Logger.logError("Server error during upload: " + ((MessageResult) finalResult).getErrorMessage());
         } else if (finalResult != null) {
             Logger.logError("Unexpected final message type: " + finalResult.getClass().getSimpleName());
         } else {
@@ -528,9 +708,54 @@ public class UdpClientMain {
         }
     }
 
-    private static void handleFragmentAck(MessageFragmentResult ack, DatagramSocket socket,
-                                          InetAddress address, int port) throws IOException {
-        Logger.logDebug("Received fragment ACK: fileId=" + ack.fileId + " index=" + ack.fragmentIndex);
+    /**
+     * Removes a NACK of the upload or an error result from the inbox, wherever it is queued
+     * @return the error, null if the server reported none so far
+     */
+    private static MessageResult takeUploadError(String fileId) {
+        for (Message m : inbox) {
+            boolean error = m instanceof MessageFragmentResult
+                    ? fileId.equals(((MessageFragmentResult) m).fileId) && !((MessageFragmentResult) m).received
+                    : m instanceof MessageResult && ((MessageResult) m).Error();
+            if (error && inbox.remove(m)) {
+                return (MessageResult) m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Prints streamed command output in order
+     */
+    private static void handleOutputFragment(UdpSession s, MessageFragment msg) throws IOException {
+        int next = s.streams.getOrDefault(msg.fileId, 0);
+        if (msg.fragmentIndex > next) {
+            Logger.logDebug("Out of order output fragment " + msg.fragmentIndex + " (expected " + next + ")");
+            return;
+        }
+        if (msg.fragmentIndex == next) {
+            if (s.streams.isEmpty()) {
+                System.out.println("\n--- OUTPUT ---");
+            }
+            s.streams.put(msg.fileId, next + 1);
+            if (msg.streamType == MessageFragment.STREAM_STDERR) {
+                System.err.write(msg.data, 0, msg.dataSize);
+                System.err.flush();
+                s.streamedError += msg.dataSize;
+            } else {
+                System.out.write(msg.data, 0, msg.dataSize);
+                System.out.flush();
+                s.streamedOutput += msg.dataSize;
+            }
+        }
+    }
+
+    private static void handleFragmentAck(MessageFragmentResult ack) {
+        if (ack.Error()) {
+            Logger.logError("Fragment " + ack.fragmentIndex + " of " + ack.fileId + " rejected: " + ack.getErrorMessage());
+        } else {
+            Logger.logDebug("Received fragment ACK: fileId=" + ack.fileId + " index=" + ack.fragmentIndex);
+        }
     }
 
     private static String escapeJson(String s) {
@@ -539,6 +764,9 @@ public class UdpClientMain {
     }
 
 
+    static final int OUTPUT_PAGE_SIZE = 16384;
+    static final int LIST_PAGE = 128;     // Directory entries per datagram
+
     static TreeMap<String, Byte> commands = new TreeMap<String, Byte>();
 
     static {
@@ -555,6 +783,10 @@ public class UdpClientMain {
         commands.put("cd", Protocol.CMD_CHDIR);
         commands.put("p", Protocol.CMD_GETDIR);
         commands.put("pwd", Protocol.CMD_GETDIR);
+        commands.put("o", Protocol.CMD_OUTPUT);
+        commands.put("output", Protocol.CMD_OUTPUT);
+        commands.put("l", Protocol.CMD_LIST);
+        commands.put("ls", Protocol.CMD_LIST);
         commands.put("h", (byte) -2);
         commands.put("help", (byte) -2);
     }
@@ -570,13 +802,17 @@ public class UdpClientMain {
         System.out.flush();
     }
 
-    static void printExecuteResult(MessageExecuteResult m) {
+    static void printExecuteResult(UdpSession s, MessageExecuteResult m) {
         System.out.println("\n" + "=".repeat(60));
         System.out.println("COMMAND EXECUTION RESULT");
         System.out.println("=".repeat(60));
         System.out.println("Exit code: " + m.exitCode);
-        System.out.println("Execution time: " + m.executionTime + "ms");
+        System.out.println("Execution time: " + m.executionTime + "ms" + (m.cached ? " (cached)" : ""));
         System.out.println("Working directory: " + m.workingDir);
+        if (!m.cached) {
+            System.out.println("Resources: cpu user=" + m.cpuUserMillis + "ms sys=" + m.cpuSystemMillis + "ms, peak rss="
+                    + m.peakRssKb + " KB, io read=" + m.ioReadBytes + " write=" + m.ioWriteBytes + " bytes");
+        }
 
         if (m.output != null && !m.output.isEmpty()) {
             System.out.println("\n--- STDOUT ---");
@@ -588,6 +824,21 @@ public class UdpClientMain {
             System.out.print(m.error);
         }
 
+        s.outputId = m.outputId;
+        s.outputOffset = m.streamed ? s.streamedOutput : m.outputHeadSize;
+        s.errorId = m.errorId;
+        s.errorOffset = m.streamed ? s.streamedError : m.errorHeadSize;
+        if (m.outputId != null) {
+            System.out.println("\n[stdout truncated: shown " + s.outputOffset + " of " + m.outputSize + " bytes, use 'output' to read more]");
+        }
+        if (m.errorId != null) {
+            System.out.println("[stderr truncated: shown " + s.errorOffset + " of " + m.errorSize + " bytes, use 'output' with 'err' to read more]");
+        }
+        if (m.truncated) {
+            System.out.println("[output streaming stopped early: shown " + s.streamedOutput + " of " + m.outputHeadSize
+                    + " stdout and " + s.streamedError + " of " + m.errorHeadSize + " stderr bytes]");
+        }
+
         System.out.println("=".repeat(60));
     }
 
@@ -598,6 +849,9 @@ public class UdpClientMain {
         System.out.println("File path: " + msg.filePath);
         System.out.println("File size: " + msg.fileSize + " bytes");
         System.out.println("File existed: " + msg.fileExists);
+        if (msg.sha256 != null) {
+            System.out.println("SHA-256: " + msg.sha256);
+        }
         System.out.println("Status: " + (msg.Error() ? "FAILED" : "SUCCESS"));
         System.out.println("=".repeat(60));
     }
@@ -608,8 +862,18 @@ public class UdpClientMain {
         System.out.println("=".repeat(60));
         System.out.println("File name: " + msg.fileName);
         System.out.println("Total size: " + msg.fileSize + " bytes");
-        System.out.println("Downloaded: " + (msg.isFragmented? msg.fileSize : msg.dataSize) + " bytes");
+        System.out.println("Downloaded: " + msg.dataSize + " bytes");
         System.out.println("Partial: " + msg.isPartial);
+        String mismatch = msg.verify();
+        if (mismatch != null) {
+            Logger.logError("Download corrupted: " + mismatch);
+            System.out.println("Error: " + mismatch + ", file not saved");
+            System.out.println("=".repeat(60));
+            return;
+        }
+        if (msg.sha256 != null) {
+            System.out.println("SHA-256: " + msg.sha256 + " (verified)");
+        }
 
         if (msg.fileData != null && msg.dataSize > 0) {
             System.out.print("\nSave file to local disk? (y/n) [y]: ");
@@ -700,27 +964,39 @@ public class UdpClientMain {
 
     static void printGetdirResult(UdpSession s, MessageGetdirResult msg){
         s.currentDirectory = msg.currentDirectory;
-        System.out.println("Current directory: " + msg.currentDirectory);
+        System.out.println("Current directory: " + msg.currentDirectory + " (" + msg.filesCount + " entries)");
+    }
+
+    static void printListResult(MessageListResult msg) {
+        if (msg.offset == 0) {
+            System.out.println("Directory: " + msg.directory + " (" + msg.total + " entries" + (msg.cached ? ", cached" : "") + ")");
+        }
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (MessageListResult.Entry e : msg.entries) {
+            System.out.printf("%c %12d  %s  %s%n", e.type, e.size, date.format(new Date(e.modified)),
+                    e.name + (e.type == MessageListResult.DIRECTORY ? "/" : ""));
+        }
     }
 
-    private static void handleFileFragment(MessageFragment msg, DatagramSocket socket, InetAddress address, int port, Scanner in) throws IOException {
+    private static void handleFileFragment(MessageFragment msg, Scanner in) throws IOException {
         FileAssemblySession session = assemblySessions.get(msg.fileId);
 
 
         if(session == null && msg.fragmentType == MessageFragment.FRAGMENT_START) {
             session = new FileAssemblySession(msg.fileId, msg.totalFragments, msg.fileName);
+            session.sha256 = msg.sha256;
             assemblySessions.put(msg.fileId, session);
             Logger.logInfo("Starting file assembly: " + msg.fileId + " [fragments=" + msg.totalFragments + "]");
         }
 
         if(session != null) {
+            if (!msg.isIntact() && session.failure == null) {
+                session.failure = "CRC32C mismatch in fragment " + msg.fragmentIndex;
+            }
             session.fragments[msg.fragmentIndex] = msg.data;
             session.receivedFragments++;
             session.lastActivity = System.currentTimeMillis();
 
-            MessageFragmentResult ack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, true);
-            sendMessage(socket, address, port, ack);
-
             if (session.receivedFragments == session.totalFragments) {
                 assembleAndSaveFile(session, in);
                 assemblySessions.remove(msg.fileId);
@@ -746,8 +1022,17 @@ public class UdpClientMain {
         }
 
         byte[] fileData = baos.toByteArray();
+        if (session.failure == null && session.sha256 != null && !Checksums.sha256(fileData, 0, fileData.length).equals(session.sha256)) {
+            session.failure = "SHA-256 mismatch in assembled file";
+        }
+        if (session.failure != null) {
+            Logger.logError("Download corrupted: " + session.failure);
+            System.out.println("\nFile download failed: " + session.failure + ", file not saved");
+            return;
+        }
 
-        System.out.println("\nFile download completed: " + session.totalFragments + " fragments assembled");
+        System.out.println("\nFile download completed: " + session.totalFragments + " fragments assembled"
+                + (session.sha256 != null ? ", sha256 verified" : ""));
         System.out.print("Save file to local disk? (y/n) [y]: ");
         String saveChoice = in.nextLine().trim().toLowerCase();
 
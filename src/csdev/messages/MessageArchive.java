@@ -0,0 +1,37 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageArchive class: transfer a directory tree as one stream
+ * <p>A download is answered with the archive fragments followed by a {@link MessageArchiveResult}.
+ * An upload is answered with a {@link MessageTransferHandle}, then the client sends the
+ * fragments and the server answers with a {@link MessageArchiveResult}.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageArchive extends Message implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String path;         // Directory to send, or target directory of an upload
+    public String name;         // Directory created in the target directory by an upload
+    public boolean upload;      // Client sends the archive
+    public boolean compress;    // Archive is deflated
+    public boolean overwrite;   // Replace existing files
+
+    public MessageArchive(String path) {
+        super(Protocol.CMD_ARCHIVE);
+        this.path = path;
+    }
+
+    public MessageArchive(String name, String targetDir, boolean overwrite) {
+        super(Protocol.CMD_ARCHIVE);
+        this.path = targetDir;
+        this.name = name;
+        this.upload = true;
+        this.overwrite = overwrite;
+    }
+}
@@ -0,0 +1,39 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageArchiveResult class: directory tree transfer result
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageArchiveResult extends MessageResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String directory;    // Absolute path of the directory on server
+    public int files;           // Files transferred
+    public int directories;     // Directories transferred
+    public int skipped;         // Entries not transferred: unreadable, special or existing files
+    public long bytes;          // File content in bytes
+    public long wireBytes;      // Archive bytes sent, after compression
+    public String sha256;       // Hex SHA-256 of the uncompressed archive
+
+    public MessageArchiveResult(String errorMessage) {
+        super(Protocol.CMD_ARCHIVE, errorMessage);
+        this.directory = "";
+    }
+
+    public MessageArchiveResult(String directory, int files, int directories, int skipped, long bytes, long wireBytes, String sha256) {
+        super(Protocol.CMD_ARCHIVE);
+        this.directory = directory;
+        this.files = files;
+        this.directories = directories;
+        this.skipped = skipped;
+        this.bytes = bytes;
+        this.wireBytes = wireBytes;
+        this.sha256 = sha256;
+    }
+}
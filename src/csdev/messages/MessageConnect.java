@@ -16,6 +16,8 @@ public class MessageConnect extends Message implements Serializable {
     public String username;         // Nickname
     public String usernameFull;     // Full name
     public String password;         // Password for auth
+    public String token;            // Session token from an earlier connect, replaces the password
+    public boolean bulk;            // Open a data channel of the session named by the token
 
     public MessageConnect(String username, String usernameFull){
         super(Protocol.CMD_CONNECT);
@@ -14,6 +14,10 @@ public class MessageConnectResult extends MessageResult implements Serializable
     public String serverOS;        // Server operating system
     public String currentDir;       // Initial working directory
     public String serverVersion;    // Server software version
+    public int fecGroup;            // UDP file fragments per parity datagram, 0 - no FEC
+    public String token;            // Signed session token, sent instead of the password on reconnect
+    public boolean resumed;         // State of a detached session was restored
+    public MessageTransferHandle[] transfers;   // Chunked transfers still open in a resumed session
 
     public MessageConnectResult(String errorMessage) {
         super(Protocol.CMD_CONNECT, errorMessage);
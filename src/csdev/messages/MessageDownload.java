@@ -16,6 +16,7 @@ public class MessageDownload extends Message implements Serializable {
     public String filePath;     // Full path to file on server
     public long offset;         // File offset for partial download
     public long length;         // Number of bytes to download
+    public boolean digest;      // Also return the SHA-256 of the whole file
 
     public MessageDownload(String filePath){
         super(Protocol.CMD_DOWNLOAD);
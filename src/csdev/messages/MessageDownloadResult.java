@@ -1,6 +1,7 @@
 package csdev.messages;
 
 import csdev.Protocol;
+import csdev.utils.Checksums;
 
 import java.io.Serializable;
 
@@ -19,6 +20,9 @@ public class MessageDownloadResult extends MessageResult implements Serializable
     public byte[] fileData;         // File content
     public boolean isPartial;       // Whether this is a partial download
     public boolean isFragmented;    // Whether this is fragmented UDP
+    public String sha256;           // Hex SHA-256 of the whole file, sent with whole files or if requested
+    public long crc32c;             // CRC32C of fileData, -1 if not sent
+    public boolean isDirectory;     // Path is a directory, it is sent as an archive
 
     public MessageDownloadResult(String errorMessage){
         super(Protocol.CMD_DOWNLOAD, errorMessage);
@@ -28,6 +32,7 @@ public class MessageDownloadResult extends MessageResult implements Serializable
         this.fileData = null;
         this.isPartial = false;
         this.isFragmented = false;
+        this.crc32c = -1;
     }
 
     public MessageDownloadResult(String fileName, long fileSize, byte[] fileData,  boolean isPartial, boolean isFragmented){
@@ -38,5 +43,23 @@ public class MessageDownloadResult extends MessageResult implements Serializable
         this.dataSize = fileData != null ? fileData.length : 0;
         this.isPartial = isPartial;
         this.isFragmented = isFragmented;
+        this.crc32c = fileData != null ? Checksums.crc32c(fileData, 0, fileData.length) : -1;
+    }
+
+    /**
+     * Checks the received data against the checksums sent with it
+     * @return description of the mismatch, null if the data is intact
+     */
+    public String verify() {
+        if (fileData == null) {
+            return null;
+        }
+        if (crc32c >= 0 && Checksums.crc32c(fileData, 0, (int) dataSize) != crc32c) {
+            return "CRC32C mismatch in received data";
+        }
+        if (!isPartial && sha256 != null && !Checksums.sha256(fileData, 0, (int) dataSize).equals(sha256)) {
+            return "SHA-256 mismatch in received file";
+        }
+        return null;
     }
 }
@@ -18,6 +18,20 @@ public class MessageExecuteResult extends MessageResult implements Serializable
     public int exitCode;         // Command exit code
     public long executionTime;   // Execution time in milliseconds
     public String workingDir;    // Working directory where command was executed
+    public boolean cached;       // Result served from server command cache
+    public boolean streamed;     // Output was sent as fragments before this result
+    public boolean truncated;    // Streaming stopped early, part of the output was not sent
+    public String outputId;      // Id of spilled stdout capture (null if output is complete)
+    public long outputSize;      // Total stdout size in bytes
+    public String errorId;       // Id of spilled stderr capture (null if error is complete)
+    public long errorSize;       // Total stderr size in bytes
+    public long outputHeadSize;  // Bytes of stdout in output, offset of the next page
+    public long errorHeadSize;   // Bytes of stderr in error, offset of the next page
+    public long cpuUserMillis;   // CPU time in user mode
+    public long cpuSystemMillis; // CPU time in kernel mode
+    public long peakRssKb;       // Peak resident set size in KB
+    public long ioReadBytes;     // Bytes read from storage
+    public long ioWriteBytes;    // Bytes written to storage
 
     public MessageExecuteResult(String errorMessage){
         super(Protocol.CMD_EXECUTE, errorMessage);
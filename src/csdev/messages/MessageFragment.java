@@ -1,11 +1,19 @@
 package csdev.messages;
 
+import csdev.utils.Checksums;
+
 import java.io.Serializable;
 
 public class MessageFragment extends Message implements Serializable {
     public static final byte FRAGMENT_START = 1;
     public static final byte FRAGMENT_MIDDLE = 2;
     public static final byte FRAGMENT_END = 3;
+    public static final byte FRAGMENT_ABORT = 4;    // Sender failed, data of the stream is discarded
+
+    public static final byte STREAM_FILE = 0;       // File transfer data
+    public static final byte STREAM_STDOUT = 1;     // Command stdout
+    public static final byte STREAM_STDERR = 2;     // Command stderr
+    public static final byte STREAM_ARCHIVE = 3;    // Directory archive
 
     public byte fragmentType;
     public int totalFragments;
@@ -14,6 +22,9 @@ public class MessageFragment extends Message implements Serializable {
     public String fileName;
     public byte[] data;
     public int dataSize;
+    public byte streamType = STREAM_FILE;   // Kind of data carried
+    public long crc32c;                     // CRC32C of data, -1 if not sent
+    public String sha256;                   // Hex SHA-256 of the whole file, sent with the start fragment
 
     public MessageFragment(byte fragmentType, int totalFragments, int fragmentIndex, String fileId, String fileName, byte[] data, int dataSize) {
         this.fragmentType = fragmentType;
@@ -23,5 +34,13 @@ public class MessageFragment extends Message implements Serializable {
         this.fileName = fileName;
         this.data = data;
         this.dataSize = dataSize;
+        this.crc32c = Checksums.crc32c(data, 0, dataSize);
+    }
+
+    /**
+     * True if the data matches the CRC32C sent with it
+     */
+    public boolean isIntact() {
+        return crc32c < 0 || Checksums.crc32c(data, 0, dataSize) == crc32c;
     }
 }
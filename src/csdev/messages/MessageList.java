@@ -0,0 +1,30 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageList class: list directory entries
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageList extends Message implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String path;         // Directory, session directory if empty
+    public int offset;          // First entry to return
+    public int limit;           // Max entries to return, 0 for all
+
+    public MessageList(String path) {
+        this(path, 0, 0);
+    }
+
+    public MessageList(String path, int offset, int limit) {
+        super(Protocol.CMD_LIST);
+        this.path = path;
+        this.offset = offset;
+        this.limit = limit;
+    }
+}
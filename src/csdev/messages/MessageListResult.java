@@ -0,0 +1,61 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageListResult class: directory entries sorted by name
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageListResult extends MessageResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final char FILE = 'f';
+    public static final char DIRECTORY = 'd';
+    public static final char LINK = 'l';
+    public static final char OTHER = 'o';
+
+    /**
+     * Directory entry, links are not followed
+     */
+    public static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final String name;       // File name
+        public final long size;         // Size in bytes
+        public final long modified;     // Last modification, ms since epoch
+        public final char type;         // FILE, DIRECTORY, LINK or OTHER
+
+        public Entry(String name, long size, long modified, char type) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+            this.type = type;
+        }
+    }
+
+    public String directory;    // Absolute path of the listed directory
+    public Entry[] entries;     // Requested range of entries
+    public int offset;          // Index of the first returned entry
+    public int total;           // Number of entries in the directory
+    public boolean cached;      // Served from the directory cache
+
+    public MessageListResult(String errorMessage) {
+        super(Protocol.CMD_LIST, errorMessage);
+        this.directory = "";
+        this.entries = new Entry[0];
+    }
+
+    public MessageListResult(String directory, Entry[] entries, int offset, int total, boolean cached) {
+        super(Protocol.CMD_LIST);
+        this.directory = directory;
+        this.entries = entries;
+        this.offset = offset;
+        this.total = total;
+        this.cached = cached;
+    }
+}
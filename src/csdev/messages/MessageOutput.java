@@ -0,0 +1,26 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageOutput class: read a range of captured command output
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageOutput extends Message implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String outputId;     // Capture id from MessageExecuteResult
+    public long offset;         // Range offset in bytes
+    public int length;          // Range length in bytes
+
+    public MessageOutput(String outputId, long offset, int length) {
+        super(Protocol.CMD_OUTPUT);
+        this.outputId = outputId;
+        this.offset = offset;
+        this.length = length;
+    }
+}
@@ -0,0 +1,36 @@
+package csdev.messages;
+
+import csdev.Protocol;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageOutputResult class: captured command output range
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageOutputResult extends MessageResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String outputId;     // Capture id
+    public long offset;         // Range offset in bytes
+    public long totalSize;      // Total captured size in bytes
+    public byte[] data;         // Output bytes
+
+    public MessageOutputResult(String errorMessage) {
+        super(Protocol.CMD_OUTPUT, errorMessage);
+        this.outputId = "";
+        this.offset = 0;
+        this.totalSize = 0;
+        this.data = null;
+    }
+
+    public MessageOutputResult(String outputId, long offset, long totalSize, byte[] data) {
+        super(Protocol.CMD_OUTPUT);
+        this.outputId = outputId;
+        this.offset = offset;
+        this.totalSize = totalSize;
+        this.data = data;
+    }
+}
@@ -0,0 +1,38 @@
+package csdev.messages;
+
+import java.io.Serializable;
+
+/**
+ * <p>MessageTransferHandle class: file opened for chunked transfer
+ * @author cin-tie
+ * @version 1.0
+ */
+public class MessageTransferHandle extends MessageResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public String handleId;     // Id passed to readChunk/writeChunk/closeTransfer
+    public String fileName;     // File name
+    public String filePath;     // Absolute path on server
+    public long fileSize;       // File size in bytes (expected size for uploads)
+    public int maxChunk;        // Largest chunk accepted by the server
+    public long received;       // Upload bytes received without a gap, where a resumed upload continues
+
+    public MessageTransferHandle(byte id, String errorMessage) {
+        super(id, errorMessage);
+        this.handleId = "";
+        this.fileName = "";
+        this.filePath = "";
+        this.fileSize = 0;
+        this.maxChunk = 0;
+    }
+
+    public MessageTransferHandle(byte id, String handleId, String fileName, String filePath, long fileSize, int maxChunk) {
+        super(id);
+        this.handleId = handleId;
+        this.fileName = fileName;
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.maxChunk = maxChunk;
+    }
+}
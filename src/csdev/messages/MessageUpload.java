@@ -1,11 +1,16 @@
 package csdev.messages;
 
 import csdev.Protocol;
+import csdev.utils.Checksums;
 
 import java.io.Serializable;
 
 /**
  * <p>MessageUpload class: upload file to server
+ * <p>A file is sent whole in one message, or in chunks: OPEN is answered with a
+ * {@link MessageTransferHandle}, CHUNK messages with positions may be sent over several
+ * connections of the session, COMMIT checks the SHA-256 and moves the file to its target.
+ * The CRC32C of the carried data is computed when the message is created.
  * @author cin-tie
  * @version 1.0
  */
@@ -13,11 +18,22 @@ public class MessageUpload extends Message implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    public static final byte SINGLE = 0;
+    public static final byte OPEN = 1;
+    public static final byte CHUNK = 2;
+    public static final byte COMMIT = 3;
+    public static final byte ABORT = 4;
+
     public String fileName;     // Target file name on server
     public String filePath;     // Target path on server
     public long fileSize;       // File size in bytes
     public byte[] fileData;     // File content
     public boolean overwrite;   // Overwrite if exists
+    public byte part = SINGLE;  // Whole file or step of a chunked upload
+    public String handleId;     // Chunked upload handle
+    public long offset;         // File position of a chunk
+    public String sha256;       // Hex SHA-256 of the whole file, checked on COMMIT or with the data
+    public long crc32c;         // CRC32C of fileData, -1 if not sent
 
     public  MessageUpload(String fileName, String filePath, byte[] fileData){
         super(Protocol.CMD_UPLOAD);
@@ -26,6 +42,7 @@ public class MessageUpload extends Message implements Serializable {
         this.fileData = fileData;
         this.overwrite = false;
         this.fileSize = fileData != null ? fileData.length : 0;
+        this.crc32c = fileData != null ? Checksums.crc32c(fileData, 0, fileData.length) : -1;
     }
 
     public MessageUpload(String fileName, String filePath, byte[] fileData, boolean overwrite){
@@ -35,5 +52,21 @@ public class MessageUpload extends Message implements Serializable {
         this.fileData = fileData;
         this.overwrite = overwrite;
         this.fileSize = fileData != null ? fileData.length : 0;
+        this.crc32c = fileData != null ? Checksums.crc32c(fileData, 0, fileData.length) : -1;
+    }
+
+    /**
+     * Checks the carried data against the checksums sent with it
+     * @return description of the mismatch, null if the data is intact
+     */
+    public String verify() {
+        byte[] data = fileData != null ? fileData : new byte[0];
+        if (crc32c >= 0 && Checksums.crc32c(data, 0, data.length) != crc32c) {
+            return "CRC32C mismatch in " + (part == CHUNK ? "chunk at " + offset : "file data");
+        }
+        if (part == SINGLE && sha256 != null && !Checksums.sha256(data, 0, data.length).equals(sha256)) {
+            return "SHA-256 mismatch in file data";
+        }
+        return null;
     }
 }
@@ -16,6 +16,7 @@ public class MessageUploadResult extends MessageResult implements Serializable {
     public String filePath;         // Uploaded file path
     public long fileSize;           // Uploaded file size
     public boolean fileExists;      // Existence
+    public String sha256;           // Hex SHA-256 of the stored file
 
     public MessageUploadResult(String errorMessage) {
         super(Protocol.CMD_UPLOAD, errorMessage);
@@ -0,0 +1,160 @@
+package csdev.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Admission control shared by all transports
+ * <p>New connections are checked before a session is allocated: against the session limit,
+ * a global token bucket and a token bucket per source address, so connect storms are turned
+ * away cheaply. At login the number of sessions of the user is limited as well.
+ * <br>Options:
+ * <br>remoteshell.admission.rate - connections per second for all clients, 0 disables the limit
+ * <br>remoteshell.admission.burst - connections above the rate accepted at once
+ * <br>remoteshell.admission.ipRate - connections per second from one address, 0 disables the limit
+ * <br>remoteshell.admission.ipBurst - connections from one address accepted at once
+ * <br>remoteshell.admission.maxPerUser - sessions per username, 0 for no limit
+ * @author cin-tie
+ * @version 1.0
+ */
+public class AdmissionController {
+
+    private static final int MAX_TRACKED = 4096;        // Source buckets kept, further sources share one bucket
+    private static final long SWEEP_INTERVAL = 10000;   // ms between scans for idle source buckets
+
+    private static final AdmissionController instance = new AdmissionController(
+            ServerConfig.getLong("admission.rate", 100),
+            ServerConfig.getLong("admission.burst", 200),
+            ServerConfig.getLong("admission.ipRate", 10),
+            ServerConfig.getLong("admission.ipBurst", 20),
+            ServerConfig.getInt("admission.maxPerUser", 0));
+
+    public static AdmissionController getInstance() {
+        return instance;
+    }
+
+    /**
+     * Refills continuously at a fixed rate up to its capacity
+     */
+    private static class TokenBucket {
+        private final double rate;      // Tokens per ms
+        private final double capacity;
+        private double tokens;
+        private long last;
+
+        TokenBucket(long perSecond, long burst) {
+            this.rate = perSecond / 1000.0;
+            this.capacity = Math.max(1, burst);
+            this.tokens = capacity;
+            this.last = System.currentTimeMillis();
+        }
+
+        synchronized boolean tryAcquire() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - last) * rate);
+            last = now;
+        }
+    }
+
+    private final TokenBucket global;
+    private final long ipRate;
+    private final long ipBurst;
+    private final int maxPerUser;
+    private final ConcurrentHashMap<String, TokenBucket> sources = new ConcurrentHashMap<>();
+    private final TokenBucket overflow;
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedFull = new LongAdder();
+    private final LongAdder rejectedRate = new LongAdder();
+    private final LongAdder rejectedSource = new LongAdder();
+    private final LongAdder rejectedUser = new LongAdder();
+
+    AdmissionController(long rate, long burst, long ipRate, long ipBurst, int maxPerUser) {
+        this.global = rate > 0 ? new TokenBucket(rate, burst) : null;
+        this.ipRate = ipRate;
+        this.ipBurst = ipBurst;
+        this.overflow = new TokenBucket(ipRate, ipBurst);
+        this.maxPerUser = maxPerUser;
+    }
+
+    /**
+     * Checks a new connection before any session state is created
+     * @param source client address, null if the client is exempt from the per-source limit
+     * @return rejection reason, null if the connection is admitted
+     */
+    public String checkConnection(String source) {
+        if (ServerMain.getNumUsers() >= ServerMain.MAX_USERS) {
+            rejectedFull.increment();
+            return "max users reached";
+        }
+        if (ipRate > 0 && source != null && !sourceBucket(source).tryAcquire()) {
+            rejectedSource.increment();
+            return "connection rate limit for " + source;
+        }
+        if (global != null && !global.tryAcquire()) {
+            rejectedRate.increment();
+            return "server connection rate limit";
+        }
+        admitted.increment();
+        return null;
+    }
+
+    /**
+     * Checks the session limit of a user logging in
+     * @return rejection reason, null if the user may open another session
+     */
+    public String checkUser(String username) {
+        if (maxPerUser > 0 && ServerMain.getSessionRegistry().countUser(username) >= maxPerUser) {
+            rejectedUser.increment();
+            return "Too many sessions for user " + username + " (max " + maxPerUser + ")";
+        }
+        return null;
+    }
+
+    private TokenBucket sourceBucket(String source) {
+        TokenBucket bucket = sources.get(source);
+        if (bucket != null) {
+            return bucket;
+        }
+        sweep();
+        if (sources.size() >= MAX_TRACKED) {
+            // Sources beyond the limit are not tracked one by one, they share a bucket
+            return overflow;
+        }
+        return sources.computeIfAbsent(source, s -> new TokenBucket(ipRate, ipBurst));
+    }
+
+    /**
+     * Drops idle source buckets, at most once per interval whatever the connect rate
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + SWEEP_INTERVAL)) {
+            return;
+        }
+        // Full buckets carry no state, a new one would be identical
+        sources.values().removeIf(TokenBucket::isFull);
+    }
+
+    public String getStats() {
+        return "admitted=" + admitted.sum() + ", tracked sources=" + sources.size() + ", rejected: full=" + rejectedFull.sum() + " rate=" + rejectedRate.sum()
+                + " address=" + rejectedSource.sum() + " user=" + rejectedUser.sum();
+    }
+}
@@ -0,0 +1,150 @@
+package csdev.server;
+
+import csdev.messages.MessageConnect;
+import csdev.utils.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Salted password hashes of users and the shared server password
+ * <p>Passwords are stored as PBKDF2-HMAC-SHA256 hashes and compared in constant time.
+ * A client that presents a valid session token from {@link SessionTokens} skips the
+ * password check. Users file lines are <code>username:iterations:salt:hash</code> (Base64),
+ * create them with <code>java -cp build csdev.server.CredentialStore user password</code>.
+ * <br>Options:
+ * <br>remoteshell.auth.users - users file; listed users log in with their own password
+ * @author cin-tie
+ * @version 1.0
+ */
+public class CredentialStore {
+
+    public static final int ITERATIONS = 65536;
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final CredentialStore instance = new CredentialStore(ServerConfig.getString("auth.users", ""));
+
+    public static CredentialStore getInstance() {
+        return instance;
+    }
+
+    private static class Credential {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        boolean matches(String password) {
+            return MessageDigest.isEqual(hash, pbkdf2(password, salt, iterations));
+        }
+    }
+
+    private final ConcurrentHashMap<String, Credential> users = new ConcurrentHashMap<>();
+    private volatile Credential serverPassword;     // Shared password for users not in the file
+
+    CredentialStore(String usersFile) {
+        if (!usersFile.isEmpty()) {
+            load(usersFile);
+        }
+    }
+
+    private void load(String usersFile) {
+        try {
+            int lineNo = 0;
+            for (String line : Files.readAllLines(Paths.get(usersFile), StandardCharsets.UTF_8)) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split(":");
+                try {
+                    users.put(parts[0], new Credential(Integer.parseInt(parts[1]),
+                            Base64.getDecoder().decode(parts[2]), Base64.getDecoder().decode(parts[3])));
+                } catch (RuntimeException e) {
+                    Logger.logWarning("Invalid entry in " + usersFile + " line " + lineNo + ", skipped");
+                }
+            }
+            Logger.logServer("Loaded " + users.size() + " user credentials from " + usersFile);
+        } catch (IOException e) {
+            Logger.logError("Failed to read users file " + usersFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the shared password, only its hash is kept
+     */
+    public void setServerPassword(String password) {
+        serverPassword = password == null || password.isEmpty() ? null : create(password);
+    }
+
+    /**
+     * True if connecting users must present a password or token
+     */
+    public boolean isPasswordRequired() {
+        return serverPassword != null || !users.isEmpty();
+    }
+
+    /**
+     * Checks a connect request: a valid token for the user, else the user's own password,
+     * else the shared server password; an expired token falls back to the password
+     */
+    public boolean authenticate(MessageConnect msg) {
+        if (msg.username == null) {
+            return false;
+        }
+        if (msg.token != null && msg.username.equals(SessionTokens.getInstance().verify(msg.token))) {
+            return true;
+        }
+        String password = msg.password == null ? "" : msg.password;
+        Credential own = users.get(msg.username);
+        if (own != null) {
+            return own.matches(password);
+        }
+        Credential shared = serverPassword;
+        return shared == null ? users.isEmpty() : shared.matches(password);
+    }
+
+    private static Credential create(String password) {
+        byte[] salt = new byte[SALT_SIZE];
+        new SecureRandom().nextBytes(salt);
+        return new Credential(ITERATIONS, salt, pbkdf2(password, salt, ITERATIONS));
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        }
+    }
+
+    /**
+     * Prints a users file line for the given user and password
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Use: username password");
+            return;
+        }
+        Credential c = create(args[1]);
+        Base64.Encoder b64 = Base64.getEncoder();
+        System.out.println(args[0] + ":" + c.iterations + ":" + b64.encodeToString(c.salt) + ":" + b64.encodeToString(c.hash));
+    }
+}
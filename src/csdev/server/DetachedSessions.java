@@ -0,0 +1,187 @@
+package csdev.server;
+
+import csdev.messages.MessageConnect;
+import csdev.threads.FileTransfer;
+import csdev.threads.OutputCapture;
+import csdev.threads.session.ClientSession;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>State of sessions whose connection broke, kept for resumption
+ * <p>A session that loses its connection (TCP/Unix socket closed, UDP peer not responding,
+ * RMI lease expired) is parked here for a grace period, keyed by the session id of its token.
+ * A client that connects with that token over any transport gets the working directory,
+ * spilled command output and open chunked transfers back. Explicit disconnects and server shutdown don't park sessions.
+ * <br>Options:
+ * <br>remoteshell.session.resumeGrace - ms a broken session can be resumed, 0 disables resumption
+ * @author cin-tie
+ * @version 1.0
+ */
+public class DetachedSessions {
+
+    private static final DetachedSessions instance = new DetachedSessions(ServerConfig.getLong("session.resumeGrace", 60000));
+
+    public static DetachedSessions getInstance() {
+        return instance;
+    }
+
+    /**
+     * Parked session state
+     */
+    public static final class Detached {
+        private final String sessionId;
+        private final String username;
+        private final String usernameFull;
+        private final String protocol;
+        private final String currentDirectory;
+        private final List<String> outputs;     // Spilled output capture ids, owned until resumed or expired
+        private final List<FileTransfer> transfers;     // Open chunked transfers, closed if not resumed
+
+        private Detached(ClientSession session, List<String> outputs, List<FileTransfer> transfers) {
+            this.sessionId = session.getSessionId();
+            this.username = session.getUsername();
+            this.usernameFull = session.getUsernameFull();
+            this.protocol = session.getProtocol();
+            this.currentDirectory = session.getCurrentDirectory();
+            this.outputs = outputs;
+            this.transfers = transfers;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getUsernameFull() {
+            return usernameFull;
+        }
+
+        /**
+         * Transport the session was detached from
+         */
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public String getCurrentDirectory() {
+            return currentDirectory;
+        }
+
+        public List<String> getOutputs() {
+            return outputs;
+        }
+
+        public List<FileTransfer> getTransfers() {
+            return transfers;
+        }
+    }
+
+    private final long grace;
+    private final ConcurrentHashMap<String, Detached> detached = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    DetachedSessions(long grace) {
+        this.grace = grace;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "SessionExpiry");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean isEnabled() {
+        return grace > 0;
+    }
+
+    public long getGrace() {
+        return grace;
+    }
+
+    /**
+     * Parks the state of a session; the outputs are released and the transfers closed
+     * when the grace period ends
+     * @return false if resumption is disabled or the session has no user, nothing is kept then
+     */
+    public boolean keep(ClientSession session, List<String> outputs, List<FileTransfer> transfers) {
+        if (!isEnabled() || session.getUsername() == null) {
+            return false;
+        }
+        Detached d = new Detached(session, outputs, transfers);
+        Detached old = detached.put(d.sessionId, d);
+        if (old != null) {
+            release(old);
+        }
+        timer.schedule(() -> expire(d), grace, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Detaches the live session named by the token of a connect request. A client resumes
+     * only after its connection broke, so a session the server still holds (half-open TCP
+     * connection, UDP peer not timed out yet) is stale and replaced
+     */
+    public void takeOver(MessageConnect msg) {
+        if (!isEnabled() || msg.token == null) {
+            return;
+        }
+        SessionTokens.Token t = SessionTokens.getInstance().parse(msg.token);
+        if (t == null || !t.username.equals(msg.username)) {
+            return;
+        }
+        ClientSession live = ServerMain.getSessionRegistry().find(t.sessionId);
+        if (live != null) {
+            live.connectionLost();
+        }
+    }
+
+    /**
+     * Removes the parked session named by a token
+     * @return the state, null if the token is invalid, belongs to another user or nothing is parked
+     */
+    public Detached take(String token, String username) {
+        SessionTokens.Token t = SessionTokens.getInstance().parse(token);
+        if (t == null || !t.username.equals(username)) {
+            return null;
+        }
+        Detached d = detached.remove(t.sessionId);
+        if (d != null) {
+            resumed.increment();
+        }
+        return d;
+    }
+
+    private void expire(Detached d) {
+        if (detached.remove(d.sessionId, d)) {
+            expired.increment();
+            release(d);
+        }
+    }
+
+    private static void release(Detached d) {
+        d.outputs.forEach(OutputCapture::release);
+        d.transfers.forEach(FileTransfer::close);
+    }
+
+    public int size() {
+        return detached.size();
+    }
+
+    public String getStats() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+        return "grace=" + grace + "ms, detached=" + detached.size() + ", resumed=" + resumed.sum() + ", expired=" + expired.sum();
+    }
+}
@@ -0,0 +1,45 @@
+package csdev.server;
+
+import csdev.utils.Logger;
+
+/**
+ * <p>Server tuning options
+ * <br>Options are read from system properties prefixed with "remoteshell.",
+ * e.g. <code>-Dremoteshell.cache.commands=uptime,df</code>
+ * @author cin-tie
+ * @version 1.0
+ */
+public class ServerConfig {
+
+    public static final String PREFIX = "remoteshell.";
+
+    public static String getString(String name, String def) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null ? def : value.trim();
+    }
+
+    public static long getLong(String name, long def) {
+        String value = getString(name, null);
+        if (value == null || value.isEmpty()) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Logger.logWarning("Invalid value for " + PREFIX + name + ": " + value + ", using " + def);
+            return def;
+        }
+    }
+
+    public static int getInt(String name, int def) {
+        return (int) getLong(name, def);
+    }
+
+    public static boolean getBoolean(String name, boolean def) {
+        String value = getString(name, null);
+        if (value == null || value.isEmpty()) {
+            return def;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+    }
+}
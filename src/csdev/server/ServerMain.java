@@ -1,40 +1,28 @@
 package csdev.server;
 
-import csdev.Protocol;
-import csdev.threads.RmiServerThread;
-import csdev.threads.ServerStopThread;
-import csdev.threads.TcpServerThread;
-import csdev.threads.UdpServerThread;
-import csdev.threads.session.ClientSession;
-import csdev.threads.session.UdpClientSession;
+import csdev.threads.*;
 import csdev.utils.Logger;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.Arrays;
-import java.util.TreeMap;
-import java.util.stream.Stream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * <p>Main class of server application for remote shell
  * <p>Realized in console
  * <br>Use arguments: [password]
  * @author cin-tie
- * @version 1.4
+ * @version 1.5
  */
 public class ServerMain {
 
     public static final int MAX_USERS = 50;
-    private static ServerSocket tcpServerSocket;
-    private static UdpServerThread udpServerThread;
-    private static RmiServerThread rmiServerThread;
-    private static String serverPassword;
-    private static boolean passwordRequired = false;
+    private static final List<Transport> transports = Collections.synchronizedList(new ArrayList<>());
     private static Object syncFlags = new Object();
     private static boolean stopFlag = false;
-    private static Object syncUsers = new Object();
-    private static TreeMap<String, TcpServerThread> users = new TreeMap<>();
+    private static final SessionRegistry sessions = new SessionRegistry();
 
 
     public static void main(String[] args) {
@@ -46,60 +34,37 @@ public class ServerMain {
             return;
         }
 
-        serverPassword = args.length == 1 ? args[0] : "";
-        System.out.println("Server Password: " + serverPassword);
-        passwordRequired = !serverPassword.isEmpty();
+        CredentialStore credentials = CredentialStore.getInstance();
+        credentials.setServerPassword(args.length == 1 ? args[0] : "");
+        Logger.logServer("Password authentication: " + (credentials.isPasswordRequired() ? "ENABLED" : "DISABLED"));
+        CgroupManager.getInstance();
 
-        Logger.logServer("Password authentication: " + (passwordRequired ? "ENABLED" : "DISABLED"));
-
-        try(ServerSocket serv = new ServerSocket(Protocol.PORT)) {
-
-            tcpServerSocket = serv;
-            try {
-                udpServerThread = new UdpServerThread();
-                udpServerThread.start();
-                Logger.logServer("UDP Server started on port " + Protocol.PORT);
-            } catch (IOException e) {
-                Logger.logError("Failed to start UDP server: " + e.getMessage());
+        try {
+            for (Transport transport : createTransports()) {
+                try {
+                    transport.startServer();
+                    transports.add(transport);
+                } catch (IOException e) {
+                    Logger.logError("Failed to start " + transport.getProtocol() + " server: " + e.getMessage());
+                }
             }
-
-            try {
-                rmiServerThread = new RmiServerThread();
-                rmiServerThread.start();
-                Logger.logServer("RMI Server started on port " + Protocol.RMI_PORT);
-            } catch (IOException e) {
-                Logger.logError("Failed to start RMI server: " + e.getMessage());
+            if (transports.isEmpty()) {
+                Logger.logError("No transport could be started");
+                return;
             }
 
-            Logger.logServer("TCP Server initialized on port " + tcpServerSocket.getLocalPort());
-
             ServerStopThread stopThread = new ServerStopThread();
             stopThread.start();
             Logger.logServer("Stop thread started");
 
-            while (true) {
-                Socket socket = accept(serv);
-                if (socket != null) {
-                    if (ServerMain.getNumUsers() < ServerMain.MAX_USERS) {
-                        logConnection("TCP: " + socket.getInetAddress().getHostName() + " connected");
-                        TcpServerThread server = new TcpServerThread(socket);
-                        server.start();
-                    } else {
-                        logConnection("TCP: " + socket.getInetAddress().getHostName() + " connection rejected - max users reached");
-                        socket.close();
-                    }
-                }
-                if (ServerMain.getStopFlag()) {
-                    break;
+            synchronized (ServerMain.syncFlags) {
+                while (!stopFlag) {
+                    ServerMain.syncFlags.wait();
                 }
             }
-
-        } catch (IOException e){
-            if (!getStopFlag()) {
-                Logger.logError("Server error: " + e.getMessage());
-            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            stopAllUsers();
             waitForUsersToDisconnect();
             Logger.logServer("Server stopped");
         }
@@ -111,71 +76,58 @@ public class ServerMain {
         }
     }
 
-    static void waitKeyToStop(){
-        Logger.logInfo("Press enter to stop...");
+    /**
+     * Built-in transports followed by the ones named in remoteshell.transports
+     */
+    private static List<Transport> createTransports() {
+        List<Transport> list = new ArrayList<>();
+        list.add(new TcpTransport());
         try {
-            System.in.read();
-        } catch (Exception e) {
+            list.add(new UdpServerThread());
+        } catch (IOException e) {
+            Logger.logError("Failed to start UDP server: " + e.getMessage());
         }
-    }
-
-    public static boolean isPasswordRequired(){
-        return passwordRequired;
-    }
-
-    public static String getServerPassword(){
-        return serverPassword;
-    }
-
-    public static Socket accept(ServerSocket serverSocket) {
-        assert(serverSocket != null);
         try {
-            serverSocket.setSoTimeout(1000);
-            Socket socket = serverSocket.accept();
-            return socket;
+            list.add(new RmiServerThread());
         } catch (IOException e) {
-
+            Logger.logError("Failed to start RMI server: " + e.getMessage());
         }
-        return null;
+        String unixPath = ServerConfig.getString("unix.path", "");
+        if (!unixPath.isEmpty()) {
+            list.add(new UnixTransport(Paths.get(unixPath)));
+        }
+        for (String name : ServerConfig.getString("transports", "").split(",")) {
+            if (name.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                list.add(Class.forName(name.trim()).asSubclass(Transport.class).getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                Logger.logError("Failed to load transport " + name.trim() + ": " + e);
+            }
+        }
+        return list;
     }
 
-    private static void stopAllServers() {
+    static void waitKeyToStop(){
+        Logger.logInfo("Press enter to stop...");
         try {
-            if(tcpServerSocket != null && !tcpServerSocket.isClosed()){
-                tcpServerSocket.close();
-            }
-        } catch (IOException e) {
-            Logger.logError("Error closing TCP server socket: " + e.getMessage());
+            System.in.read();
+        } catch (Exception e) {
         }
+    }
 
-        if(udpServerThread != null && udpServerThread.isAlive()){
-            udpServerThread.stopServer();
-            try {
-                udpServerThread.join(5000);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                Logger.logWarning("Interrupted while waiting for UDP server to stop");
-            }
+    private static void stopAllServers() {
+        for (Transport transport : getTransports()) {
+            transport.stopServer();
         }
-
-        if(rmiServerThread != null && rmiServerThread.isAlive()){
-            rmiServerThread.stopServer();
+        for (Transport transport : getTransports()) {
             try {
-                rmiServerThread.join(5000);
+                transport.awaitTermination(5000);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                Logger.logWarning("Interrupted while waiting for RMI server to stop");
-            }
-        }
-    }
-
-    private static void stopAllUsers() {
-        String[] users = getUsers();
-        Logger.logInfo("Disconnecting all users: " + users.length + " active sessions");
-        for (String user : users) {
-            TcpServerThread ut = getUser(user);
-            if (ut != null) {
-                ut.gracefulDisconnect();
+                Logger.logWarning("Interrupted while waiting for " + transport.getProtocol() + " server to stop");
+                return;
             }
         }
     }
@@ -215,67 +167,38 @@ public class ServerMain {
     public static void setStopFlag(boolean stopFlag) {
         synchronized (ServerMain.syncFlags) {
             ServerMain.stopFlag = stopFlag;
+            ServerMain.syncFlags.notifyAll();
         }
     }
 
-    public static TcpServerThread getUser(String user) {
-        synchronized (ServerMain.syncUsers) {
-            return ServerMain.users.get(user);
-        }
-    }
-
-    public static TcpServerThread registerUser(String username, TcpServerThread user) {
-        synchronized (ServerMain.syncUsers) {
-            TcpServerThread old = ServerMain.users.get(username);
-            if(old == null) {
-                ServerMain.users.put(username, user);
-                logInfo("Registered user: " + username + " (Total: " + users.size() + ")");
-            }
-            return old;
-        }
-    }
-
-    public static TcpServerThread setUser(String username, TcpServerThread user) {
-        synchronized (ServerMain.syncUsers) {
-            TcpServerThread res = ServerMain.users.put(username, user);
-            if (user == null) {
-                ServerMain.users.remove(username);
-                logInfo("User unregistered: " + username + " (Remaining: " + users.size() + ")");
-            }
-            return res;
-        }
+    public static SessionRegistry getSessionRegistry() {
+        return sessions;
     }
 
+    /**
+     * Names of connected users of all transports
+     */
     public static String[] getUsers() {
-        synchronized (ServerMain.syncUsers) {
-            String[] tcp = ServerMain.users.keySet().toArray(new String[0]);
-            String[] udp = udpServerThread.getUsers();
-            String[] res = Stream.concat(Arrays.stream(tcp), Arrays.stream(udp)).toArray(String[]::new);
-            return res;
-        }
+        return sessions.getUsernames();
     }
 
     public static int getNumUsers() {
-        synchronized (ServerMain.syncUsers) {
-            return ServerMain.users.keySet().size() + udpServerThread.getNumUsers();
-        }
-    }
-
-    private static void logInfo(String message) {
-        System.out.print(" ");
-        Logger.logInfo(message);
-        restorePrompt();
+        return sessions.size();
     }
 
-    private static void logConnection(String message) {
-        System.out.print(" ");
-        Logger.logServer(message);
-        restorePrompt();
+    public static List<Transport> getTransports() {
+        synchronized (transports) {
+            return new ArrayList<>(transports);
+        }
     }
 
-    private static void restorePrompt() {
-        System.out.print("server> ");
-        System.out.flush();
+    public static RmiServerThread getRmiServerThread() {
+        for (Transport transport : getTransports()) {
+            if (transport instanceof RmiServerThread) {
+                return (RmiServerThread) transport;
+            }
+        }
+        return null;
     }
 }
 
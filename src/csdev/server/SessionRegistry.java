@@ -0,0 +1,132 @@
+package csdev.server;
+
+import csdev.threads.session.ClientSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Registry of the user sessions of all transports
+ * <p>Reads never lock: the count is a {@link LongAdder} and lists are built from a snapshot
+ * of a {@link ConcurrentHashMap}, so accept loops and status commands don't contend with
+ * sessions connecting and disconnecting.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class SessionRegistry {
+
+    /**
+     * Registered session, tagged with its protocol
+     */
+    public static final class Entry {
+        private final long id;
+        private final String protocol;
+        private final String username;
+        private final ClientSession session;
+        private final long since;
+
+        private Entry(long id, ClientSession session) {
+            this.id = id;
+            this.protocol = session.getProtocol();
+            this.username = session.getUsername();
+            this.session = session;
+            this.since = System.currentTimeMillis();
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public ClientSession getSession() {
+            return session;
+        }
+
+        /**
+         * Registration time, ms since epoch
+         */
+        public long getSince() {
+            return since;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> perUser = new ConcurrentHashMap<>();
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Adds a session that has a username
+     */
+    public Entry register(ClientSession session) {
+        Entry entry = new Entry(ids.incrementAndGet(), session);
+        entries.put(entry.id, entry);
+        // Counted inside the map update, a concurrent unregister can't drop the count in between
+        perUser.compute(entry.username, (u, n) -> n == null ? 1 : n + 1);
+        count.increment();
+        return entry;
+    }
+
+    /**
+     * @return false if the entry was already removed
+     */
+    public boolean unregister(Entry entry) {
+        if (entry == null || entries.remove(entry.id) == null) {
+            return false;
+        }
+        count.decrement();
+        perUser.compute(entry.username, (u, n) -> n == null || n <= 1 ? null : n - 1);
+        return true;
+    }
+
+    public int size() {
+        return count.intValue();
+    }
+
+    /**
+     * Number of sessions of the user over all protocols
+     */
+    public int countUser(String username) {
+        Integer n = perUser.get(username);
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * @return the session with the given session id, null if none is registered
+     */
+    public ClientSession find(String sessionId) {
+        for (Entry entry : entries.values()) {
+            if (entry.session.getSessionId().equals(sessionId)) {
+                return entry.session;
+            }
+        }
+        return null;
+    }
+
+    public List<Entry> snapshot() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Usernames of all sessions, sorted
+     */
+    public String[] getUsernames() {
+        return entries.values().stream().map(Entry::getUsername).sorted().toArray(String[]::new);
+    }
+
+    public Map<String, Integer> countByProtocol() {
+        Map<String, Integer> counts = new TreeMap<>();
+        for (Entry entry : entries.values()) {
+            counts.merge(entry.protocol, 1, Integer::sum);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,106 @@
+package csdev.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * <p>Signed, expiring session tokens
+ * <p>A token names a user and a session and is signed with HMAC-SHA256 under a key created
+ * at server start, so it is checked without a password hash and tokens of an earlier server
+ * run are rejected. Format: <code>base64(username \n sessionId \n expiresAt) . base64(hmac)</code>.
+ * <br>Options:
+ * <br>remoteshell.auth.tokenTtl - ms a token stays valid
+ * @author cin-tie
+ * @version 1.0
+ */
+public class SessionTokens {
+
+    private static final SessionTokens instance = new SessionTokens(ServerConfig.getLong("auth.tokenTtl", 3600000));
+
+    public static SessionTokens getInstance() {
+        return instance;
+    }
+
+    /**
+     * Verified content of a token
+     */
+    public static final class Token {
+        public final String username;
+        public final String sessionId;
+        public final long expiresAt;
+
+        Token(String username, String sessionId, long expiresAt) {
+            this.username = username;
+            this.sessionId = sessionId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final long ttl;
+    private final SecretKeySpec key;
+
+    SessionTokens(long ttl) {
+        this.ttl = ttl;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    public String issue(String username, String sessionId) {
+        String payload = username + "\n" + sessionId + "\n" + (System.currentTimeMillis() + ttl);
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder b64 = Base64.getUrlEncoder().withoutPadding();
+        return b64.encodeToString(data) + "." + b64.encodeToString(sign(data));
+    }
+
+    /**
+     * @return the token content, null if the token is malformed, forged or expired
+     */
+    public Token parse(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        try {
+            Base64.Decoder b64 = Base64.getUrlDecoder();
+            byte[] data = b64.decode(token.substring(0, dot));
+            if (!MessageDigest.isEqual(sign(data), b64.decode(token.substring(dot + 1)))) {
+                return null;
+            }
+            String[] parts = new String(data, StandardCharsets.UTF_8).split("\n");
+            if (parts.length != 3) {
+                return null;
+            }
+            long expiresAt = Long.parseLong(parts[2]);
+            return expiresAt > System.currentTimeMillis() ? new Token(parts[0], parts[1], expiresAt) : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return user of a valid token, null otherwise
+     */
+    public String verify(String token) {
+        Token t = parse(token);
+        return t == null ? null : t.username;
+    }
+
+    private byte[] sign(byte[] data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package csdev.threads;
+
+import csdev.messages.MessageExecuteResult;
+import csdev.server.ServerConfig;
+import csdev.utils.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>cgroup v2 resource limits for executed commands
+ * <p>Each command (or all commands of a user) is placed into a leaf cgroup under
+ * remoteshell.cgroup.root with the configured cpu.max, memory.max and io.max.
+ * The shell joins its cgroup before starting the command, so all children are limited too.
+ * When cgroup v2 is not available or not writable, commands run without limits.
+ * <br>Options:
+ * <br>remoteshell.cgroup.enabled - true to enable limits
+ * <br>remoteshell.cgroup.root - delegated cgroup directory (default /sys/fs/cgroup/remoteshell)
+ * <br>remoteshell.cgroup.mode - "command" (cgroup per command) or "user" (cgroup per user)
+ * <br>remoteshell.cgroup.cpuMax - cpu.max value, e.g. "50000 100000" for half a CPU
+ * <br>remoteshell.cgroup.memoryMax - memory.max value, e.g. "512M"
+ * <br>remoteshell.cgroup.ioMax - io.max value, e.g. "8:0 rbps=10485760 wbps=10485760"
+ * @author cin-tie
+ * @version 1.0
+ */
+public class CgroupManager {
+
+    private static final CgroupManager instance = new CgroupManager();
+
+    public static CgroupManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * <p>cgroup assigned to one command run
+     */
+    public class Placement {
+        private final Path dir;
+        private final boolean perCommand;
+
+        Placement(Path dir, boolean perCommand) {
+            this.dir = dir;
+            this.perCommand = perCommand;
+        }
+
+        /**
+         * Wraps a shell command so the shell moves itself into the cgroup before running it
+         */
+        public String[] wrap(String command) {
+            String procs = dir.resolve("cgroup.procs").toString();
+            return new String[]{"sh", "-c", "echo $$ > '" + procs + "' 2>/dev/null; exec sh -c \"$0\"", command};
+        }
+
+        /**
+         * Replaces sampled accounting by exact cgroup counters (per-command cgroups only)
+         */
+        public void applyStats(MessageExecuteResult result) {
+            if (!perCommand) {
+                return;
+            }
+            Map<String, Long> cpu = readKeyValues(dir.resolve("cpu.stat"));
+            if (cpu.containsKey("user_usec")) {
+                result.cpuUserMillis = cpu.get("user_usec") / 1000;
+                result.cpuSystemMillis = cpu.getOrDefault("system_usec", 0L) / 1000;
+            }
+            Long peak = readLong(dir.resolve("memory.peak"));
+            if (peak != null) {
+                result.peakRssKb = peak / 1024;
+            }
+            long read = 0, write = 0;
+            boolean hasIo = false;
+            for (String line : readLines(dir.resolve("io.stat"))) {
+                for (String field : line.split(" ")) {
+                    if (field.startsWith("rbytes=")) {
+                        read += Long.parseLong(field.substring(7));
+                        hasIo = true;
+                    } else if (field.startsWith("wbytes=")) {
+                        write += Long.parseLong(field.substring(7));
+                        hasIo = true;
+                    }
+                }
+            }
+            if (hasIo) {
+                result.ioReadBytes = read;
+                result.ioWriteBytes = write;
+            }
+        }
+
+        /**
+         * Kills every process left in a per-command cgroup, so children of a timed out
+         * command don't keep running and the cgroup can be removed
+         */
+        public void kill() {
+            if (!perCommand) {
+                return;
+            }
+            try {
+                Files.write(dir.resolve("cgroup.kill"), "1".getBytes());
+                return;
+            } catch (IOException e) {
+                // cgroup.kill needs Linux 5.14, kill the listed processes instead
+            }
+            for (String pid : readWords(dir.resolve("cgroup.procs"))) {
+                try {
+                    ProcessHandle.of(Long.parseLong(pid)).ifPresent(ProcessHandle::destroyForcibly);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        public void release() {
+            if (perCommand) {
+                removeLater(dir);
+            }
+        }
+    }
+
+    private final boolean enabled;
+    private final boolean perCommand;
+    private final Path root;
+    private final String cpuMax;
+    private final String memoryMax;
+    private final String ioMax;
+    private final Set<String> controllers = new HashSet<>();
+    private final Set<String> userGroups = Collections.synchronizedSet(new HashSet<>());
+    private final ConcurrentLinkedQueue<Path> pendingRemoval = new ConcurrentLinkedQueue<>();
+    private long counter = 0;
+
+    CgroupManager() {
+        this.root = Paths.get(ServerConfig.getString("cgroup.root", "/sys/fs/cgroup/remoteshell"));
+        this.perCommand = !"user".equalsIgnoreCase(ServerConfig.getString("cgroup.mode", "command"));
+        this.cpuMax = ServerConfig.getString("cgroup.cpuMax", "");
+        this.memoryMax = ServerConfig.getString("cgroup.memoryMax", "");
+        this.ioMax = ServerConfig.getString("cgroup.ioMax", "");
+        this.enabled = ServerConfig.getBoolean("cgroup.enabled", false) && init();
+    }
+
+    private boolean init() {
+        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
+            Logger.logWarning("cgroup limits are not supported on this OS, commands run without limits");
+            return false;
+        }
+        Path parent = root.getParent();
+        if (parent == null || !Files.exists(parent.resolve("cgroup.controllers"))) {
+            Logger.logWarning("cgroup v2 hierarchy not found at " + parent + ", commands run without limits");
+            return false;
+        }
+        try {
+            Files.createDirectories(root);
+        } catch (IOException e) {
+            Logger.logWarning("Cannot create cgroup " + root + " (" + e.getMessage() + "), commands run without limits");
+            return false;
+        }
+
+        // Controllers have to be enabled on every level down to the leaf cgroups. The parent
+        // is usually shared with the rest of the system, it is only checked, never changed
+        Set<String> delegated = new HashSet<>(readWords(parent.resolve("cgroup.subtree_control")));
+        List<String> notDelegated = new ArrayList<>();
+        for (String c : new String[]{"cpu", "memory", "io"}) {
+            if (!delegated.contains(c)) {
+                notDelegated.add(c);
+            }
+        }
+        if (!notDelegated.isEmpty()) {
+            Logger.logWarning("cgroup controllers not enabled in " + parent.resolve("cgroup.subtree_control") + ": "
+                    + String.join(", ", notDelegated) + " - enable them there to use these limits");
+        }
+        enableControllers(root);
+        controllers.addAll(readWords(root.resolve("cgroup.subtree_control")));
+
+        List<String> missing = new ArrayList<>();
+        if (!cpuMax.isEmpty() && !controllers.contains("cpu")) missing.add("cpu");
+        if (!memoryMax.isEmpty() && !controllers.contains("memory")) missing.add("memory");
+        if (!ioMax.isEmpty() && !controllers.contains("io")) missing.add("io");
+        if (!missing.isEmpty()) {
+            Logger.logWarning("cgroup controllers not delegated to " + root + ": " + String.join(", ", missing) + " - these limits are ignored");
+        }
+        Logger.logServer("cgroup limits enabled at " + root + " [mode=" + (perCommand ? "command" : "user")
+                + ", cpu.max=" + orNone(cpuMax) + ", memory.max=" + orNone(memoryMax) + ", io.max=" + orNone(ioMax) + "]");
+        return true;
+    }
+
+    private void enableControllers(Path dir) {
+        Set<String> available = new HashSet<>(readWords(dir.resolve("cgroup.controllers")));
+        StringBuilder sb = new StringBuilder();
+        for (String c : new String[]{"cpu", "memory", "io"}) {
+            if (available.contains(c)) {
+                sb.append('+').append(c).append(' ');
+            }
+        }
+        if (sb.length() > 0) {
+            try {
+                Files.write(dir.resolve("cgroup.subtree_control"), sb.toString().trim().getBytes());
+            } catch (IOException e) {
+                Logger.logDebug("Cannot enable controllers in " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates (or reuses) the cgroup for a command of the given user
+     * @return placement or null if the command should run without limits
+     */
+    public Placement prepare(String username) {
+        if (!enabled) {
+            return null;
+        }
+        removePending();
+        Path dir;
+        if (perCommand) {
+            synchronized (this) {
+                dir = root.resolve("cmd-" + ProcessHandle.current().pid() + "-" + (++counter));
+            }
+        } else {
+            dir = root.resolve("user-" + sanitize(username));
+        }
+        try {
+            if (perCommand || userGroups.add(dir.getFileName().toString())) {
+                Files.createDirectories(dir);
+                writeLimit(dir, "cpu", "cpu.max", cpuMax);
+                writeLimit(dir, "memory", "memory.max", memoryMax);
+                writeLimit(dir, "io", "io.max", ioMax);
+            }
+            return new Placement(dir, perCommand);
+        } catch (IOException e) {
+            Logger.logWarning("Cannot create cgroup " + dir + ": " + e.getMessage() + " - running without limits");
+            userGroups.remove(dir.getFileName().toString());
+            return null;
+        }
+    }
+
+    private void writeLimit(Path dir, String controller, String file, String value) {
+        if (value.isEmpty() || !controllers.contains(controller)) {
+            return;
+        }
+        try {
+            Files.write(dir.resolve(file), value.getBytes());
+        } catch (IOException e) {
+            Logger.logWarning("Cannot set " + file + "=" + value + " for " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A cgroup can only be removed once all its processes have exited;
+     * background children may outlive the command, so removal is retried later
+     */
+    private void removeLater(Path dir) {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            pendingRemoval.add(dir);
+        }
+    }
+
+    private void removePending() {
+        for (int i = pendingRemoval.size(); i > 0; i--) {
+            Path dir = pendingRemoval.poll();
+            if (dir == null) {
+                break;
+            }
+            removeLater(dir);
+        }
+    }
+
+    public String getStatus() {
+        if (!enabled) {
+            return "disabled";
+        }
+        return root + " [mode=" + (perCommand ? "command" : "user") + ", controllers=" + controllers
+                + ", pending removal=" + pendingRemoval.size() + "]";
+    }
+
+    private static String sanitize(String name) {
+        String s = name == null ? "unknown" : name.replaceAll("[^A-Za-z0-9_.-]", "_");
+        return s.startsWith(".") ? "_" + s : s;
+    }
+
+    private static String orNone(String value) {
+        return value.isEmpty() ? "none" : value;
+    }
+
+    private static List<String> readLines(Path file) {
+        try {
+            return Files.readAllLines(file);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static List<String> readWords(Path file) {
+        List<String> words = new ArrayList<>();
+        for (String line : readLines(file)) {
+            for (String w : line.trim().split("\\s+")) {
+                if (!w.isEmpty()) {
+                    words.add(w);
+                }
+            }
+        }
+        return words;
+    }
+
+    private static Long readLong(Path file) {
+        List<String> lines = readLines(file);
+        if (lines.isEmpty()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(lines.get(0).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, Long> readKeyValues(Path file) {
+        Map<String, Long> values = new HashMap<>();
+        for (String line : readLines(file)) {
+            String[] kv = line.trim().split(" ");
+            if (kv.length == 2) {
+                try {
+                    values.put(kv[0], Long.parseLong(kv[1]));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return values;
+    }
+}
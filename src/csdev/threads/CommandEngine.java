@@ -0,0 +1,449 @@
+package csdev.threads;
+
+import csdev.Protocol;
+import csdev.messages.*;
+import csdev.threads.session.ClientSession;
+import csdev.utils.Checksums;
+import csdev.utils.Logger;
+import csdev.utils.TreeArchive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * <p>Transport independent processing of session commands
+ * <p>TCP, UDP and RMI pass every command message with its session and send the
+ * returned result in their own way. Execute output may also be delivered while the
+ * command runs through an {@link CommandExecutor.OutputListener} (UDP streaming).
+ * @author cin-tie
+ * @version 1.0
+ */
+public class CommandEngine {
+
+    private CommandEngine() {
+    }
+
+    /**
+     * Processes a command message of a connected session
+     */
+    public static MessageResult process(Message msg, ClientSession session) {
+        return process(msg, session, null);
+    }
+
+    /**
+     * Processes a command message of a connected session
+     * @param listener receives execute output while the command runs, may be null
+     */
+    public static MessageResult process(Message msg, ClientSession session, CommandExecutor.OutputListener listener) {
+        try {
+            switch (msg.getId()) {
+                case Protocol.CMD_EXECUTE:
+                    return execute((MessageExecute) msg, session, listener);
+                case Protocol.CMD_UPLOAD:
+                    return upload((MessageUpload) msg, session);
+                case Protocol.CMD_DOWNLOAD:
+                    return download((MessageDownload) msg, session);
+                case Protocol.CMD_CHDIR:
+                    return changeDirectory((MessageChdir) msg, session);
+                case Protocol.CMD_GETDIR:
+                    return getCurrentDirectory(session);
+                case Protocol.CMD_OUTPUT:
+                    return readOutput((MessageOutput) msg, session);
+                case Protocol.CMD_LIST:
+                    return list((MessageList) msg, session);
+                default:
+                    return new MessageExecuteResult("Unknown command type: " + msg.getId());
+            }
+        } catch (Exception e) {
+            logError(session.getProtocol() + " Command processing error: " + e.getMessage());
+            return new MessageExecuteResult("Command processing failed: " + e.getMessage());
+        }
+    }
+
+    public static MessageExecuteResult execute(MessageExecute msg, ClientSession session, CommandExecutor.OutputListener listener) {
+        String protocol = session.getProtocol();
+        logInfo("Executing " + protocol + " command for " + session.getUsername() + ": " + msg.command);
+
+        try {
+            String workingDir = (msg.workingDir == null || msg.workingDir.isEmpty()) ? session.getCurrentDirectory() : msg.workingDir;
+            MessageExecuteResult result = CommandExecutor.execute(msg.command, workingDir, msg.timeMillis, session, listener);
+
+            if (result.Error()) {
+                logWarning(protocol + " Command failed for " + session.getUsername() + ": " + result.getErrorMessage());
+                return result;
+            }
+            logInfo(protocol + " Command completed for " + session.getUsername() + " [exitCode=" + result.exitCode + ", time=" + result.executionTime + "ms" + (result.cached ? ", cached" : "") + "]");
+            return result;
+        } catch (Exception e) {
+            logError(protocol + " Command execution failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageExecuteResult("Command execution failed: " + e.getMessage());
+        }
+    }
+
+    public static MessageResult upload(MessageUpload msg, ClientSession session) {
+        switch (msg.part) {
+            case MessageUpload.OPEN:
+                return openUpload(msg, session);
+            case MessageUpload.CHUNK:
+                return uploadChunk(msg, session);
+            case MessageUpload.COMMIT:
+            case MessageUpload.ABORT:
+                return closeUpload(msg, session);
+            default:
+                return uploadFile(msg, session);
+        }
+    }
+
+    private static MessageUploadResult uploadFile(MessageUpload msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        logInfo("Uploading file via " + protocol + " from " + session.getUsername() + ": " + msg.fileName);
+
+        try {
+            File targetDir = resolve(msg.filePath, session);
+            if (!targetDir.exists() || !targetDir.isDirectory()) {
+                return new MessageUploadResult("Invalid target directory: " + msg.filePath);
+            }
+            if (msg.fileName == null || msg.fileName.isEmpty() || new File(msg.fileName).getName().length() != msg.fileName.length()) {
+                return new MessageUploadResult("Invalid file name: " + msg.fileName);
+            }
+
+            File targetFile = new File(targetDir, msg.fileName);
+            boolean fileExists = targetFile.exists();
+            if (fileExists && !msg.overwrite) {
+                return new MessageUploadResult("File already exists and overwrite is disabled: " + targetFile.getAbsolutePath());
+            }
+
+            String mismatch = msg.verify();
+            if (mismatch != null) {
+                logWarning(protocol + " Corrupted upload from " + session.getUsername() + ": " + mismatch);
+                return new MessageUploadResult("File upload failed: " + mismatch);
+            }
+            byte[] data = msg.fileData != null ? msg.fileData : new byte[0];
+            try (FileOutputStream fos = new FileOutputStream(targetFile)) {
+                fos.write(data);
+            } finally {
+                DirectoryCache.getInstance().invalidate(targetDir.toPath());
+            }
+
+            logInfo(protocol + " File uploaded successfully: " + targetFile.getAbsolutePath() + " [size=" + data.length + " bytes, overwrite=" + fileExists
+                    + (msg.sha256 != null ? ", sha256 verified" : "") + "]");
+            MessageUploadResult result = new MessageUploadResult(targetFile.getAbsolutePath(), data.length, fileExists);
+            result.sha256 = msg.sha256 != null ? msg.sha256 : Checksums.sha256(data, 0, data.length);
+            return result;
+        } catch (Exception e) {
+            logError(protocol + " File upload failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageUploadResult("File upload failed: " + e.getMessage());
+        }
+    }
+
+    private static MessageTransferHandle openUpload(MessageUpload msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        logInfo(protocol + " Chunked upload request from " + session.getUsername() + ": " + msg.fileName + " [size=" + msg.fileSize + " bytes]");
+
+        File targetDir = resolve(msg.filePath, session);
+        if (!targetDir.exists() || !targetDir.isDirectory()) {
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "Invalid target directory: " + msg.filePath);
+        }
+        if (msg.fileName == null || msg.fileName.isEmpty() || new File(msg.fileName).getName().length() != msg.fileName.length()) {
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "Invalid file name: " + msg.fileName);
+        }
+        try {
+            FileTransfer transfer = FileTransfer.openUpload(new File(targetDir, msg.fileName), msg.fileSize, msg.overwrite);
+            DirectoryCache.getInstance().invalidate(targetDir.toPath());        // Shows the part file
+            if (!session.addTransfer(transfer)) {
+                transfer.close();
+                return new MessageTransferHandle(Protocol.CMD_UPLOAD, "Too many open transfers");
+            }
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, transfer.getId(), transfer.getTarget().getFileName().toString(),
+                    transfer.getTarget().toString(), transfer.getSize(), FileTransfer.MAX_CHUNK);
+        } catch (IOException e) {
+            logError(protocol + " Chunked upload failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "File upload failed: " + e.getMessage());
+        }
+    }
+
+    private static MessageUploadResult uploadChunk(MessageUpload msg, ClientSession session) {
+        FileTransfer transfer = session.getTransfer(msg.handleId);
+        if (transfer == null) {
+            return new MessageUploadResult("Transfer not found: " + msg.handleId);
+        }
+        String mismatch = msg.verify();
+        if (mismatch != null) {
+            logWarning(session.getProtocol() + " Corrupted upload chunk from " + session.getUsername() + ": " + mismatch);
+            return new MessageUploadResult("Chunk write failed: " + mismatch);
+        }
+        try {
+            byte[] data = msg.fileData != null ? msg.fileData : new byte[0];
+            transfer.write(msg.offset, data);
+            return new MessageUploadResult(transfer.getTarget().toString(), data.length, false);
+        } catch (IOException e) {
+            return new MessageUploadResult("Chunk write failed: " + e.getMessage());
+        }
+    }
+
+    private static MessageUploadResult closeUpload(MessageUpload msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        FileTransfer transfer = session.removeTransfer(msg.handleId);
+        if (transfer == null) {
+            return new MessageUploadResult("Transfer not found: " + msg.handleId);
+        }
+        String path = transfer.getTarget().toString();
+        try {
+            if (msg.part == MessageUpload.ABORT) {
+                logInfo(protocol + " Chunked upload aborted by " + session.getUsername() + ": " + path);
+                return new MessageUploadResult("Upload aborted: " + path);
+            }
+            String digest = transfer.digest();
+            if (msg.sha256 != null && !digest.equalsIgnoreCase(msg.sha256)) {
+                logWarning(protocol + " Checksum mismatch in upload from " + session.getUsername() + ": " + path);
+                return new MessageUploadResult("Checksum mismatch: expected " + msg.sha256 + ", received " + digest);
+            }
+            boolean existed = transfer.commit();
+            logInfo(protocol + " File uploaded in chunks: " + path + " [size=" + transfer.getSize() + " bytes, overwrite=" + existed
+                    + (msg.sha256 != null ? ", sha256 verified" : "") + "]");
+            MessageUploadResult result = new MessageUploadResult(path, transfer.getSize(), existed);
+            result.sha256 = digest;
+            return result;
+        } catch (IOException e) {
+            logError(protocol + " Chunked upload failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageUploadResult("File upload failed: " + e.getMessage());
+        } finally {
+            transfer.close();
+            DirectoryCache.getInstance().invalidate(transfer.getTarget().getParent());
+        }
+    }
+
+    public static MessageDownloadResult download(MessageDownload msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        logInfo(protocol + " File download request from " + session.getUsername() + ": " + msg.filePath);
+
+        try {
+            File file = resolve(msg.filePath, session);
+            if (file.isDirectory()) {
+                MessageDownloadResult result = new MessageDownloadResult("Is a directory: " + msg.filePath);
+                result.isDirectory = true;
+                return result;
+            }
+            if (!file.exists() || !file.isFile()) {
+                return new MessageDownloadResult("File not found: " + msg.filePath);
+            }
+            if (!file.canRead()) {
+                return new MessageDownloadResult("Cannot read file: " + msg.filePath);
+            }
+
+            // Zero length requests only ask for the size, they don't make a file hot
+            boolean whole = msg.offset <= 0 && (msg.length < 0 || msg.length >= file.length());
+            FileContentCache.Content content = msg.length != 0 ? FileContentCache.getInstance().read(file.toPath(), whole) : null;
+            if (content != null) {
+                int size = content.data.length;
+                int offset = (int) Math.max(0, Math.min(msg.offset, size));
+                int length = (int) (msg.length >= 0 ? Math.min(size - offset, msg.length) : size - offset);
+                boolean isPartial = offset > 0 || length < size;
+                logInfo(protocol + " File downloaded successfully: " + file.getAbsolutePath() + " [size=" + size + " bytes, sent=" + length
+                        + " bytes, partial=" + isPartial + (content.cached ? ", cached" : "") + "]");
+                // A whole file is sent in the shared array of the cache
+                MessageDownloadResult result = new MessageDownloadResult(file.getName(), size,
+                        isPartial ? Arrays.copyOfRange(content.data, offset, offset + length) : content.data, isPartial, false);
+                if (!isPartial || msg.digest) {
+                    result.sha256 = content.sha256();
+                }
+                return result;
+            }
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long offset = Math.max(0, Math.min(msg.offset, size));
+                long length = msg.length >= 0 ? Math.min(size - offset, msg.length) : size - offset;
+                if (length > Integer.MAX_VALUE - 8) {
+                    return new MessageDownloadResult("File is too large for a single message: " + size + " bytes");
+                }
+
+                ByteBuffer buf = ByteBuffer.allocate((int) length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, offset + buf.position()) < 0) {
+                        throw new IOException("Failed to read complete file: " + msg.filePath);
+                    }
+                }
+
+                boolean isPartial = offset > 0 || length < size;
+                logInfo(protocol + " File downloaded successfully: " + file.getAbsolutePath() + " [size=" + size + " bytes, sent=" + length + " bytes, partial=" + isPartial + "]");
+                MessageDownloadResult result = new MessageDownloadResult(file.getName(), size, buf.array(), isPartial, false);
+                if (!isPartial) {
+                    result.sha256 = Checksums.sha256(buf.array(), 0, (int) length);
+                } else if (msg.digest) {
+                    result.sha256 = Checksums.sha256(channel, size);
+                }
+                return result;
+            }
+        } catch (Exception e) {
+            logError(protocol + " File download failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageDownloadResult("File download failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a directory tree as archive fragments, or extracts one sent by the client
+     * @param sink sends the fragments of a download and the handle of an upload
+     * @param source receives the fragments of an upload
+     * @throws IOException if the connection failed
+     */
+    public static MessageArchiveResult archive(MessageArchive msg, ClientSession session, TreeArchive.Sink sink, TreeArchive.Source source) throws IOException {
+        String protocol = session.getProtocol();
+        long started = System.currentTimeMillis();
+        File dir;
+        TreeArchive.Stats stats;
+        if (!msg.upload) {
+            logInfo(protocol + " Directory download request from " + session.getUsername() + ": " + msg.path);
+            dir = resolve(msg.path, session);
+            if (!dir.isDirectory()) {
+                return new MessageArchiveResult("Directory does not exist: " + msg.path);
+            }
+            try {
+                stats = TreeArchive.pack(dir.toPath(), new TreeArchive.Output(UUID.randomUUID().toString(), dir.getName(), sink), msg.compress);
+            } catch (IOException e) {
+                // The client takes the result in place of the next fragment
+                logError(protocol + " Directory download failed for " + session.getUsername() + ": " + e.getMessage());
+                return new MessageArchiveResult("Directory download failed: " + e.getMessage());
+            }
+        } else {
+            logInfo(protocol + " Directory upload request from " + session.getUsername() + ": " + msg.name);
+            File targetDir = resolve(msg.path, session);
+            if (!targetDir.isDirectory()) {
+                return new MessageArchiveResult("Invalid target directory: " + msg.path);
+            }
+            if (msg.name == null || msg.name.isEmpty() || new File(msg.name).getName().length() != msg.name.length()) {
+                return new MessageArchiveResult("Invalid directory name: " + msg.name);
+            }
+            dir = new File(targetDir, msg.name);
+            if (dir.exists() && !dir.isDirectory()) {
+                return new MessageArchiveResult("File exists and is not a directory: " + dir.getAbsolutePath());
+            }
+            sink.send(new MessageTransferHandle(Protocol.CMD_ARCHIVE, UUID.randomUUID().toString(), dir.getName(),
+                    dir.getAbsolutePath(), 0, TreeArchive.FRAGMENT_SIZE));
+            TreeArchive.Input frames = new TreeArchive.Input(source);
+            try {
+                stats = TreeArchive.extract(frames, dir.toPath(), msg.overwrite, msg.compress);
+            } catch (IOException e) {
+                // Fragments still on the way are not messages of the session
+                frames.discard();
+                logError(protocol + " Directory upload failed for " + session.getUsername() + ": " + e.getMessage());
+                return new MessageArchiveResult("Directory upload failed: " + e.getMessage());
+            } finally {
+                // Also after a failure, part of the tree may have been written
+                DirectoryCache.getInstance().invalidate(targetDir.toPath());
+                DirectoryCache.getInstance().invalidateTree(dir.toPath());
+            }
+        }
+        logInfo(protocol + " Directory " + (msg.upload ? "uploaded" : "downloaded") + " successfully: " + dir.getAbsolutePath()
+                + " [files=" + stats.files + ", directories=" + stats.directories + ", skipped=" + stats.skipped + ", bytes=" + stats.bytes
+                + ", sent=" + stats.wireBytes + (msg.compress ? ", compressed" : "") + ", time=" + (System.currentTimeMillis() - started) + "ms]");
+        return new MessageArchiveResult(dir.getAbsolutePath(), stats.files, stats.directories, stats.skipped, stats.bytes, stats.wireBytes, stats.sha256);
+    }
+
+    public static MessageChdirResult changeDirectory(MessageChdir msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        logInfo(protocol + " Directory change request from " + session.getUsername() + ": " + msg.newDirectory);
+
+        try {
+            File newDir = resolve(msg.newDirectory, session);
+            if (!newDir.exists() || !newDir.isDirectory()) {
+                return new MessageChdirResult("Directory does not exist: " + msg.newDirectory);
+            }
+
+            String oldDirectory = session.getCurrentDirectory();
+            session.setCurrentDirectory(newDir.getCanonicalPath());
+
+            logInfo(protocol + " Directory changed for " + session.getUsername() + " successfully: " + oldDirectory + " -> " + session.getCurrentDirectory());
+            return new MessageChdirResult(session.getCurrentDirectory(), oldDirectory);
+        } catch (Exception e) {
+            logError(protocol + " Directory change failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageChdirResult("Directory change failed: " + e.getMessage());
+        }
+    }
+
+    public static MessageGetdirResult getCurrentDirectory(ClientSession session) {
+        logDebug(session.getProtocol() + " Current directory request from " + session.getUsername());
+        String directory = session.getCurrentDirectory();
+        long filesCount = 0;
+        try {
+            filesCount = DirectoryCache.getInstance().list(Paths.get(directory)).entries.length;
+        } catch (IOException e) {
+            logDebug(session.getProtocol() + " Cannot list " + directory + ": " + e.getMessage());
+        }
+        return new MessageGetdirResult(directory, filesCount);
+    }
+
+    public static MessageListResult list(MessageList msg, ClientSession session) {
+        String protocol = session.getProtocol();
+        File dir = resolve(msg.path, session);
+        try {
+            if (!dir.isDirectory()) {
+                return new MessageListResult("Directory does not exist: " + (msg.path == null || msg.path.isEmpty() ? dir.getPath() : msg.path));
+            }
+            DirectoryCache.Listing listing = DirectoryCache.getInstance().list(dir.toPath());
+            MessageListResult.Entry[] all = listing.entries;
+            int offset = Math.max(0, Math.min(msg.offset, all.length));
+            int end = msg.limit > 0 ? (int) Math.min(all.length, (long) offset + msg.limit) : all.length;
+            logDebug(protocol + " Listing for " + session.getUsername() + ": " + dir + " [entries=" + all.length
+                    + ", offset=" + offset + (listing.cached ? ", cached" : "") + "]");
+            return new MessageListResult(dir.getAbsolutePath(), Arrays.copyOfRange(all, offset, end), offset, all.length, listing.cached);
+        } catch (IOException e) {
+            logError(protocol + " Listing failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageListResult("Cannot list directory: " + e.getMessage());
+        }
+    }
+
+    public static MessageOutputResult readOutput(MessageOutput msg, ClientSession session) {
+        logDebug(session.getProtocol() + " Output range request from " + session.getUsername() + ": " + msg.outputId + " [offset=" + msg.offset + ", length=" + msg.length + "]");
+        return CommandExecutor.readOutput(msg, session);
+    }
+
+    /**
+     * Path of a command argument, relative paths start at the session directory
+     */
+    public static File resolve(String path, ClientSession session) {
+        if (path == null || path.isEmpty()) {
+            return new File(session.getCurrentDirectory());
+        }
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(session.getCurrentDirectory(), path);
+    }
+
+    private static void logInfo(String message) {
+        System.out.print(" ");
+        Logger.logInfo(message);
+        restorePrompt();
+    }
+
+    private static void logWarning(String message) {
+        System.out.print(" ");
+        Logger.logWarning(message);
+        restorePrompt();
+    }
+
+    private static void logDebug(String message) {
+        if (Logger.getDebugEnabled()) {
+            System.out.print(" ");
+            Logger.logDebug(message);
+            restorePrompt();
+        }
+    }
+
+    private static void logError(String message) {
+        System.out.print(" ");
+        Logger.logError(message);
+        restorePrompt();
+    }
+
+    private static void restorePrompt() {
+        System.out.print("server> ");
+        System.out.flush();
+    }
+}
@@ -0,0 +1,218 @@
+package csdev.threads;
+
+import csdev.messages.MessageExecuteResult;
+import csdev.messages.MessageOutput;
+import csdev.messages.MessageOutputResult;
+import csdev.server.ServerConfig;
+import csdev.threads.session.ClientSession;
+
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * <p>Runs shell commands for client sessions
+ * <br>Cacheable commands are served through {@link CommandResultCache},
+ * large outputs are captured by {@link OutputCapture}
+ * @author cin-tie
+ * @version 1.0
+ */
+public class CommandExecutor {
+
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    /**
+     * <p>Receives command output while the command is running
+     */
+    public interface OutputListener {
+        void onOutput(boolean error, byte[] data, int off, int len);
+    }
+
+    // In-memory part of each captured stream, the rest is spilled to a temp file
+    private static final int MEMORY_LIMIT = ServerConfig.getInt("output.memoryLimit", 64) * 1024;
+    private static final long DISK_LIMIT = ServerConfig.getLong("output.diskLimit", 256) * 1024 * 1024;
+    private static final int MAX_PAGE = 1024 * 1024;
+    private static final long DRAIN_TIMEOUT = 2000;
+    private static final long SAMPLE_INTERVAL = Math.max(10, ServerConfig.getLong("accounting.interval", 100));
+
+    private static final ExecutorService streamReaders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "OutputReader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public static int getMemoryLimit() {
+        return MEMORY_LIMIT;
+    }
+
+    public static MessageExecuteResult execute(String command, String workingDir, long timeMillis, ClientSession session) throws IOException {
+        return execute(command, workingDir, timeMillis, session, null);
+    }
+
+    /**
+     * Runs the command passing its output to the listener as it is produced.
+     * Results served from the cache (result.cached) are not passed to the listener.
+     */
+    public static MessageExecuteResult execute(String command, String workingDir, long timeMillis, ClientSession session,
+                                               OutputListener listener) throws IOException {
+        long timeout = timeMillis > 0 ? timeMillis : DEFAULT_TIMEOUT;
+
+        CommandResultCache cache = CommandResultCache.getInstance();
+        MessageExecuteResult result;
+        if (cache.isCacheable(command)) {
+            result = cache.get(command, workingDir, () -> run(command, workingDir, timeout, session.getUsername(), listener));
+        } else {
+            result = run(command, workingDir, timeout, session.getUsername(), listener);
+        }
+
+        ResourceMetrics.record(session.getUsername(), result);
+        if (result.outputId != null) {
+            session.addOutput(result.outputId);
+        }
+        if (result.errorId != null) {
+            session.addOutput(result.errorId);
+        }
+        return result;
+    }
+
+    static MessageExecuteResult run(String command, String workingDir, long timeout, String username, OutputListener listener) throws IOException {
+        CgroupManager.Placement cgroup = CgroupManager.getInstance().prepare(username);
+        try {
+            return run(command, workingDir, timeout, cgroup, listener);
+        } finally {
+            if (cgroup != null) {
+                cgroup.release();
+            }
+        }
+    }
+
+    private static MessageExecuteResult run(String command, String workingDir, long timeout, CgroupManager.Placement cgroup,
+                                            OutputListener listener) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder();
+        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
+            pb.command("cmd.exe", "/c", command);
+        } else if (cgroup != null) {
+            pb.command(cgroup.wrap(command));
+        } else {
+            pb.command("sh", "-c", command);
+        }
+        pb.directory(new File(workingDir));
+
+        long startTime = System.currentTimeMillis();
+        Process process = pb.start();
+
+        // Streams are drained while the process runs, so it never blocks on a full pipe
+        OutputCapture out = new OutputCapture(MEMORY_LIMIT, DISK_LIMIT);
+        OutputCapture err = new OutputCapture(MEMORY_LIMIT, DISK_LIMIT);
+        Future<?> outReader = streamReaders.submit(() -> { out.drain(process.getInputStream(), listener, false); return null; });
+        Future<?> errReader = streamReaders.submit(() -> { err.drain(process.getErrorStream(), listener, true); return null; });
+
+        ProcessAccounting accounting = new ProcessAccounting(process);
+        boolean finished = false;
+        try {
+            long deadline = startTime + timeout;
+            accounting.sample();
+            while (!finished) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                finished = process.waitFor(Math.min(left, SAMPLE_INTERVAL), TimeUnit.MILLISECONDS);
+                if (!finished) {
+                    accounting.sample();
+                }
+            }
+        } catch (InterruptedException e) {
+            kill(process, cgroup);
+            out.close();
+            err.close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Command execution interrupted");
+        }
+
+        long executionTime = System.currentTimeMillis() - startTime;
+
+        if (!finished) {
+            kill(process, cgroup);
+            out.close();
+            err.close();
+            return new MessageExecuteResult("Command timed out after " + timeout + "ms");
+        }
+
+        awaitReader(outReader);
+        awaitReader(errReader);
+        int exitCode = process.exitValue();
+
+        byte[] outHead = out.getHead();
+        byte[] errHead = err.getHead();
+        MessageExecuteResult result = new MessageExecuteResult(new String(outHead), new String(errHead), exitCode, executionTime, workingDir);
+        result.outputSize = out.size();
+        result.errorSize = err.size();
+        // Decoding may change the length, pages continue after the captured bytes
+        result.outputHeadSize = outHead.length;
+        result.errorHeadSize = errHead.length;
+        result.outputId = keepIfSpilled(out);
+        result.errorId = keepIfSpilled(err);
+        accounting.apply(result);
+        if (cgroup != null) {
+            cgroup.applyStats(result);
+        }
+        return result;
+    }
+
+    /**
+     * Kills the shell together with the processes it started; a per-command cgroup
+     * also catches children that were already reparented
+     */
+    private static void kill(Process process, CgroupManager.Placement cgroup) {
+        List<ProcessHandle> children = process.descendants().collect(Collectors.toList());
+        if (cgroup != null) {
+            cgroup.kill();
+        }
+        process.destroyForcibly();
+        children.forEach(ProcessHandle::destroyForcibly);
+    }
+
+    /**
+     * Background children may keep the pipe open after the command exits,
+     * so readers get a short grace period instead of an unbounded wait
+     */
+    private static void awaitReader(Future<?> reader) throws IOException {
+        try {
+            reader.get(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Keep what has been captured so far
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Command execution interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read command output: " + e.getCause().getMessage());
+        }
+    }
+
+    private static String keepIfSpilled(OutputCapture capture) {
+        if (capture.isSpilled()) {
+            OutputCapture.register(capture);
+            return capture.getId();
+        }
+        capture.close();
+        return null;
+    }
+
+    /**
+     * Reads a page of spilled output; only the session that ran the command may read it
+     */
+    public static MessageOutputResult readOutput(MessageOutput msg, ClientSession session) {
+        OutputCapture capture = session.ownsOutput(msg.outputId) ? OutputCapture.find(msg.outputId) : null;
+        if (capture == null) {
+            return new MessageOutputResult("Output not found: " + msg.outputId);
+        }
+        try {
+            byte[] data = capture.read(msg.offset, Math.min(msg.length, MAX_PAGE));
+            return new MessageOutputResult(msg.outputId, msg.offset, capture.storedSize(), data);
+        } catch (IOException e) {
+            return new MessageOutputResult("Output read failed: " + e.getMessage());
+        }
+    }
+}
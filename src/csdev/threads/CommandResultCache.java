@@ -0,0 +1,233 @@
+package csdev.threads;
+
+import csdev.messages.MessageExecuteResult;
+import csdev.server.ServerConfig;
+import csdev.utils.Logger;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Opt-in result cache for idempotent read-only commands
+ * <p>Entries are keyed by (command, working directory, environment), expire after
+ * a per-entry TTL and are evicted in LRU order once the cache is full.
+ * Concurrent identical requests share a single process run.
+ * <br>Options:
+ * <br>remoteshell.cache.commands - comma separated command prefixes, optionally "prefix=ttlMillis" (empty disables cache)
+ * <br>remoteshell.cache.ttl - default entry TTL in ms
+ * <br>remoteshell.cache.size - max number of entries
+ * @author cin-tie
+ * @version 1.0
+ */
+public class CommandResultCache {
+
+    public interface Loader {
+        MessageExecuteResult load() throws IOException;
+    }
+
+    private static final CommandResultCache instance = new CommandResultCache(
+            ServerConfig.getString("cache.commands", ""),
+            ServerConfig.getLong("cache.ttl", 5000),
+            ServerConfig.getInt("cache.size", 256));
+
+    public static CommandResultCache getInstance() {
+        return instance;
+    }
+
+    private static class Key {
+        final String command;
+        final String workingDir;
+        final int environment;
+
+        Key(String command, String workingDir, int environment) {
+            this.command = command;
+            this.workingDir = workingDir;
+            this.environment = environment;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return environment == k.environment && command.equals(k.command) && workingDir.equals(k.workingDir);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(command, workingDir, environment);
+        }
+    }
+
+    private static class Entry {
+        final MessageExecuteResult result;
+        final long expiresAt;
+
+        Entry(MessageExecuteResult result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LinkedHashMap<String, Long> prefixes = new LinkedHashMap<>();   // prefix -> TTL
+    private final int maxEntries;
+    private final int environment;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final ConcurrentHashMap<Key, CompletableFuture<MessageExecuteResult>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    CommandResultCache(String commands, long defaultTtl, int maxEntries) {
+        for (String item : commands.split(",")) {
+            String prefix = item.trim();
+            long ttl = defaultTtl;
+            int eq = prefix.lastIndexOf('=');
+            if (eq > 0) {
+                try {
+                    ttl = Long.parseLong(prefix.substring(eq + 1).trim());
+                    prefix = prefix.substring(0, eq).trim();
+                } catch (NumberFormatException e) {
+                    Logger.logWarning("Invalid cache TTL in '" + item + "', using " + defaultTtl + "ms");
+                }
+            }
+            if (!prefix.isEmpty() && ttl > 0) {
+                prefixes.put(prefix, ttl);
+            }
+        }
+        this.maxEntries = Math.max(1, maxEntries);
+        // Spawned processes inherit the server environment
+        this.environment = System.getenv().hashCode();
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > CommandResultCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return !prefixes.isEmpty();
+    }
+
+    /**
+     * Commands with redirections, pipes, command separators or substitutions
+     * may have side effects and are never cached
+     */
+    public boolean isCacheable(String command) {
+        return getTtl(command) > 0;
+    }
+
+    private long getTtl(String command) {
+        if (prefixes.isEmpty() || command == null) {
+            return 0;
+        }
+        String cmd = command.trim();
+        if (cmd.contains(";") || cmd.contains("&") || cmd.contains("|") || cmd.contains(">") || cmd.contains("<")
+                || cmd.contains("`") || cmd.contains("$(") || cmd.contains("\n")) {
+            return 0;
+        }
+        for (Map.Entry<String, Long> e : prefixes.entrySet()) {
+            String prefix = e.getKey();
+            // Prefix "df" matches "df" and "df -h", not "dfx"
+            if (cmd.startsWith(prefix) && (cmd.length() == prefix.length() || Character.isWhitespace(cmd.charAt(prefix.length())))) {
+                return e.getValue();
+            }
+        }
+        return 0;
+    }
+
+    public MessageExecuteResult get(String command, String workingDir, Loader loader) throws IOException {
+        Key key = new Key(command.trim(), workingDir, environment);
+
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    hits.increment();
+                    return copyOf(entry.result);
+                }
+                entries.remove(key);
+            }
+        }
+
+        CompletableFuture<MessageExecuteResult> future = new CompletableFuture<>();
+        CompletableFuture<MessageExecuteResult> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return copyOf(running.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Command execution interrupted");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            }
+        }
+
+        misses.increment();
+        try {
+            MessageExecuteResult result = loader.load();
+            // Spilled outputs belong to the session that ran the command
+            if (!result.Error() && result.outputId == null && result.errorId == null) {
+                synchronized (entries) {
+                    entries.put(key, new Entry(result, System.currentTimeMillis() + getTtl(command)));
+                }
+            }
+            future.complete(result);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static MessageExecuteResult copyOf(MessageExecuteResult r) {
+        if (r.Error()) {
+            return new MessageExecuteResult(r.getErrorMessage());
+        }
+        MessageExecuteResult copy = new MessageExecuteResult(r.output, r.error, r.exitCode, r.executionTime, r.workingDir);
+        copy.cached = true;
+        copy.outputId = r.outputId;
+        copy.outputSize = r.outputSize;
+        copy.errorId = r.errorId;
+        copy.errorSize = r.errorSize;
+        copy.outputHeadSize = r.outputHeadSize;
+        copy.errorHeadSize = r.errorHeadSize;
+        return copy;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public double getHitRatio() {
+        long served = hits.sum() + coalesced.sum();
+        long total = served + misses.sum();
+        return total == 0 ? 0.0 : (double) served / total;
+    }
+
+    public String getStats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format("entries=%d/%d, hits=%d, coalesced=%d, misses=%d, evictions=%d, hit ratio=%.1f%%",
+                size, maxEntries, hits.sum(), coalesced.sum(), misses.sum(), evictions.sum(), getHitRatio() * 100);
+    }
+}
@@ -0,0 +1,232 @@
+package csdev.threads;
+
+import csdev.messages.MessageListResult;
+import csdev.server.ServerConfig;
+import csdev.utils.Logger;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Cache of directory listings for the list command
+ * <p>A directory is read once and its entries are kept until it changes: every cached
+ * directory is watched by a {@link WatchService} (inotify on Linux), whose first event
+ * drops the listing; directories changed by uploads of the server are dropped at once.
+ * Listings are evicted in LRU order once the cache is full. Events report changes of the
+ * directory's own entries only, so the modification time shown for a subdirectory may be
+ * older than changes inside it.
+ * <br>Options:
+ * <br>remoteshell.dirCache.size - max number of cached directories, 0 disables the cache
+ * @author cin-tie
+ * @version 1.0
+ */
+public class DirectoryCache {
+
+    private static final DirectoryCache instance = new DirectoryCache(ServerConfig.getInt("dirCache.size", 256));
+
+    public static DirectoryCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Result of a lookup
+     */
+    public static final class Listing {
+        public final MessageListResult.Entry[] entries;
+        public final boolean cached;    // Served from memory
+
+        Listing(MessageListResult.Entry[] entries, boolean cached) {
+            this.entries = entries;
+            this.cached = cached;
+        }
+    }
+
+    private static class Watched {
+        final WatchKey key;
+        MessageListResult.Entry[] entries;      // Null until the directory has been read
+
+        Watched(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    private final int maxDirs;
+    private final LinkedHashMap<Path, Watched> listings;
+    private final WatchService watcher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    DirectoryCache(int maxDirs) {
+        this.maxDirs = maxDirs;
+        this.listings = new LinkedHashMap<Path, Watched>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Watched> eldest) {
+                if (size() > DirectoryCache.this.maxDirs) {
+                    eldest.getValue().key.cancel();
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        WatchService service = null;
+        if (maxDirs > 0) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+                Thread t = new Thread(this::watch, "DirectoryWatcher");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException | UnsupportedOperationException e) {
+                Logger.logWarning("Directory cache disabled, file system can't be watched: " + e.getMessage());
+                service = null;
+            }
+        }
+        this.watcher = service;
+    }
+
+    public boolean isEnabled() {
+        return watcher != null;
+    }
+
+    /**
+     * Entries of a directory sorted by name, from memory if it has not changed since it was read
+     */
+    public Listing list(Path dir) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        if (!isEnabled()) {
+            return new Listing(read(dir), false);
+        }
+        Watched watched;
+        synchronized (listings) {
+            watched = listings.get(dir);
+            if (watched != null && watched.entries != null) {
+                hits.increment();
+                return new Listing(watched.entries, true);
+            }
+            if (watched == null) {
+                // Watch before reading, a change during the read then drops the new listing
+                watched = new Watched(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                listings.put(dir, watched);
+            }
+        }
+        misses.increment();
+        MessageListResult.Entry[] entries = read(dir);
+        synchronized (listings) {
+            if (listings.get(dir) == watched) {
+                watched.entries = entries;
+            }
+        }
+        return new Listing(entries, false);
+    }
+
+    private static MessageListResult.Entry[] read(Path dir) throws IOException {
+        List<MessageListResult.Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    char type = a.isDirectory() ? MessageListResult.DIRECTORY : a.isSymbolicLink() ? MessageListResult.LINK
+                            : a.isRegularFile() ? MessageListResult.FILE : MessageListResult.OTHER;
+                    entries.add(new MessageListResult.Entry(path.getFileName().toString(), a.size(), a.lastModifiedTime().toMillis(), type));
+                } catch (NoSuchFileException ignored) {
+                    // Deleted while listing
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(e -> e.name));
+        return entries.toArray(new MessageListResult.Entry[0]);
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            key.pollEvents();
+            Path dir = (Path) key.watchable();
+            synchronized (listings) {
+                Watched watched = listings.get(dir);
+                if (watched != null && watched.key == key) {
+                    listings.remove(dir);
+                    invalidations.increment();
+                }
+                // Watched again when it is listed next; cancelled under the lock, as registering
+                // the directory again before the cancel would return this key
+                key.cancel();
+            }
+        }
+    }
+
+    /**
+     * Drops the listing of a directory the server has just changed, so the next list
+     * shows the change without waiting for the watch event
+     */
+    public void invalidate(Path dir) {
+        if (!isEnabled()) {
+            return;
+        }
+        Path path = dir.toAbsolutePath().normalize();
+        synchronized (listings) {
+            Watched watched = listings.remove(path);
+            if (watched != null) {
+                watched.key.cancel();
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Drops the listings of a directory and all directories below it
+     */
+    public void invalidateTree(Path root) {
+        if (!isEnabled()) {
+            return;
+        }
+        Path path = root.toAbsolutePath().normalize();
+        synchronized (listings) {
+            listings.entrySet().removeIf(e -> {
+                if (!e.getKey().startsWith(path)) {
+                    return false;
+                }
+                e.getValue().key.cancel();
+                invalidations.increment();
+                return true;
+            });
+        }
+    }
+
+    public void clear() {
+        synchronized (listings) {
+            listings.values().forEach(w -> w.key.cancel());
+            listings.clear();
+        }
+    }
+
+    public String getStats() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+        int size;
+        synchronized (listings) {
+            size = listings.size();
+        }
+        long served = hits.sum();
+        long total = served + misses.sum();
+        return String.format("directories=%d/%d, hits=%d, misses=%d, invalidations=%d, evictions=%d, hit ratio=%.1f%%",
+                size, maxDirs, served, misses.sum(), invalidations.sum(), evictions.sum(), total == 0 ? 0.0 : 100.0 * served / total);
+    }
+}
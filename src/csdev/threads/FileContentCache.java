@@ -0,0 +1,222 @@
+package csdev.threads;
+
+import csdev.server.ServerConfig;
+import csdev.utils.Checksums;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Cache of the content of frequently downloaded files
+ * <p>A file is kept as one immutable array, keyed by path and checked against the
+ * modification time, size and file key on every request, so a hit costs one stat and no read; the
+ * array is sent as is, without a copy per request, and its SHA-256 is computed once when
+ * it is first asked for. A file is cached on its second whole-file request among recently
+ * requested files, so files downloaded once don't evict hot ones; other requests are only
+ * served from entries already cached and otherwise read just their range from disk.
+ * Entries are evicted in LRU order once their total size exceeds the limit. Files modified
+ * in the last seconds are not cached, a change within the same time stamp and size would
+ * not be noticed.
+ * <p>Content is held on the Java heap: a mapped or direct buffer would have to be copied into
+ * an array for every reply anyway, since replies are serialized messages. The cached arrays are
+ * long lived and end up in the old generation, the heap must leave room for
+ * <code>fileCache.size</code> on top of the server's working set; a cache of several hundred MB
+ * lengthens full collections accordingly. Admission is a simple doorkeeper, not a frequency
+ * sketch: a file must be requested twice while it is among the recently requested files.
+ * <br>Options:
+ * <br>remoteshell.fileCache.size - max bytes of cached content, 0 disables the cache
+ * <br>remoteshell.fileCache.maxFile - largest file that is cached, in bytes
+ * @author cin-tie
+ * @version 1.0
+ */
+public class FileContentCache {
+
+    private static final int SEEN_SIZE = 4096;          // Recently requested files remembered for admission
+    private static final long SETTLE_TIME = 2000;       // ms a file must be unmodified to be cached
+
+    private static final FileContentCache instance = new FileContentCache(
+            ServerConfig.getLong("fileCache.size", 64L * 1024 * 1024),
+            ServerConfig.getLong("fileCache.maxFile", 4L * 1024 * 1024));
+
+    public static FileContentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Content of a whole file; the array is shared and must not be changed
+     */
+    public static final class Content {
+        public final byte[] data;
+        public final boolean cached;    // Served from memory
+        final long modified;
+        final Object fileKey;           // Identifies the file apart from its path, null if not supported
+        private volatile String sha256;
+
+        Content(byte[] data, BasicFileAttributes a, boolean cached) {
+            this.data = data;
+            this.modified = a.lastModifiedTime().toMillis();
+            this.fileKey = a.fileKey();
+            this.cached = cached;
+        }
+
+        /**
+         * @return whether this is the content of the file with the given attributes
+         */
+        boolean matches(BasicFileAttributes a) {
+            return data.length == a.size() && modified == a.lastModifiedTime().toMillis() && Objects.equals(fileKey, a.fileKey());
+        }
+
+        /**
+         * @return hex SHA-256 of data, computed on the first call
+         */
+        public String sha256() {
+            String digest = sha256;
+            if (digest == null) {
+                digest = Checksums.sha256(data, 0, data.length);
+                sha256 = digest;
+            }
+            return digest;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFile;
+    private final LinkedHashMap<Path, Content> files;
+    private final LinkedHashMap<Path, Boolean> seen;
+    private long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder servedBytes = new LongAdder();
+
+    FileContentCache(long maxBytes, long maxFile) {
+        this.maxBytes = maxBytes;
+        this.maxFile = Math.min(maxFile, maxBytes);
+        this.files = new LinkedHashMap<>(16, 0.75f, true);
+        this.seen = new LinkedHashMap<Path, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Boolean> eldest) {
+                return size() > SEEN_SIZE;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Content of a file from memory if it is cached and has not changed since; a whole-file
+     * request of a file requested recently loads the file and caches it
+     * @param whole the request covers the whole file
+     * @return the content, null if the file is not cached and not admitted by this request,
+     * the caller then reads the requested range itself
+     */
+    public Content read(Path file, boolean whole) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!a.isRegularFile() || a.size() > maxFile) {
+            return null;
+        }
+        long modified = a.lastModifiedTime().toMillis();
+        synchronized (files) {
+            Content c = files.get(path);
+            if (c != null && c.matches(a)) {
+                hits.increment();
+                servedBytes.add(c.data.length);
+                return c;
+            }
+            if (c != null) {
+                remove(path);
+                invalidations.increment();
+            }
+            misses.increment();
+            if (!whole) {
+                return null;
+            }
+            if (seen.remove(path) == null) {
+                seen.put(path, Boolean.TRUE);
+                return null;
+            }
+        }
+        byte[] data = load(path, a.size());
+        // A file being written is read again next time
+        if (data.length == a.size() && System.currentTimeMillis() - modified >= SETTLE_TIME) {
+            put(path, new Content(data, a, true));
+        } else {
+            synchronized (files) {
+                seen.put(path, Boolean.TRUE);
+            }
+        }
+        return new Content(data, a, false);
+    }
+
+    private static byte[] load(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0) {
+                    break;      // File shrunk, the length differs from the size
+                }
+            }
+            return buf.position() == size ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
+
+    private void put(Path path, Content c) {
+        synchronized (files) {
+            if (files.containsKey(path)) {
+                remove(path);
+            }
+            files.put(path, c);
+            bytes += c.data.length;
+            Iterator<Map.Entry<Path, Content>> it = files.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Path, Content> eldest = it.next();
+                bytes -= eldest.getValue().data.length;
+                it.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    private void remove(Path path) {
+        Content c = files.remove(path);
+        if (c != null) {
+            bytes -= c.data.length;
+        }
+    }
+
+    public String getStats() {
+        if (!isEnabled()) {
+            return "disabled";
+        }
+        int size;
+        long used;
+        synchronized (files) {
+            size = files.size();
+            used = bytes;
+        }
+        long served = hits.sum();
+        long total = served + misses.sum();
+        return String.format("files=%d, bytes=%d/%d, hits=%d, misses=%d, invalidations=%d, evictions=%d, served=%d bytes, hit ratio=%.1f%%",
+                size, used, maxBytes, served, misses.sum(), invalidations.sum(), evictions.sum(), servedBytes.sum(),
+                total == 0 ? 0.0 : 100.0 * served / total);
+    }
+}
@@ -0,0 +1,238 @@
+package csdev.threads;
+
+import csdev.utils.Checksums;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>File opened for a chunked transfer
+ * <p>Chunks are read and written with positional I/O, so a client may have several
+ * chunk calls of one transfer in flight. Uploads are written to a temp file in the
+ * target directory which replaces the target on {@link #commit()}; it can be checked
+ * against the sender's SHA-256 with {@link #digest()} first. The transfer tracks how far
+ * the upload is received without a gap, a client that lost its connection continues there.
+ * A download is served from the {@link FileContentCache} only while the cached content is
+ * that of the file it opened, a file replaced under the same path is read from the channel.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class FileTransfer implements Closeable {
+
+    public static final int MAX_CHUNK = 4 * 1024 * 1024;
+
+    private final String id;
+    private final boolean upload;
+    private final Path target;
+    private final Path temp;
+    private final long size;            // File size for downloads, expected size for uploads
+    private final boolean overwrite;
+    private final FileChannel channel;
+    private final BasicFileAttributes opened;   // Of the downloaded file when it was opened, null if the cache can't serve it
+    private final LongAdder transferred = new LongAdder();
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();    // Written ranges after the first gap: start -> end
+    private long received = 0;          // Upload bytes written without a gap from offset 0
+    private boolean committed = false;
+
+    private FileTransfer(boolean upload, Path target, Path temp, long size, boolean overwrite, FileChannel channel,
+                         BasicFileAttributes opened, String id) {
+        this.id = id;
+        this.upload = upload;
+        this.target = target;
+        this.temp = temp;
+        this.size = size;
+        this.overwrite = overwrite;
+        this.channel = channel;
+        this.opened = opened;
+    }
+
+    public static FileTransfer openDownload(File file) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        BasicFileAttributes opened;
+        try {
+            opened = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        // Replaced while it was opened, the channel may hold either file
+        if (!same(before, opened)) {
+            opened = null;
+        }
+        return new FileTransfer(false, path, null, channel.size(), false, channel, opened, UUID.randomUUID().toString());
+    }
+
+    public static FileTransfer openUpload(File file, long size, boolean overwrite) throws IOException {
+        if (size < 0) {
+            throw new IOException("Invalid file size: " + size);
+        }
+        Path path = file.toPath().toAbsolutePath();
+        if (!overwrite && Files.exists(path)) {
+            throw new IOException("File already exists and overwrite is disabled: " + path);
+        }
+        String id = UUID.randomUUID().toString();
+        Path temp = path.resolveSibling("." + path.getFileName() + "." + id.substring(0, 8) + ".part");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        return new FileTransfer(true, path, temp, size, overwrite, channel, null, id);
+    }
+
+    private static boolean same(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime()) && Objects.equals(a.fileKey(), b.fileKey());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isUpload() {
+        return upload;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getTransferred() {
+        return transferred.sum();
+    }
+
+    public byte[] read(long offset, int length) throws IOException {
+        if (upload) {
+            throw new IOException("Transfer is open for upload");
+        }
+        if (offset < 0 || length < 0) {
+            throw new IOException("Invalid chunk range: offset=" + offset + ", length=" + length);
+        }
+        int n = (int) Math.max(0, Math.min(Math.min(length, MAX_CHUNK), size - offset));
+        if (n > 0 && opened != null) {
+            // A hot file is served from memory, only a whole-file chunk may load it into the cache
+            boolean whole = offset == 0 && n == size;
+            FileContentCache.Content content = FileContentCache.getInstance().read(target, whole);
+            if (content != null && content.matches(opened) && content.data.length == size) {
+                transferred.add(n);
+                return whole ? content.data : Arrays.copyOfRange(content.data, (int) offset, (int) offset + n);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, offset + buf.position()) < 0) {
+                break;      // File shrunk after it was opened
+            }
+        }
+        transferred.add(buf.position());
+        return buf.position() == n ? buf.array() : Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    public void write(long offset, byte[] data) throws IOException {
+        if (!upload) {
+            throw new IOException("Transfer is open for download");
+        }
+        if (offset < 0 || data.length > MAX_CHUNK || offset + data.length > size) {
+            throw new IOException("Chunk out of range: offset=" + offset + ", length=" + data.length + ", size=" + size);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            channel.write(buf, offset + buf.position());
+        }
+        transferred.add(data.length);
+        markReceived(offset, offset + data.length);
+    }
+
+    private void markReceived(long start, long end) {
+        synchronized (ranges) {
+            if (start > received) {
+                // Chunks in flight complete out of order, the range waits for the gap to fill
+                Map.Entry<Long, Long> before = ranges.floorEntry(start);
+                if (before != null && before.getValue() >= start) {
+                    ranges.put(before.getKey(), Math.max(before.getValue(), end));
+                } else {
+                    ranges.merge(start, end, Math::max);
+                }
+                return;
+            }
+            received = Math.max(received, end);
+            Map.Entry<Long, Long> next;
+            while ((next = ranges.firstEntry()) != null && next.getKey() <= received) {
+                received = Math.max(received, next.getValue());
+                ranges.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * @return upload bytes received without a gap from offset 0, where a resumed upload continues
+     */
+    public long getReceived() {
+        synchronized (ranges) {
+            return received;
+        }
+    }
+
+    /**
+     * SHA-256 of the file, for uploads of the data received so far
+     * @return lower case hex digest
+     */
+    public String digest() throws IOException {
+        return Checksums.sha256(channel, size);
+    }
+
+    /**
+     * Moves a complete upload to its target
+     * @return true if an existing file was replaced
+     */
+    public synchronized boolean commit() throws IOException {
+        if (!upload) {
+            throw new IOException("Transfer is open for download");
+        }
+        long written = channel.size();
+        channel.close();
+        if (written != size || transferred.sum() < size) {
+            throw new IOException("Incomplete upload: received " + transferred.sum() + " of " + size + " bytes");
+        }
+        boolean existed = Files.exists(target);
+        if (existed && !overwrite) {
+            throw new IOException("File already exists and overwrite is disabled: " + target);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        return existed;
+    }
+
+    /**
+     * Closes the file, an uncommitted upload is discarded
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (upload && !committed) {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package csdev.threads;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Command output capture buffer
+ * <p>Keeps the first bytes of a stream in memory and spills the rest
+ * to a temporary file, so large outputs do not grow the heap.
+ * The whole output can later be read back in ranges.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class OutputCapture implements Closeable {
+
+    private static final ConcurrentHashMap<String, OutputCapture> captures = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps a spilled capture available for range reads until it is released
+     */
+    public static void register(OutputCapture capture) {
+        captures.put(capture.getId(), capture);
+    }
+
+    public static OutputCapture find(String id) {
+        return id == null ? null : captures.get(id);
+    }
+
+    public static void release(String id) {
+        OutputCapture capture = captures.remove(id);
+        if (capture != null) {
+            capture.close();
+        }
+    }
+
+    public static int getNumCaptures() {
+        return captures.size();
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final int memoryLimit;
+    private final long diskLimit;
+
+    private byte[] head = new byte[1024];
+    private int headSize = 0;
+    private Path spillFile;
+    private OutputStream spillOut;
+    private long size = 0;          // Total bytes produced
+    private boolean overflow = false;
+    private boolean closed = false;
+
+    public OutputCapture(int memoryLimit, long diskLimit) {
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            return;
+        }
+        size += len;
+
+        int toHead = Math.min(len, memoryLimit - headSize);
+        if (toHead > 0) {
+            if (headSize + toHead > head.length) {
+                byte[] grown = new byte[Math.min(memoryLimit, Math.max(head.length * 2, headSize + toHead))];
+                System.arraycopy(head, 0, grown, 0, headSize);
+                head = grown;
+            }
+            System.arraycopy(b, off, head, headSize, toHead);
+            headSize += toHead;
+            off += toHead;
+            len -= toHead;
+        }
+        if (len == 0) {
+            return;
+        }
+
+        long spilled = size - len - headSize;
+        if (spilled + len > diskLimit) {
+            overflow = true;
+            len = (int) Math.max(0, diskLimit - spilled);
+            if (len == 0) {
+                return;
+            }
+        }
+        if (spillOut == null) {
+            spillFile = Files.createTempFile("remoteshell-out-", ".tmp");
+            spillOut = new BufferedOutputStream(Files.newOutputStream(spillFile), 65536);
+        }
+        spillOut.write(b, off, len);
+    }
+
+    /**
+     * Reads the stream to its end, then flushes spilled data
+     */
+    public void drain(InputStream in) throws IOException {
+        drain(in, null, false);
+    }
+
+    /**
+     * Reads the stream to its end passing every chunk to the listener as it is produced
+     */
+    public void drain(InputStream in, CommandExecutor.OutputListener listener, boolean error) throws IOException {
+        byte[] buf = new byte[8192];
+        int n;
+        try (InputStream is = in) {
+            while ((n = is.read(buf)) != -1) {
+                write(buf, 0, n);
+                if (listener != null) {
+                    listener.onOutput(error, buf, 0, n);
+                }
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    public synchronized void finish() throws IOException {
+        if (spillOut != null) {
+            spillOut.flush();
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Number of bytes available for range reads
+     */
+    public synchronized long storedSize() {
+        return overflow ? headSize + diskLimit : size;
+    }
+
+    public synchronized boolean isSpilled() {
+        return spillFile != null || overflow;
+    }
+
+    public synchronized boolean isOverflow() {
+        return overflow;
+    }
+
+    public synchronized byte[] getHead() {
+        byte[] copy = new byte[headSize];
+        System.arraycopy(head, 0, copy, 0, headSize);
+        return copy;
+    }
+
+    public synchronized byte[] read(long offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Output is no longer available");
+        }
+        long available = storedSize();
+        if (offset < 0 || offset >= available || length <= 0) {
+            return new byte[0];
+        }
+        byte[] data = new byte[(int) Math.min(length, available - offset)];
+        int pos = 0;
+        if (offset < headSize) {
+            int n = (int) Math.min(data.length, headSize - offset);
+            System.arraycopy(head, (int) offset, data, 0, n);
+            pos = n;
+        }
+        if (pos < data.length) {
+            finish();
+            try (FileChannel ch = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+                ByteBuffer buf = ByteBuffer.wrap(data, pos, data.length - pos);
+                long filePos = offset + pos - headSize;
+                while (buf.hasRemaining()) {
+                    int n = ch.read(buf, filePos);
+                    if (n < 0) {
+                        break;
+                    }
+                    filePos += n;
+                }
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        head = null;
+        try {
+            if (spillOut != null) {
+                spillOut.close();
+            }
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package csdev.threads;
+
+import csdev.messages.MessageExecuteResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * <p>Resource usage of a running command
+ * <p>Samples /proc/&lt;pid&gt; of the shell and all its descendants while the
+ * command runs. Processes that start and exit between two samples are only
+ * visible through the cumulative child times of their parent, so values are
+ * approximate. Without /proc only total CPU time from ProcessHandle.Info is available.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class ProcessAccounting {
+
+    private static final Path PROC = Paths.get("/proc");
+    private static final boolean procAvailable = Files.isDirectory(PROC.resolve("self"));
+    private static final long TICK_MILLIS = 10;     // USER_HZ is 100 on Linux
+
+    private static class Sample {
+        long utime;         // ms
+        long stime;         // ms
+        long cutime;        // ms, waited-for children
+        long cstime;        // ms, waited-for children
+        long hwmKb;         // Peak resident set
+        long readBytes;
+        long writeBytes;
+    }
+
+    private final ProcessHandle root;
+    private final HashMap<Long, Sample> samples = new HashMap<>();
+    private long totalCpu = 0;      // From ProcessHandle.Info when /proc is unavailable
+
+    public ProcessAccounting(Process process) {
+        this.root = process.toHandle();
+    }
+
+    public static boolean isProcAvailable() {
+        return procAvailable;
+    }
+
+    public void sample() {
+        if (!procAvailable) {
+            root.info().totalCpuDuration().map(Duration::toMillis).ifPresent(ms -> totalCpu = Math.max(totalCpu, ms));
+            return;
+        }
+        List<ProcessHandle> handles;
+        try (Stream<ProcessHandle> descendants = root.descendants()) {
+            handles = Stream.concat(Stream.of(root), descendants).collect(Collectors.toList());
+        }
+        for (ProcessHandle handle : handles) {
+            Sample s = readSample(handle.pid());
+            if (s != null) {
+                samples.put(handle.pid(), s);
+            }
+        }
+    }
+
+    private static Sample readSample(long pid) {
+        Path dir = PROC.resolve(Long.toString(pid));
+        try {
+            String stat = new String(Files.readAllBytes(dir.resolve("stat")));
+            // The command name may contain spaces, fields start after its closing parenthesis
+            String[] f = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            Sample s = new Sample();
+            s.utime = Long.parseLong(f[11]) * TICK_MILLIS;
+            s.stime = Long.parseLong(f[12]) * TICK_MILLIS;
+            s.cutime = Long.parseLong(f[13]) * TICK_MILLIS;
+            s.cstime = Long.parseLong(f[14]) * TICK_MILLIS;
+
+            for (String line : Files.readAllLines(dir.resolve("status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    s.hwmKb = parseNumber(line);
+                    break;
+                }
+            }
+            try {
+                for (String line : Files.readAllLines(dir.resolve("io"))) {
+                    if (line.startsWith("read_bytes:")) {
+                        s.readBytes = parseNumber(line);
+                    } else if (line.startsWith("write_bytes:")) {
+                        s.writeBytes = parseNumber(line);
+                    }
+                }
+            } catch (IOException e) {
+                // io is not readable without ptrace access
+            }
+            return s;
+        } catch (IOException | RuntimeException e) {
+            return null;    // Process exited between listing and reading
+        }
+    }
+
+    private static long parseNumber(String line) {
+        String digits = line.replaceAll("[^0-9]", "");
+        return digits.isEmpty() ? 0 : Long.parseLong(digits);
+    }
+
+    public void apply(MessageExecuteResult result) {
+        if (!procAvailable) {
+            result.cpuUserMillis = totalCpu;
+            return;
+        }
+        long ownUser = 0, ownSys = 0, peak = 0, read = 0, write = 0;
+        for (Sample s : samples.values()) {
+            ownUser += s.utime;
+            ownSys += s.stime;
+            peak = Math.max(peak, s.hwmKb);
+            read += s.readBytes;
+            write += s.writeBytes;
+        }
+        // Both are lower bounds: sampled processes vs. children already reaped by the shell
+        Sample shell = samples.get(root.pid());
+        long shellUser = shell != null ? shell.utime + shell.cutime : 0;
+        long shellSys = shell != null ? shell.stime + shell.cstime : 0;
+
+        result.cpuUserMillis = Math.max(ownUser, shellUser);
+        result.cpuSystemMillis = Math.max(ownSys, shellSys);
+        result.peakRssKb = peak;
+        result.ioReadBytes = read;
+        result.ioWriteBytes = write;
+    }
+}
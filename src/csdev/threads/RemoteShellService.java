@@ -4,6 +4,7 @@ import csdev.messages.*;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * <p>RMI Remote interface for Remote Shell Service
@@ -14,5 +15,24 @@ public interface RemoteShellService extends Remote {
     MessageConnectResult connect(MessageConnect msg, String sessionId) throws RemoteException;
     void disconnect(MessageDisconnect msg, String sessionId) throws RemoteException;
 
+    // Renews the session lease; returns the lease time in ms, fails if the session has expired
+    long heartbeat(String sessionId) throws RemoteException;
+
     MessageResult processCommand(Message msg, String sessionId)  throws RemoteException;
+
+    // Several commands in one call, results are returned in the same order. In parallel
+    // mode the commands between two chdir commands run concurrently.
+    List<MessageResult> processCommands(List<Message> msgs, String sessionId) throws RemoteException;
+    List<MessageResult> processCommands(List<Message> msgs, String sessionId, boolean parallel) throws RemoteException;
+
+    // Chunked file transfer: open a handle, move chunks at explicit offsets (several
+    // calls may be in flight), then close it. Failed chunk calls throw RemoteException.
+    // An upload closed with the SHA-256 of the file is committed only if the data matches;
+    // the result of a download read to the end carries the file's SHA-256.
+    MessageTransferHandle openDownload(String filePath, String sessionId) throws RemoteException;
+    MessageTransferHandle openUpload(String fileName, String filePath, long fileSize, boolean overwrite, String sessionId) throws RemoteException;
+    byte[] readChunk(String handleId, long offset, int length, String sessionId) throws RemoteException;
+    void writeChunk(String handleId, long offset, byte[] data, String sessionId) throws RemoteException;
+    MessageResult closeTransfer(String handleId, String sessionId) throws RemoteException;
+    MessageResult closeTransfer(String handleId, String sha256, String sessionId) throws RemoteException;
 }
@@ -0,0 +1,62 @@
+package csdev.threads;
+
+import csdev.messages.MessageExecuteResult;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Server-wide resource usage of executed commands per user
+ * @author cin-tie
+ * @version 1.0
+ */
+public class ResourceMetrics {
+
+    public static class Usage {
+        public final String username;
+        public final LongAdder commands = new LongAdder();
+        public final LongAdder wallMillis = new LongAdder();
+        public final LongAdder cpuUserMillis = new LongAdder();
+        public final LongAdder cpuSystemMillis = new LongAdder();
+        public final LongAdder ioReadBytes = new LongAdder();
+        public final LongAdder ioWriteBytes = new LongAdder();
+        public final AtomicLong peakRssKb = new AtomicLong();
+
+        Usage(String username) {
+            this.username = username;
+        }
+
+        public long cpuMillis() {
+            return cpuUserMillis.sum() + cpuSystemMillis.sum();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Usage> users = new ConcurrentHashMap<>();
+
+    public static void record(String username, MessageExecuteResult result) {
+        if (result.Error() || result.cached) {
+            return;
+        }
+        Usage u = users.computeIfAbsent(username == null ? "unknown" : username, Usage::new);
+        u.commands.increment();
+        u.wallMillis.add(result.executionTime);
+        u.cpuUserMillis.add(result.cpuUserMillis);
+        u.cpuSystemMillis.add(result.cpuSystemMillis);
+        u.ioReadBytes.add(result.ioReadBytes);
+        u.ioWriteBytes.add(result.ioWriteBytes);
+        u.peakRssKb.accumulateAndGet(result.peakRssKb, Math::max);
+    }
+
+    /**
+     * Users ordered by total CPU time, heaviest first
+     */
+    public static List<Usage> getUsage() {
+        List<Usage> list = new ArrayList<>(users.values());
+        list.sort(Comparator.comparingLong(Usage::cpuMillis).reversed());
+        return list;
+    }
+}
@@ -2,30 +2,57 @@ package csdev.threads;
 
 import csdev.Protocol;
 import csdev.messages.*;
+import csdev.server.AdmissionController;
+import csdev.server.CredentialStore;
+import csdev.server.DetachedSessions;
+import csdev.server.ServerConfig;
 import csdev.server.ServerMain;
+import csdev.threads.session.ClientSession;
 import csdev.threads.session.RmiClientSession;
 import csdev.utils.Logger;
+import csdev.utils.TimerWheel;
 
 import java.io.*;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.RemoteServer;
+import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
 
 
 /**
  * <p>RMI server thread for handling client connections
+ * <p>Sessions hold a lease renewed by every call and by heartbeats; sessions of
+ * crashed clients are removed once their lease expires.
+ * <br>Options:
+ * <br>remoteshell.rmi.leaseTime - session lease time in ms
  * @author cin-tie
  * @version 1.0
  */
-public class RmiServerThread extends Thread implements RemoteShellService{
+public class RmiServerThread extends Thread implements RemoteShellService, Transport {
 
     private Registry registry;
     private boolean running = true;
     private ConcurrentHashMap<String, RmiClientSession> sessions = new ConcurrentHashMap<>();
 
+    public static final int MAX_BATCH = 256;
+    private static final int BATCH_PARALLELISM = Runtime.getRuntime().availableProcessors();    // Commands of a parallel batch running at once
+    private static final long LEASE_TIME = Math.max(1000, ServerConfig.getLong("rmi.leaseTime", 60000));
+
+    // Leases are checked lazily: a wheel entry that fires for a renewed session is rescheduled
+    private final TimerWheel<String> leases = new TimerWheel<>(1000, 64, this::onLeaseTimeout);
+    private long expiredSessions = 0;
+    private static final ExecutorService batchExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "RmiBatch");
+        t.setDaemon(true);
+        return t;
+    });
+
     public RmiServerThread() throws RemoteException {
         super();
         this.setDaemon(true);
@@ -35,7 +62,11 @@ public class RmiServerThread extends Thread implements RemoteShellService{
     @Override
     public void run() {
         try {
-            RemoteShellService stub = (RemoteShellService) UnicastRemoteObject.exportObject(this, Protocol.RMI_OBJECT_PORT);
+            RmiSocketFactory factory = RmiSocketFactory.fromConfig();
+            RemoteShellService stub = factory == null
+                    ? (RemoteShellService) UnicastRemoteObject.exportObject(this, Protocol.RMI_OBJECT_PORT)
+                    : (RemoteShellService) UnicastRemoteObject.exportObject(this, Protocol.RMI_OBJECT_PORT, factory, factory);
+            Logger.logServer("RMI socket factory: " + (factory == null ? "default" : factory.getDescription()));
             registry = LocateRegistry.createRegistry(Protocol.RMI_PORT);
             registry.rebind("RmiServerThread", stub);
 
@@ -43,7 +74,8 @@ public class RmiServerThread extends Thread implements RemoteShellService{
 
             while (running && !ServerMain.getStopFlag()) {
                 try {
-                    Thread.sleep(1000);
+                    Thread.sleep(leases.getTickMillis());
+                    leases.advance(System.currentTimeMillis());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -58,242 +90,376 @@ public class RmiServerThread extends Thread implements RemoteShellService{
 
     @Override
     public MessageConnectResult connect(MessageConnect msg, String sessionId){
+        String rejected = AdmissionController.getInstance().checkConnection(getClientHost());
+        if (rejected != null) {
+            logDebug("RMI connection rejected - " + rejected);
+            return new MessageConnectResult("Connection rejected: " + rejected);
+        }
         logInfo("RMI connecting attempt from: " + msg.username + "(" + msg.usernameFull + ")");
 
-        if(ServerMain.isPasswordRequired()){
-            if(msg.password == null || !ServerMain.getServerPassword().equals(msg.password)){
+        CredentialStore credentials = CredentialStore.getInstance();
+        if(credentials.isPasswordRequired()){
+            if(!credentials.authenticate(msg)){
                 MessageConnectResult result = new MessageConnectResult("Wrong password");
                 logWarning("RMI connection rejected - invalid password for user: " + msg.username);
                 return result;
             }
         }
 
-        if(sessions.containsKey(sessionId)){
+        DetachedSessions.getInstance().takeOver(msg);
+        if(lookup(sessionId) != null){
             MessageConnectResult result = new MessageConnectResult("User already connected: " + msg.username);
-            logWarning("UDP connection rejected - user already connected: " + msg.username);
+            logWarning("RMI connection rejected - user already connected: " + msg.username);
             return result;
         }
 
+        rejected = AdmissionController.getInstance().checkUser(msg.username);
+        if (rejected != null) {
+            logWarning("RMI connection rejected - " + rejected);
+            return new MessageConnectResult(rejected);
+        }
+
         RmiClientSession session = new RmiClientSession();
-        session.registerUser(msg.username, msg.usernameFull);
+        boolean resumed = session.attach(msg);
+        session.renewLease(LEASE_TIME);
         sessions.put(sessionId, session);
+        leases.schedule(sessionId, session.getLeaseExpiry());
 
         String serverOS = System.getProperty("os.name") + " " + System.getProperty("os.version");
         String serverVersion = "Remote Shell server 1.0";
         MessageConnectResult result = new MessageConnectResult(serverOS, session.getCurrentDirectory(), serverVersion);
+        result.token = session.issueToken();
+        result.resumed = resumed;
+        if (resumed) {
+            result.transfers = session.getTransferHandles();
+        }
         logInfo("User connected successfully via RMI: " + msg.username);
         return result;
     }
 
+    /**
+     * Address of the client of the current remote call
+     */
+    private static String getClientHost() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
+    }
+
     @Override
     public void disconnect(MessageDisconnect msg, String sessionId) throws RemoteException {
-        String username = sessions.get(sessionId).getUsername();
-        sessions.remove(sessionId);
+        RmiClientSession session = sessions.remove(sessionId);
+        if(session == null){
+            return;
+        }
+        String username = session.getUsername();
+        session.disconnect();
         logInfo("RMI Client disconnected: " + username);
     }
 
+    @Override
+    public long heartbeat(String sessionId) throws RemoteException {
+        getSession(sessionId);
+        return LEASE_TIME;
+    }
+
+    private void onLeaseTimeout(String sessionId) {
+        RmiClientSession session = sessions.get(sessionId);
+        if (session == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!session.isLeaseExpired(now)) {
+            leases.schedule(sessionId, Math.max(session.getLeaseExpiry(), now + leases.getTickMillis()));
+            return;
+        }
+        if (sessions.remove(sessionId, session)) {
+            String username = session.getUsername();
+            session.connectionLost();
+            synchronized (this) {
+                expiredSessions++;
+            }
+            logWarning("RMI session expired (no calls for " + LEASE_TIME + "ms): " + username);
+        }
+    }
+
     @Override
     public MessageResult processCommand(Message msg, String sessionId) throws RemoteException {
         if(msg == null || sessionId == null){
             return new MessageExecuteResult("Invalid message: null");
         }
-        RmiClientSession session = sessions.get(sessionId);
+        RmiClientSession session = lookup(sessionId);
         if(session == null){
             return new MessageExecuteResult("Invalid message: session not found");
         }
+        session.renewLease(LEASE_TIME);
 
-        try {
-            switch (msg.getId()){
-                case Protocol.CMD_EXECUTE:
-                    return processExecuteCommand((MessageExecute) msg, session);
-                case Protocol.CMD_UPLOAD:
-                    return processUploadCommand((MessageUpload) msg, session);
-                case Protocol.CMD_DOWNLOAD:
-                    return processDownloadCommand((MessageDownload) msg, session);
-                case Protocol.CMD_CHDIR:
-                    return processChdirCommand((MessageChdir) msg, session);
-                case Protocol.CMD_GETDIR:
-                    return processGetdirCommand((MessageGetdir) msg, session);
-                default:
-                    return new MessageExecuteResult("Unknown command type: " + msg.getId());
-            }
-        } catch (Exception e){
-            logError("RMI Command processing error: " + e.getMessage());
-            return new MessageExecuteResult("Command processing failed: " + e.getMessage());
-        }
+        return session.process(msg.getId() == Protocol.CMD_CHDIR, () -> CommandEngine.process(msg, session));
     }
 
-    private MessageResult processExecuteCommand(MessageExecute msg, RmiClientSession session) throws RemoteException {
-        logInfo("Executing RMI command for " + session.getUsername() + ": " + msg.command);
+    @Override
+    public List<MessageResult> processCommands(List<Message> msgs, String sessionId) throws RemoteException {
+        return processCommands(msgs, sessionId, false);
+    }
 
-        try {
-            String command = msg.command;
-            String workingDir = (msg.workingDir == null || msg.workingDir.isEmpty()) ? session.getCurrentDirectory() : msg.workingDir;
-            long timeout = msg.timeMillis > 0 ? msg.timeMillis : 30000;
-
-            ProcessBuilder pb = new ProcessBuilder();
-            if (System.getProperty("os.name").toLowerCase().contains("windows")) {
-                pb.command("cmd.exe", "/c", command);
-            } else {
-                pb.command("sh", "-c", command);
-            }
-            pb.directory(new File(workingDir));
+    @Override
+    public List<MessageResult> processCommands(List<Message> msgs, String sessionId, boolean parallel) throws RemoteException {
+        if (msgs == null || msgs.size() > MAX_BATCH) {
+            throw new RemoteException("Invalid batch: " + (msgs == null ? "null" : msgs.size() + " commands, max " + MAX_BATCH));
+        }
+        getSession(sessionId);
+        logDebug("RMI Batch of " + msgs.size() + " commands" + (parallel ? " (parallel)" : ""));
 
-            long startTime = System.currentTimeMillis();
-            Process process = pb.start();
+        List<MessageResult> results = new ArrayList<>(msgs.size());
+        if (!parallel) {
+            for (Message msg : msgs) {
+                results.add(processCommand(msg, sessionId));
+            }
+            return results;
+        }
 
-            boolean finished = false;
+        // A chdir affects every later command, so it ends the concurrent segment
+        List<Future<MessageResult>> segment = new ArrayList<>();
+        Semaphore slots = new Semaphore(BATCH_PARALLELISM);
+        for (Message msg : msgs) {
+            if (msg != null && msg.getId() == Protocol.CMD_CHDIR) {
+                awaitAll(segment, results);
+                results.add(processCommand(msg, sessionId));
+                continue;
+            }
             try {
-                finished = process.waitFor(timeout, TimeUnit.MILLISECONDS);
+                slots.acquire();
             } catch (InterruptedException e) {
-                process.destroy();
                 Thread.currentThread().interrupt();
-                throw new IOException("Command execution interrupted");
+                throw new RemoteException("Batch interrupted");
             }
+            segment.add(batchExecutor.submit(() -> {
+                try {
+                    return processCommand(msg, sessionId);
+                } finally {
+                    slots.release();
+                }
+            }));
+        }
+        awaitAll(segment, results);
+        return results;
+    }
 
-            long executionTime = System.currentTimeMillis() - startTime;
-
-            if (!finished) {
-                process.destroyForcibly();
-                MessageExecuteResult result = new MessageExecuteResult("Command timed out after " + timeout + "ms");
-                logWarning("RMI Command timeout for " + session.getUsername() + ": " + command);
-                return result;
+    private void awaitAll(List<Future<MessageResult>> segment, List<MessageResult> results) throws RemoteException {
+        for (Future<MessageResult> f : segment) {
+            try {
+                results.add(f.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Batch interrupted");
+            } catch (ExecutionException e) {
+                results.add(new MessageExecuteResult("Command processing failed: " + e.getCause().getMessage()));
             }
+        }
+        segment.clear();
+    }
 
-            String output = readStream(process.getInputStream());
-            String error = readStream(process.getErrorStream());
-            int exitCode = process.exitValue();
-
-            MessageExecuteResult result = new MessageExecuteResult(output, error, exitCode, executionTime, workingDir);
+    @Override
+    public MessageTransferHandle openDownload(String filePath, String sessionId) throws RemoteException {
+        RmiClientSession session = getSession(sessionId);
+        return session.process(false, () -> openDownload(filePath, session));
+    }
 
-            logInfo("RMI Command completed for " + session.getUsername() + " [exitCode=" + exitCode + ", time=" + executionTime + "ms]");
-            return result;
+    private MessageTransferHandle openDownload(String filePath, RmiClientSession session) {
+        logInfo("RMI Chunked download request from " + session.getUsername() + ": " + filePath);
 
-        } catch (Exception e) {
-            logError("RMI Command execution failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageExecuteResult result = new MessageExecuteResult("Command execution failed: " + e.getMessage());
-            return result;
+        File file = CommandEngine.resolve(filePath, session);
+        if (!file.exists() || !file.isFile()) {
+            return new MessageTransferHandle(Protocol.CMD_DOWNLOAD, "File not found: " + filePath);
+        }
+        if (!file.canRead()) {
+            return new MessageTransferHandle(Protocol.CMD_DOWNLOAD, "Cannot read file: " + filePath);
+        }
+        try {
+            return openTransfer(Protocol.CMD_DOWNLOAD, FileTransfer.openDownload(file), session);
+        } catch (IOException e) {
+            logError("RMI Chunked download failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageTransferHandle(Protocol.CMD_DOWNLOAD, "File download failed: " + e.getMessage());
         }
     }
 
-    private MessageUploadResult processUploadCommand(MessageUpload msg, RmiClientSession session) throws RemoteException{
-        logInfo("Uploading file via RMI from " + session.getUsername() + ": " + msg.fileName);
+    @Override
+    public MessageTransferHandle openUpload(String fileName, String filePath, long fileSize, boolean overwrite, String sessionId) throws RemoteException {
+        RmiClientSession session = getSession(sessionId);
+        return session.process(false, () -> openUpload(fileName, filePath, fileSize, overwrite, session));
+    }
+
+    private MessageTransferHandle openUpload(String fileName, String filePath, long fileSize, boolean overwrite, RmiClientSession session) {
+        logInfo("RMI Chunked upload request from " + session.getUsername() + ": " + fileName + " [size=" + fileSize + " bytes]");
 
+        File targetDir = CommandEngine.resolve(filePath, session);
+        if (!targetDir.exists() || !targetDir.isDirectory()) {
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "Invalid target directory: " + filePath);
+        }
+        if (fileName == null || fileName.isEmpty() || new File(fileName).getName().length() != fileName.length()) {
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "Invalid file name: " + fileName);
+        }
         try {
-            File targetDir = new File(msg.filePath.isEmpty() ? session.getCurrentDirectory() : msg.filePath);
-            if (!targetDir.exists() || !targetDir.isDirectory()) {
-                MessageUploadResult result = new MessageUploadResult("Invalid target directory: " + msg.filePath);
-                return result;
-            }
+            return openTransfer(Protocol.CMD_UPLOAD, FileTransfer.openUpload(new File(targetDir, fileName), fileSize, overwrite), session);
+        } catch (IOException e) {
+            logError("RMI Chunked upload failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageTransferHandle(Protocol.CMD_UPLOAD, "File upload failed: " + e.getMessage());
+        }
+    }
 
-            File targetFile = new File(targetDir, msg.fileName);
-            boolean fileExists = targetFile.exists();
+    private MessageTransferHandle openTransfer(byte id, FileTransfer transfer, RmiClientSession session) {
+        if (!session.addTransfer(transfer)) {
+            transfer.close();
+            return new MessageTransferHandle(id, "Too many open transfers");
+        }
+        return new MessageTransferHandle(id, transfer.getId(), transfer.getTarget().getFileName().toString(),
+                transfer.getTarget().toString(), transfer.getSize(), FileTransfer.MAX_CHUNK);
+    }
 
-            if (fileExists && !msg.overwrite) {
-                MessageUploadResult result = new MessageUploadResult("File already exists and overwrite is disabled: " + targetFile.getAbsolutePath());
-                return result;
+    @Override
+    public byte[] readChunk(String handleId, long offset, int length, String sessionId) throws RemoteException {
+        RmiClientSession session = getSession(sessionId);
+        FileTransfer transfer = getTransfer(handleId, session);
+        return session.process(false, () -> {
+            try {
+                return transfer.read(offset, length);
+            } catch (IOException e) {
+                throw new RemoteException("Chunk read failed: " + e.getMessage());
             }
+        });
+    }
 
-            try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-                fos.write(msg.fileData);
+    @Override
+    public void writeChunk(String handleId, long offset, byte[] data, String sessionId) throws RemoteException {
+        RmiClientSession session = getSession(sessionId);
+        FileTransfer transfer = getTransfer(handleId, session);
+        session.process(false, () -> {
+            try {
+                transfer.write(offset, data);
+                return null;
+            } catch (IOException e) {
+                throw new RemoteException("Chunk write failed: " + e.getMessage());
             }
+        });
+    }
 
-            MessageUploadResult result = new MessageUploadResult(targetFile.getAbsolutePath(), msg.fileSize, fileExists);
-
-            logInfo("RMI File uploaded successfully: " + targetFile.getAbsolutePath() + " [size=" + msg.fileSize + " bytes, overwrite=" + fileExists + "]");
-            return result;
-        } catch (Exception e) {
-            logError("RMI File upload failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageUploadResult result = new MessageUploadResult("File upload failed: " + e.getMessage());
-            return result;
-        }
+    @Override
+    public MessageResult closeTransfer(String handleId, String sessionId) throws RemoteException {
+        return closeTransfer(handleId, null, sessionId);
     }
 
-    private MessageDownloadResult processDownloadCommand(MessageDownload msg, RmiClientSession session) throws RemoteException {
-        logInfo("RMI File download request from " + session.getUsername() + ": " + msg.filePath);
+    @Override
+    public MessageResult closeTransfer(String handleId, String sha256, String sessionId) throws RemoteException {
+        RmiClientSession session = getSession(sessionId);
+        return session.process(false, () -> closeTransfer(handleId, sha256, session));
+    }
 
+    private MessageResult closeTransfer(String handleId, String sha256, RmiClientSession session) {
+        FileTransfer transfer = session.removeTransfer(handleId);
+        if (transfer == null) {
+            return new MessageExecuteResult("Transfer not found: " + handleId);
+        }
         try {
-            File file = new File(msg.filePath.isEmpty() ? session.getCurrentDirectory() : msg.filePath);
-            if (!file.exists() || !file.isFile()) {
-                MessageDownloadResult result = new MessageDownloadResult("File not found: " + msg.filePath);
+            String path = transfer.getTarget().toString();
+            if (!transfer.isUpload()) {
+                MessageDownloadResult result = new MessageDownloadResult(transfer.getTarget().getFileName().toString(), transfer.getSize(), null, false, false);
+                result.dataSize = transfer.getTransferred();
+                if (result.dataSize >= transfer.getSize()) {
+                    result.sha256 = transfer.digest();
+                }
+                logInfo("RMI File downloaded in chunks: " + path + " [size=" + transfer.getSize() + " bytes, sent=" + result.dataSize + " bytes]");
                 return result;
             }
-
-            if (!file.canRead()) {
-                MessageDownloadResult result = new MessageDownloadResult("Cannot read file: " + msg.filePath);
-                return result;
+            String digest = transfer.digest();
+            if (sha256 != null && !digest.equalsIgnoreCase(sha256)) {
+                logWarning("RMI Checksum mismatch in upload from " + session.getUsername() + ": " + path);
+                return new MessageUploadResult("Checksum mismatch: expected " + sha256 + ", received " + digest);
             }
-
-            long fileSize = file.length();
-            byte[] fileData = new byte[(int) fileSize];
-            try (FileInputStream fis = new FileInputStream(file)) {
-                BufferedInputStream bis = new BufferedInputStream(fis);
-                int bytesRead = bis.read(fileData);
-                if (bytesRead != fileSize) {
-                    throw new IOException("Failed to read complete file data");
-                }
-            }
-
-            MessageDownloadResult result = new MessageDownloadResult(file.getName(), fileSize, fileData, false, false);
-            logInfo("RMI Small file downloaded: " + msg.filePath + " [size=" + fileSize + " bytes]");
+            boolean existed = transfer.commit();
+            logInfo("RMI File uploaded in chunks: " + path + " [size=" + transfer.getSize() + " bytes, overwrite=" + existed
+                    + (sha256 != null ? ", sha256 verified" : "") + "]");
+            MessageUploadResult result = new MessageUploadResult(path, transfer.getSize(), existed);
+            result.sha256 = digest;
             return result;
+        } catch (IOException e) {
+            logError("RMI Chunked upload failed for " + session.getUsername() + ": " + e.getMessage());
+            return new MessageUploadResult("File upload failed: " + e.getMessage());
+        } finally {
+            transfer.close();
+        }
+    }
 
-        } catch (Exception e) {
-            logError("RMI File download failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageDownloadResult result = new MessageDownloadResult("File download failed: " + e.getMessage());
-            return result;
+    /**
+     * @return the session, null if there is none or it was resumed by a connection of another client
+     */
+    private RmiClientSession lookup(String sessionId) {
+        RmiClientSession session = sessionId == null ? null : sessions.get(sessionId);
+        if (session != null && !session.isConnected()) {
+            sessions.remove(sessionId, session);
+            return null;
         }
+        return session;
     }
 
-    private MessageChdirResult processChdirCommand(MessageChdir msg, RmiClientSession session) throws RemoteException {
-        logInfo("RMI Directory change request from " + session.getUsername() + ": " + msg.newDirectory);
+    private RmiClientSession getSession(String sessionId) throws RemoteException {
+        RmiClientSession session = lookup(sessionId);
+        if (session == null) {
+            throw new RemoteException("Session not found");
+        }
+        session.renewLease(LEASE_TIME);
+        return session;
+    }
 
-        try {
-            File newDir = new File(msg.newDirectory);
-            if (!newDir.exists() || !newDir.isDirectory()) {
-                MessageChdirResult result = new MessageChdirResult("Directory does not exist: " + msg.newDirectory);
-                return result;
-            }
+    private FileTransfer getTransfer(String handleId, RmiClientSession session) throws RemoteException {
+        FileTransfer transfer = session.getTransfer(handleId);
+        if (transfer == null) {
+            throw new RemoteException("Transfer not found: " + handleId);
+        }
+        return transfer;
+    }
 
-            String oldDirectory = session.getCurrentDirectory();
-            session.setCurrentDirectory(newDir.getAbsolutePath());
+    /**
+     * Connected RMI users with the number of calls being processed for each
+     */
+    public String[] getSessionStatus() {
+        long now = System.currentTimeMillis();
+        return sessions.values().stream()
+                .map(s -> s.getUsername() + " [in-flight=" + s.getInFlight()
+                        + ", lease=" + Math.max(0, (s.getLeaseExpiry() - now) / 1000) + "s]")
+                .toArray(String[]::new);
+    }
 
-            MessageChdirResult result = new MessageChdirResult(session.getCurrentDirectory(), oldDirectory);
-            logInfo("RMI Directory changed for " + session.getUsername() + " successfully: " + oldDirectory + " -> " + session.getCurrentDirectory());
-            return result;
-        } catch (Exception e) {
-            logError("RMI Directory change failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageChdirResult result = new MessageChdirResult("Directory change failed: " + e.getMessage());
-            return result;
-        }
+    public synchronized String getLeaseStats() {
+        return "lease=" + LEASE_TIME + "ms, active=" + sessions.size() + ", expired=" + expiredSessions;
     }
 
-    private MessageGetdirResult processGetdirCommand(MessageGetdir msg, RmiClientSession session) throws RemoteException {
-        logDebug("RMI Current directory request from " + session.getUsername());
+    @Override
+    public String getProtocol() {
+        return "RMI";
+    }
 
-        try {
-            MessageGetdirResult result = new MessageGetdirResult(session.getCurrentDirectory(), 0);
-            return result;
-        } catch (Exception e) {
-            logError("RMI Get directory failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageGetdirResult result = new MessageGetdirResult("Get directory failed: " + e.getMessage());
-            return result;
-        }
+    @Override
+    public void startServer() {
+        start();
     }
 
-    private String readStream(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-        }
-        return sb.toString();
+    @Override
+    public void awaitTermination(long millis) throws InterruptedException {
+        join(millis);
     }
 
+    @Override
+    public Collection<? extends ClientSession> getSessions() {
+        return sessions.values();
+    }
+
+    @Override
     public void stopServer(){
         running = false;
+        sessions.values().forEach(RmiClientSession::disconnect);
+        sessions.clear();
         try{
             if(registry != null){
                 try {
@@ -0,0 +1,172 @@
+package csdev.threads;
+
+import csdev.server.ServerConfig;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketImpl;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>Socket factory for RMI calls
+ * <p>The client side is serialized into the service stub, so clients use the
+ * same settings as the server without configuration. Sockets disable Nagle's
+ * algorithm (small calls are not delayed waiting for the previous ACK), use the
+ * configured buffer sizes and optionally compress the stream with Deflater;
+ * SYNC_FLUSH keeps every flushed RMI call decodable on its own.
+ * <br>Options:
+ * <br>remoteshell.rmi.socketFactory - "default" (JDK sockets), "tuned" or "compressed"
+ * <br>remoteshell.rmi.bufferSize - socket send/receive buffer in KB
+ * <br>remoteshell.rmi.compressionLevel - Deflater level 1-9
+ * @author cin-tie
+ * @version 1.0
+ */
+public class RmiSocketFactory implements RMIClientSocketFactory, RMIServerSocketFactory, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int bufferSize;       // 0 keeps the OS default
+    private final int compressionLevel; // 0 disables compression
+
+    public RmiSocketFactory(int bufferSize, int compressionLevel) {
+        this.bufferSize = bufferSize;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Factory selected by server options, null for JDK default sockets
+     */
+    public static RmiSocketFactory fromConfig() {
+        String mode = ServerConfig.getString("rmi.socketFactory", "default").toLowerCase();
+        int bufferSize = ServerConfig.getInt("rmi.bufferSize", 64) * 1024;
+        switch (mode) {
+            case "tuned":
+                return new RmiSocketFactory(bufferSize, 0);
+            case "compressed":
+                int level = Math.max(1, Math.min(9, ServerConfig.getInt("rmi.compressionLevel", 1)));
+                return new RmiSocketFactory(bufferSize, level);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = compressionLevel > 0 ? new CompressedSocket(compressionLevel) : new Socket();
+        configure(socket);
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    @Override
+    public ServerSocket createServerSocket(int port) throws IOException {
+        ServerSocket server = new ServerSocket() {
+            @Override
+            public Socket accept() throws IOException {
+                Socket socket;
+                if (compressionLevel > 0) {
+                    socket = new CompressedSocket(compressionLevel, null);
+                    implAccept(socket);
+                } else {
+                    socket = super.accept();
+                }
+                configure(socket);
+                return socket;
+            }
+        };
+        if (bufferSize > 0) {
+            server.setReceiveBufferSize(bufferSize);    // Applies to accepted sockets, must be set before bind
+        }
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    private void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        if (bufferSize > 0) {
+            socket.setSendBufferSize(bufferSize);
+            socket.setReceiveBufferSize(bufferSize);
+        }
+    }
+
+    public String getDescription() {
+        return (compressionLevel > 0 ? "compressed(level=" + compressionLevel + ")" : "tuned")
+                + ", TCP_NODELAY, buffer=" + (bufferSize > 0 ? bufferSize / 1024 + "KB" : "default");
+    }
+
+    // RMI reuses connections only for equal factories
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RmiSocketFactory f = (RmiSocketFactory) o;
+        return bufferSize == f.bufferSize && compressionLevel == f.compressionLevel;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(bufferSize, compressionLevel);
+    }
+
+    /**
+     * <p>Socket with a Deflater compressed stream in both directions
+     */
+    private static class CompressedSocket extends Socket {
+        private static final int BUFFER = 64 * 1024;
+        private final int level;
+        private InputStream in;
+        private OutputStream out;
+
+        CompressedSocket(int level) {
+            super();
+            this.level = level;
+        }
+
+        /**
+         * Unconnected socket for ServerSocket.implAccept
+         */
+        CompressedSocket(int level, SocketImpl impl) throws IOException {
+            super(impl);
+            this.level = level;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new InflaterInputStream(super.getInputStream(), new Inflater(), BUFFER) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                Deflater deflater = new Deflater(level);
+                out = new DeflaterOutputStream(super.getOutputStream(), deflater, BUFFER, true) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        deflater.end();
+                    }
+                };
+            }
+            return out;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package csdev.threads;
 
+import csdev.server.AdmissionController;
+import csdev.server.DetachedSessions;
 import csdev.server.ServerMain;
 import csdev.utils.Logger;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Scanner;
 
 /**
@@ -18,6 +21,8 @@ public class ServerStopThread extends CommandThread {
     static final String cmdStop  = "stop";
     static final String cmdStatusL = "status";
     static final String cmdStatus = "s";
+    static final String cmdUsageL = "usage";
+    static final String cmdUsage = "u";
     static final String cmdHelpL = "help";
     static final String cmdHelp = "h";
 
@@ -48,6 +53,11 @@ public class ServerStopThread extends CommandThread {
             public boolean onCommand(int[] errorCode) { return onCmdStatus(); }
         });
 
+        putHandler(cmdUsage, cmdUsageL, new CmdHandler() {
+            @Override
+            public boolean onCommand(int[] errorCode) { return onCmdUsage(); }
+        });
+
         putHandler(cmdHelp, cmdHelpL, new CmdHandler() {
             @Override
             public boolean onCommand(int[] errorCode) { return onCmdHelp(); }
@@ -63,7 +73,8 @@ public class ServerStopThread extends CommandThread {
     public boolean onCmdStatus() {
         int userCount = ServerMain.getNumUsers();
         Logger.logInfo("Server status - Active users: " + userCount + ", Max users: " + ServerMain.MAX_USERS);
-        String[] users = ServerMain.getUsers();
+        String[] users = ServerMain.getSessionRegistry().snapshot().stream()
+                .map(e -> e.getUsername() + "(" + e.getProtocol() + ")").sorted().toArray(String[]::new);
         if (users.length > 0) {
             Logger.logInfo("Connected users: " + String.join(", ", users));
             System.out.println("Active users: " + String.join(", ", users));
@@ -71,6 +82,47 @@ public class ServerStopThread extends CommandThread {
             System.out.println("No active users");
         }
         System.out.println("Total connections: " + userCount + "/" + ServerMain.MAX_USERS);
+        System.out.println("Admission: " + AdmissionController.getInstance().getStats());
+        System.out.println("Resumable sessions: " + DetachedSessions.getInstance().getStats());
+        StringBuilder transports = new StringBuilder();
+        for (Transport transport : ServerMain.getTransports()) {
+            transports.append(transports.length() > 0 ? ", " : "").append(transport.getProtocol()).append("(").append(transport.getSessions().size()).append(")");
+        }
+        System.out.println("Transports: " + transports);
+        RmiServerThread rmi = ServerMain.getRmiServerThread();
+        if (rmi != null) {
+            System.out.println("RMI leases: " + rmi.getLeaseStats());
+            String[] rmiSessions = rmi.getSessionStatus();
+            if (rmiSessions.length > 0) {
+                System.out.println("RMI sessions: " + String.join(", ", rmiSessions));
+            }
+        }
+        CommandResultCache cache = CommandResultCache.getInstance();
+        if (cache.isEnabled()) {
+            System.out.println("Command cache: " + cache.getStats());
+        }
+        System.out.println("Directory cache: " + DirectoryCache.getInstance().getStats());
+        System.out.println("File cache: " + FileContentCache.getInstance().getStats());
+        CgroupManager cgroups = CgroupManager.getInstance();
+        if (cgroups.isEnabled()) {
+            System.out.println("cgroup limits: " + cgroups.getStatus());
+        }
+        return false;
+    }
+
+    public boolean onCmdUsage() {
+        List<ResourceMetrics.Usage> usage = ResourceMetrics.getUsage();
+        if (usage.isEmpty()) {
+            System.out.println("No commands executed yet");
+            return false;
+        }
+        System.out.println(String.format("%-20s %8s %10s %10s %10s %12s %12s %12s",
+                "USER", "COMMANDS", "WALL(ms)", "USER(ms)", "SYS(ms)", "PEAK RSS(KB)", "READ(B)", "WRITE(B)"));
+        for (ResourceMetrics.Usage u : usage) {
+            System.out.println(String.format("%-20s %8d %10d %10d %10d %12d %12d %12d",
+                    u.username, u.commands.sum(), u.wallMillis.sum(), u.cpuUserMillis.sum(), u.cpuSystemMillis.sum(),
+                    u.peakRssKb.get(), u.ioReadBytes.sum(), u.ioWriteBytes.sum()));
+        }
         return false;
     }
 
@@ -78,6 +130,7 @@ public class ServerStopThread extends CommandThread {
         System.out.println("\n=== Server Control Commands ===");
         System.out.println("q, quit, stop  - Stop the server gracefully");
         System.out.println("status         - Show server status and active users");
+        System.out.println("usage          - Show resource usage of executed commands per user");
         System.out.println("help           - Show this help message");
         System.out.println("===============================\n");
         return false;
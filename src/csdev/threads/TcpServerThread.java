@@ -22,35 +22,66 @@ import java.util.concurrent.TimeUnit;
  */
 public class TcpServerThread extends Thread {
 
-    private TcpClientSession clientSession;
+    private volatile TcpClientSession clientSession;
+    private final Closeable connection;
+    private final TcpTransport transport;
 
-    public TcpServerThread(Socket s) throws IOException {
-        this.clientSession = new TcpClientSession(s);
+    public TcpServerThread(Closeable connection, TcpTransport transport) {
+        this.connection = connection;
+        this.transport = transport;
         this.setDaemon(true);
-        logDebug("TCP Server thread created for: " + clientSession.getClientInfo());
         this.setName("TCPServerThread");
     }
 
     public void run() {
-        logDebug("TCP Client session started: " + clientSession.getClientInfo());
+        try {
+            // Opening reads the client's stream header, so it must not block the accept loop
+            clientSession = transport.openSession(connection);
+        } catch (IOException e) {
+            logError(transport.getProtocol() + " session could not be opened: " + e.getMessage());
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+            transport.sessionEnded(this);
+            return;
+        }
+        logDebug(transport.getProtocol() + " Client session started: " + clientSession.getClientInfo());
 
         try {
             clientSession.processMessages(this);
         } catch (Exception e) {
             if (!clientSession.isGracefulShutdown()) {
-                logError("Unexpected error in TCP client session: " + e.getMessage());
+                logError("Unexpected error in " + transport.getProtocol() + " client session: " + e.getMessage());
             }
         } finally {
-            clientSession.disconnect();
+            clientSession.connectionLost();
+            transport.sessionEnded(this);
         }
     }
 
     public void gracefulDisconnect() {
-        clientSession.gracefulDisconnect();
+        TcpClientSession session = clientSession;
+        if (session != null) {
+            session.gracefulDisconnect();
+        } else {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 
     public String getUsername() {
-        return clientSession.getUsername();
+        TcpClientSession session = clientSession;
+        return session != null ? session.getUsername() : null;
+    }
+
+    /**
+     * Session of the client, null while it is being opened
+     */
+    public TcpClientSession getSession() {
+        return clientSession;
     }
 
     private void logDebug(String message) {
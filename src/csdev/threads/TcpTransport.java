@@ -0,0 +1,180 @@
+package csdev.threads;
+
+import csdev.Protocol;
+import csdev.server.AdmissionController;
+import csdev.server.ServerMain;
+import csdev.threads.session.ClientSession;
+import csdev.threads.session.TcpClientSession;
+import csdev.utils.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * <p>TCP transport: accepts connections and runs a {@link TcpServerThread} for each client
+ * <p>Subclasses serving other stream sockets override the listening and session opening methods.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class TcpTransport extends Thread implements Transport {
+
+    private ServerSocket serverSocket;
+    private final Set<TcpServerThread> threads = ConcurrentHashMap.newKeySet();
+
+    public TcpTransport() {
+        this.setDaemon(true);
+        this.setName(getClass().getSimpleName());
+    }
+
+    @Override
+    public String getProtocol() {
+        return "TCP";
+    }
+
+    @Override
+    public void startServer() throws IOException {
+        bind();
+        start();
+    }
+
+    @Override
+    public void run() {
+        while (isOpen() && !ServerMain.getStopFlag()) {
+            Closeable connection;
+            try {
+                connection = acceptConnection();
+            } catch (IOException e) {
+                if (isOpen()) {
+                    logError(getProtocol() + " accept error: " + e.getMessage());
+                }
+                break;
+            }
+            if (connection == null) {
+                continue;
+            }
+
+            // Checked before the session thread and its streams are created
+            String source = source(connection);
+            String reason = AdmissionController.getInstance().checkConnection(source);
+            if (reason == null) {
+                logConnection(getProtocol() + ": " + describe(connection) + " connected");
+                TcpServerThread server = new TcpServerThread(connection, this);
+                threads.add(server);
+                server.start();
+            } else {
+                logDebug(getProtocol() + ": " + (source != null ? source : describe(connection)) + " connection rejected - " + reason);
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        Logger.logServer(getProtocol() + " Server stopped");
+    }
+
+    protected void bind() throws IOException {
+        serverSocket = new ServerSocket(Protocol.PORT);
+        serverSocket.setSoTimeout(1000);
+        Logger.logServer("TCP Server initialized on port " + serverSocket.getLocalPort());
+    }
+
+    protected boolean isOpen() {
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    /**
+     * Waits for the next connection
+     * @return the connection, null if none arrived before the accept timeout
+     */
+    protected Closeable acceptConnection() throws IOException {
+        try {
+            return serverSocket.accept();
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+    }
+
+    protected String describe(Closeable connection) {
+        return ((Socket) connection).getInetAddress().getHostName();
+    }
+
+    /**
+     * Client address for admission control, must not block
+     * @return the address, null to exempt the client from the per-source limit
+     */
+    protected String source(Closeable connection) {
+        return ((Socket) connection).getInetAddress().getHostAddress();
+    }
+
+    /**
+     * Creates the session of an accepted connection, called on the session thread
+     */
+    protected TcpClientSession openSession(Closeable connection) throws IOException {
+        return new TcpClientSession((Socket) connection);
+    }
+
+    protected void closeServer() throws IOException {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            serverSocket.close();
+        }
+    }
+
+    void sessionEnded(TcpServerThread thread) {
+        threads.remove(thread);
+    }
+
+    @Override
+    public void stopServer() {
+        try {
+            closeServer();
+        } catch (IOException e) {
+            Logger.logError("Error closing " + getProtocol() + " server socket: " + e.getMessage());
+        }
+        String[] users = threads.stream().map(TcpServerThread::getUsername).filter(u -> u != null).toArray(String[]::new);
+        Logger.logInfo("Disconnecting " + getProtocol() + " users: " + users.length + " active sessions");
+        threads.forEach(TcpServerThread::gracefulDisconnect);
+    }
+
+    @Override
+    public void awaitTermination(long millis) throws InterruptedException {
+        join(millis);
+    }
+
+    @Override
+    public Collection<? extends ClientSession> getSessions() {
+        return threads.stream().map(TcpServerThread::getSession).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    private void logConnection(String message) {
+        System.out.print(" ");
+        Logger.logServer(message);
+        restorePrompt();
+    }
+
+    private void logDebug(String message) {
+        if (Logger.getDebugEnabled()) {
+            System.out.print(" ");
+            Logger.logDebug(message);
+            restorePrompt();
+        }
+    }
+
+    private void logError(String message) {
+        System.out.print(" ");
+        Logger.logError(message);
+        restorePrompt();
+    }
+
+    private void restorePrompt() {
+        System.out.print("server> ");
+        System.out.flush();
+    }
+}
@@ -0,0 +1,46 @@
+package csdev.threads;
+
+import csdev.threads.session.ClientSession;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * <p>Server side of a connection protocol
+ * <p>A transport accepts clients, keeps a {@link ClientSession} for each of them and
+ * passes their commands to {@link CommandEngine}. ServerMain starts every transport
+ * and stops them on shutdown; additional transports are loaded by class name.
+ * <br>Options:
+ * <br>remoteshell.transports - comma separated class names of extra transports
+ * (public no-argument constructor)
+ * @author cin-tie
+ * @version 1.0
+ */
+public interface Transport {
+
+    /**
+     * Short protocol name for logs and status
+     */
+    String getProtocol();
+
+    /**
+     * Starts accepting clients, returns once the transport is listening
+     */
+    void startServer() throws IOException;
+
+    /**
+     * Stops accepting clients and disconnects the sessions
+     */
+    void stopServer();
+
+    /**
+     * Waits until the transport has released its resources
+     */
+    default void awaitTermination(long millis) throws InterruptedException {
+    }
+
+    /**
+     * Sessions of connected clients
+     */
+    Collection<? extends ClientSession> getSessions();
+}
@@ -2,73 +2,190 @@ package csdev.threads;
 
 import csdev.Protocol;
 import csdev.messages.*;
+import csdev.server.AdmissionController;
+import csdev.server.CredentialStore;
+import csdev.server.DetachedSessions;
+import csdev.server.ServerConfig;
 import csdev.server.ServerMain;
+import csdev.threads.session.ClientSession;
 import csdev.threads.session.UdpClientSession;
 import csdev.utils.Logger;
+import csdev.utils.ReliableDatagramChannel;
 
 import java.io.*;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
  * <p>UDP server thread for handling client connections
- * (modified to support fragment upload/download with ACKs)
+ * <p>All messages go through a {@link ReliableDatagramChannel}, so they arrive once and in order;
+ * files and command output larger than a datagram are sent as fragments. Messages of a client are
+ * processed one after another in arrival order, commands and downloads run on their own threads.
+ * <br>Options:
+ * <br>remoteshell.udp.fecGroup - file fragments per parity datagram, 0 disables FEC;
+ * clients use the same group size for uploads
  * @author cin-tie
- * @version 1.1
+ * @version 1.2
  */
-public class UdpServerThread extends Thread {
+public class UdpServerThread extends Thread implements Transport {
 
-    private DatagramSocket socket;
-    private boolean running = true;
-    private byte[] buffer = new byte[65536];
+    private ReliableDatagramChannel channel;
+    private volatile boolean running = true;
 
     private static final int MAX_FRAGMENT_SIZE = 4000;
-    private static final int FRAGMENT_TIMEOUT = 5000;
-    private static final int MAX_RETRIES = 5;
+    private static final int MAX_LIST_PAGE = 128;      // Directory entries that fit in a datagram
+    private static final int MAX_UPLOADS = 4;           // Uploads in progress per client
+    private static final int MAX_EARLY_FRAGMENTS = 256; // Fragments of an upload kept before its start fragment
+    private static final long UPLOAD_IDLE_TIMEOUT = 60000;  // ms without fragments before an upload is dropped
+    private static final long REAP_INTERVAL = 10000;
+    private static final long FAILED_UPLOAD_TTL = 30000;    // ms fragments of a failed upload are dropped
+    private static final int INBOX_BATCH = 32;          // Messages of a client processed before the worker is passed on
 
     private ConcurrentHashMap<String, UdpClientSession> sessions = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileTransferSession> fileSessions = new ConcurrentHashMap<>();
+    // Failed uploads -> expiry, fragments still in flight must not start them again
+    private ConcurrentHashMap<String, Long> failedUploads = new ConcurrentHashMap<>();
+    // Client key -> messages waiting for processing, present while a worker drains them
+    private ConcurrentHashMap<String, Inbox> inboxes = new ConcurrentHashMap<>();
     private ThreadPoolExecutor executor;
+    // Commands may run for a long time, they must not occupy the packet workers that process ACKs
+    private ExecutorService commandExecutor;
 
     private static class FileTransferSession {
         public String fileId;
         public String clientKey;
         public int totalFragments;
         public int receivedFragments;
-        public byte[][] fragments;
-        public long lastActivity;
-        public boolean isDownload;
+        public Map<Integer, byte[]> fragments;      // Index -> data, filled as fragments arrive
+        public volatile long lastActivity;
 
-        public String fileName;
+        public String fileName;     // Set by the start fragment
         public String targetDir;
         public boolean overwrite;
         public long fileSize;
+        public String sha256;       // Of the whole file, from the start fragment
 
-        public boolean[] acked;
-
-        public FileTransferSession(String fileId, String clientKey, int totalFragments, boolean isDownload) {
+        public FileTransferSession(String fileId, String clientKey, int totalFragments) {
             this.fileId = fileId;
             this.clientKey = clientKey;
             this.totalFragments = totalFragments;
             this.receivedFragments = 0;
-            this.fragments = new byte[totalFragments][];
             this.lastActivity = System.currentTimeMillis();
-            this.isDownload = isDownload;
-            if (isDownload) {
-                this.acked = new boolean[totalFragments];
+            this.fragments = new HashMap<>();
+        }
+    }
+
+    private static class Inbox {
+        final String clientKey;
+        final InetAddress address;
+        final int port;
+        final ArrayDeque<Message> pending = new ArrayDeque<>();
+        boolean closed = false;     // Removed from inboxes, a new one takes further messages
+
+        Inbox(String clientKey, InetAddress address, int port) {
+            this.clientKey = clientKey;
+            this.address = address;
+            this.port = port;
+        }
+    }
+
+    /**
+     * <p>Sends command output to the client as fragments while the command runs
+     * <br>Only the in-memory head of each stream is sent, the rest stays available through CMD_OUTPUT
+     */
+    private class OutputStreamer implements CommandExecutor.OutputListener {
+        private final UdpClientSession session;
+        private final String streamId = "exec_" + System.nanoTime();
+        private final int[] fragments = new int[2];     // Sent per stream, stdout and stderr
+        private final long[] sizes = new long[2];
+        private final int limit = CommandExecutor.getMemoryLimit();
+        private boolean failed = false;
+        private boolean finished = false;   // Result sent, later output isn't streamed
+
+        OutputStreamer(UdpClientSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public synchronized void onOutput(boolean error, byte[] data, int off, int len) {
+            if (finished) {
+                return;
             }
+            int stream = error ? 1 : 0;
+            int n = (int) Math.min(len, limit - sizes[stream]);
+            for (int pos = 0; pos < n && !failed; pos += MAX_FRAGMENT_SIZE) {
+                int size = Math.min(MAX_FRAGMENT_SIZE, n - pos);
+                byte[] chunk = Arrays.copyOfRange(data, off + pos, off + pos + size);
+                int idx = fragments[stream];
+                MessageFragment frag = new MessageFragment(idx == 0 ? MessageFragment.FRAGMENT_START : MessageFragment.FRAGMENT_MIDDLE,
+                        -1, idx, streamId + (error ? "_err" : "_out"), null, chunk, size);
+                frag.streamType = error ? MessageFragment.STREAM_STDERR : MessageFragment.STREAM_STDOUT;
+                try {
+                    session.sendMessage(frag);
+                } catch (IOException e) {
+                    // Keep the command running, the output stays available through CMD_OUTPUT
+                    logWarning("Output streaming to " + session.getUsername() + " stopped: " + e.getMessage());
+                    failed = true;
+                    break;
+                }
+                fragments[stream]++;
+                sizes[stream] += size;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits until the output in the result has been streamed, so no fragment follows the result;
+         * the reader threads may still be sending it when the command returns
+         * @return false if streaming stopped before all of it was sent
+         */
+        synchronized boolean finish(MessageExecuteResult result) {
+            try {
+                while (!failed && !result.cached && (sizes[0] < result.outputHeadSize || sizes[1] < result.errorHeadSize)) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+            finished = true;
+            return !failed;
+        }
+
+        /**
+         * Cache hits never reach the listener, their output is streamed from the result
+         */
+        void replay(MessageExecuteResult result) {
+            byte[] o = result.output != null ? result.output.getBytes() : new byte[0];
+            byte[] e = result.error != null ? result.error.getBytes() : new byte[0];
+            onOutput(false, o, 0, o.length);
+            onOutput(true, e, 0, e.length);
         }
     }
 
     public  UdpServerThread() throws  IOException {
-        this.socket = new DatagramSocket(Protocol.PORT);
+        this.channel = new ReliableDatagramChannel(new DatagramSocket(Protocol.PORT), this::dispatch);
+        this.channel.setLossListener(this::onClientLost);
+        this.channel.setOpener(msg -> msg.getId() == Protocol.CMD_CONNECT);
+        this.channel.schedule(this::reapUploads, REAP_INTERVAL);
+        this.channel.setFecGroup(ServerConfig.getInt("udp.fecGroup", 0));
         this.running = true;
         this.executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+        this.commandExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "UdpCommand");
+            t.setDaemon(true);
+            return t;
+        });
         this.setDaemon(true);
         this.setName("UdpServerThread");
     }
@@ -78,11 +195,7 @@ public class UdpServerThread extends Thread {
 
         while (running && !ServerMain.getStopFlag()) {
             try {
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
-
-                DatagramPacket pCopy = new DatagramPacket(packet.getData(), packet.getLength(), packet.getAddress(), packet.getPort());
-                executor.execute(() -> processPacket(pCopy));
+                channel.receive();
             } catch (IOException e){
                 if (running && !ServerMain.getStopFlag()) {
                     Logger.logError("UDP Server error: " + e.getMessage());
@@ -91,6 +204,7 @@ public class UdpServerThread extends Thread {
         }
 
         executor.shutdown();
+        commandExecutor.shutdownNow();
         try {
             executor.awaitTermination(5, TimeUnit.MILLISECONDS);
         } catch (InterruptedException e) {
@@ -100,17 +214,55 @@ public class UdpServerThread extends Thread {
         sessions.values().forEach(UdpClientSession::disconnect);
         sessions.clear();
 
-        socket.close();
+        channel.close();
         Logger.logServer("UDP Server stopped");
     }
 
-    private void processPacket(DatagramPacket packet) {
-        try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(packet.getData(),  0, packet.getLength());
-            ObjectInputStream ois = new ObjectInputStream(bais);
-            Message msg = (Message) ois.readObject();
+    /**
+     * Called by the channel in delivery order, processing must not block the receiving thread.
+     * The messages of a client are queued and drained by one worker at a time, so they keep their order
+     */
+    private void dispatch(InetAddress address, int port, Message msg) {
+        String clientKey = getClientKey(address, port);
+        while (true) {
+            Inbox inbox = inboxes.computeIfAbsent(clientKey, k -> new Inbox(k, address, port));
+            synchronized (inbox) {
+                if (inbox.closed) {
+                    continue;
+                }
+                inbox.pending.add(msg);
+                if (inbox.pending.size() > 1) {
+                    return;     // A worker is draining it already
+                }
+            }
+            executor.execute(() -> drain(inbox));
+            return;
+        }
+    }
+
+    private void drain(Inbox inbox) {
+        for (int i = 0; i < INBOX_BATCH; i++) {
+            Message msg;
+            synchronized (inbox) {
+                msg = inbox.pending.peek();
+            }
+            processPacket(msg, inbox.address, inbox.port);
+            synchronized (inbox) {
+                inbox.pending.poll();
+                if (inbox.pending.isEmpty()) {
+                    inbox.closed = true;
+                    inboxes.remove(inbox.clientKey, inbox);
+                    return;
+                }
+            }
+        }
+        // Let the other clients in before going on
+        executor.execute(() -> drain(inbox));
+    }
 
-            String clientKey = getClientKey(packet.getAddress(), packet.getPort());
+    private void processPacket(Message msg, InetAddress address, int port) {
+        try {
+            String clientKey = getClientKey(address, port);
             UdpClientSession session = sessions.get(clientKey);
 
             if(session == null && msg.getId() != Protocol.CMD_CONNECT){
@@ -118,18 +270,26 @@ public class UdpServerThread extends Thread {
                 return;
             }
 
-            processMessage(msg, packet.getAddress(), packet.getPort(), session);
+            processMessage(msg, address, port, session);
         } catch (Exception e){
             logError("Error processing UDP packet: " + e.getMessage());
         }
     }
 
+    private void onClientLost(InetAddress address, int port) {
+        UdpClientSession session = sessions.get(getClientKey(address, port));
+        if (session != null) {
+            logWarning("UDP client not responding, closing session: " + session.getClientInfo());
+            session.connectionLost();
+        }
+    }
+
     private void processMessage(Message msg, InetAddress address, int port, UdpClientSession session) throws IOException {
         if (msg instanceof MessageFragment) {
             handleFragment((MessageFragment) msg, address, port, session);
             return;
         } else if (msg instanceof MessageFragmentResult) {
-            handleFragmentAck((MessageFragmentResult) msg, address, port);
+            logDebug("Ignoring fragment ACK from " + getClientKey(address, port) + ", delivery is acknowledged by the channel");
             return;
         }
 
@@ -143,23 +303,30 @@ public class UdpServerThread extends Thread {
                 break;
 
             case Protocol.CMD_EXECUTE:
-                handleExecute((MessageExecute) msg, address, port, session);
+                commandExecutor.execute(() -> handleExecute((MessageExecute) msg, address, port, session));
                 break;
 
             case Protocol.CMD_UPLOAD:
-                handleUpload((MessageUpload) msg, address, port, session);
-                break;
-
-            case Protocol.CMD_DOWNLOAD:
-                handleDownload((MessageDownload) msg, address, port, session);
+            case Protocol.CMD_CHDIR:
+            case Protocol.CMD_GETDIR:
+            case Protocol.CMD_OUTPUT:
+                if (session != null) {
+                    session.sendMessage(CommandEngine.process(msg, session));
+                }
                 break;
 
-            case Protocol.CMD_CHDIR:
-                handleChdir((MessageChdir) msg, address, port, session);
+            case Protocol.CMD_LIST:
+                MessageList list = (MessageList) msg;
+                if (list.limit <= 0 || list.limit > MAX_LIST_PAGE) {
+                    list.limit = MAX_LIST_PAGE;
+                }
+                if (session != null) {
+                    session.sendMessage(CommandEngine.process(list, session));
+                }
                 break;
 
-            case Protocol.CMD_GETDIR:
-                handleGetdir((MessageGetdir) msg, address, port, session);
+            case Protocol.CMD_DOWNLOAD:
+                commandExecutor.execute(() -> handleDownload((MessageDownload) msg, address, port, session));
                 break;
 
             default:
@@ -170,31 +337,50 @@ public class UdpServerThread extends Thread {
 
     private void handleConnect(MessageConnect msg, InetAddress address, int port) throws IOException {
         String clientKey = getClientKey(address, port);
+        String rejected = AdmissionController.getInstance().checkConnection(address.getHostAddress());
+        if (rejected != null) {
+            sendMessage(address, port, new MessageConnectResult("Connection rejected: " + rejected));
+            channel.forget(address, port);
+            logDebug("UDP connection from " + clientKey + " rejected - " + rejected);
+            return;
+        }
         logInfo("UDP connecting attempt from: " + msg.username + "(" + msg.usernameFull + ") at " + clientKey);
 
-        if(ServerMain.isPasswordRequired()){
-            if(msg.password == null || !msg.password.equals(ServerMain.getServerPassword())){
+        CredentialStore credentials = CredentialStore.getInstance();
+        if(credentials.isPasswordRequired()){
+            if(!credentials.authenticate(msg)){
                 MessageConnectResult result = new MessageConnectResult("WrongPassword");
                 sendMessage(address, port, result);
+                channel.forget(address, port);
                 logWarning("UDP connection rejected - invalid password for user: " + msg.username);
                 return;
             }
         }
 
-        if(ServerMain.getUser(msg.username) != null){
-            MessageConnectResult result = new MessageConnectResult("User already connected: " + msg.username);
-            sendMessage(address, port, result);
-            logWarning("UDP connection rejected - user already connected: " + msg.username);
+        DetachedSessions.getInstance().takeOver(msg);
+
+        rejected = AdmissionController.getInstance().checkUser(msg.username);
+        if (rejected != null) {
+            sendMessage(address, port, new MessageConnectResult(rejected));
+            channel.forget(address, port);
+            logWarning("UDP connection rejected - " + rejected);
             return;
         }
 
         UdpClientSession session = new UdpClientSession(address, port, this);
-        session.registerUser(msg.username, msg.usernameFull);
+        boolean resumed = session.attach(msg);
         sessions.put(clientKey, session);
+        channel.bind(address, port);
 
         String serverOS = System.getProperty("os.name") + " " + System.getProperty("os.version");
         String serverVersion = "Remote Shell server 1.1";
         MessageConnectResult result = new MessageConnectResult(serverOS, session.getCurrentDirectory(), serverVersion);
+        result.fecGroup = channel.getFecGroup();
+        result.token = session.issueToken();
+        result.resumed = resumed;
+        if (resumed) {
+            result.transfers = session.getTransferHandles();
+        }
         sendMessage(address, port, result);
         logInfo("User connected successfully via UDP: " + msg.username + " from " + clientKey);
     }
@@ -209,289 +395,106 @@ public class UdpServerThread extends Thread {
         }
     }
 
-    private void handleExecute(MessageExecute msg, InetAddress address, int port, UdpClientSession session) throws IOException {
+    private void handleExecute(MessageExecute msg, InetAddress address, int port, UdpClientSession session) {
         if(session == null)
             return;
 
-        logInfo("Executing UDP command for " + session.getUsername() + ": " + msg.command);
-
+        OutputStreamer streamer = new OutputStreamer(session);
         try {
-            String command = msg.command;
-            String workingDir = (msg.workingDir == null || msg.workingDir.isEmpty()) ? session.getCurrentDirectory() : msg.workingDir;
-            long timeout = msg.timeMillis > 0 ? msg.timeMillis : 30000;
-
-            ProcessBuilder pb = new ProcessBuilder();
-            if (System.getProperty("os.name").toLowerCase().contains("windows")) {
-                pb.command("cmd.exe", "/c", command);
-            } else {
-                pb.command("sh", "-c", command);
-            }
-            pb.directory(new File(workingDir));
-
-            long startTime = System.currentTimeMillis();
-            Process process = pb.start();
-
-            boolean finished = false;
-            try {
-                finished = process.waitFor(timeout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                process.destroy();
-                Thread.currentThread().interrupt();
-                throw new IOException("Command execution interrupted");
-            }
-
-            long executionTime = System.currentTimeMillis() - startTime;
-
-            if (!finished) {
-                process.destroyForcibly();
-                MessageExecuteResult result = new MessageExecuteResult("Command timed out after " + timeout + "ms");
+            MessageExecuteResult result = CommandEngine.execute(msg, session, streamer);
+            if (result.Error()) {
                 session.sendMessage(result);
-                logWarning("UDP Command timeout for " + session.getUsername() + ": " + command);
                 return;
             }
-
-            String output = session.readStream(process.getInputStream());
-            String error = session.readStream(process.getErrorStream());
-            int exitCode = process.exitValue();
-
-            MessageExecuteResult result = new MessageExecuteResult(output, error, exitCode, executionTime, workingDir);
-            session.sendMessage(result);
-
-            logInfo("UDP Command completed for " + session.getUsername() + " [exitCode=" + exitCode + ", time=" + executionTime + "ms]");
-
-        } catch (Exception e) {
-            logError("UDP Command execution failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageExecuteResult result = new MessageExecuteResult("Command execution failed: " + e.getMessage());
-            session.sendMessage(result);
+            if (result.cached) {
+                streamer.replay(result);
+            }
+            // Output has already been delivered, the result only carries the status
+            MessageExecuteResult status = withoutOutput(result);
+            status.truncated = !streamer.finish(result);
+            session.sendMessage(status);
+        } catch (IOException e) {
+            logError("Failed to send UDP command result to " + session.getUsername() + ": " + e.getMessage());
         }
     }
 
-    private void handleUpload(MessageUpload msg, InetAddress address, int port, UdpClientSession session) throws IOException {
-        if (session == null) return;
-
-        logInfo("Uploading file via UDP from " + session.getUsername() + ": " + msg.fileName);
-
-        try {
-            File targetDir = new File(msg.filePath.isEmpty() ? session.getCurrentDirectory() : msg.filePath);
-            if (!targetDir.exists() || !targetDir.isDirectory()) {
-                MessageUploadResult result = new MessageUploadResult("Invalid target directory: " + msg.filePath);
-                session.sendMessage(result);
-                return;
-            }
-
-            File targetFile = new File(targetDir, msg.fileName);
-            boolean fileExists = targetFile.exists();
-
-            if (fileExists && !msg.overwrite) {
-                MessageUploadResult result = new MessageUploadResult("File already exists and overwrite is disabled: " + targetFile.getAbsolutePath());
-                session.sendMessage(result);
-                return;
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-                fos.write(msg.fileData);
-            }
-
-            MessageUploadResult result = new MessageUploadResult(targetFile.getAbsolutePath(), msg.fileSize, fileExists);
-            session.sendMessage(result);
-
-            logInfo("UDP File uploaded successfully: " + targetFile.getAbsolutePath() + " [size=" + msg.fileSize + " bytes, overwrite=" + fileExists + "]");
-        } catch (Exception e) {
-            logError("UDP File upload failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageUploadResult result = new MessageUploadResult("File upload failed: " + e.getMessage());
-            session.sendMessage(result);
-        }
+    /**
+     * Copy of the result without output, the original may be shared with the result cache
+     */
+    private static MessageExecuteResult withoutOutput(MessageExecuteResult r) {
+        MessageExecuteResult copy = new MessageExecuteResult("", "", r.exitCode, r.executionTime, r.workingDir);
+        copy.cached = r.cached;
+        copy.streamed = true;
+        copy.outputId = r.outputId;
+        copy.outputSize = r.outputSize;
+        copy.errorId = r.errorId;
+        copy.errorSize = r.errorSize;
+        copy.outputHeadSize = r.outputHeadSize;
+        copy.errorHeadSize = r.errorHeadSize;
+        copy.cpuUserMillis = r.cpuUserMillis;
+        copy.cpuSystemMillis = r.cpuSystemMillis;
+        copy.peakRssKb = r.peakRssKb;
+        copy.ioReadBytes = r.ioReadBytes;
+        copy.ioWriteBytes = r.ioWriteBytes;
+        return copy;
     }
 
-    private void handleDownload(MessageDownload msg, InetAddress address, int port, UdpClientSession session) throws IOException {
+    private void handleDownload(MessageDownload msg, InetAddress address, int port, UdpClientSession session) {
         if (session == null) return;
 
-        logInfo("UDP File download request from " + session.getUsername() + ": " + msg.filePath);
-
+        MessageDownloadResult result = CommandEngine.download(msg, session);
         try {
-            File file = new File(msg.filePath.isEmpty() ? session.getCurrentDirectory() : msg.filePath);
-            if (!file.exists() || !file.isFile()) {
-                MessageDownloadResult result = new MessageDownloadResult("File not found: " + msg.filePath);
+            if (result.Error() || result.dataSize <= MAX_FRAGMENT_SIZE) {
                 session.sendMessage(result);
                 return;
             }
-
-            if (!file.canRead()) {
-                MessageDownloadResult result = new MessageDownloadResult("Cannot read file: " + msg.filePath);
-                session.sendMessage(result);
-                return;
-            }
-
-            long fileSize = file.length();
-
-            if (fileSize <= MAX_FRAGMENT_SIZE) {
-                sendSmallFile(file, session, msg.filePath);
-                return;
-            }
-
-            sendLargeFileFragmented(file, session, address, port, msg.filePath);
-
-        } catch (Exception e) {
+            sendFragmented(result, session);
+        } catch (IOException e) {
             logError("UDP File download failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageDownloadResult result = new MessageDownloadResult("File download failed: " + e.getMessage());
-            session.sendMessage(result);
         }
     }
 
-    private void sendSmallFile(File file, UdpClientSession session, String filePath) throws IOException {
-        long fileSize = file.length();
-        byte[] fileData = new byte[(int) fileSize];
-        try (FileInputStream fis = new FileInputStream(file)) {
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            int bytesRead = bis.read(fileData);
-            if (bytesRead != fileSize) {
-                throw new IOException("Failed to read complete file data");
-            }
-        }
-
-        MessageDownloadResult result = new MessageDownloadResult(file.getName(), fileSize, fileData, false, false);
-        session.sendMessage(result);
-        logInfo("UDP Small file downloaded: " + filePath + " [size=" + fileSize + " bytes]");
-    }
-
-    private void sendLargeFileFragmented(File file, UdpClientSession session, InetAddress address, int port, String filePath) {
-        new Thread(() -> {
-            try {
-                long fileSize = file.length();
-                byte[] all = new byte[(int) fileSize];
-                try (FileInputStream fis = new FileInputStream(file)) {
-                    BufferedInputStream bis = new BufferedInputStream(fis);
-                    int read = bis.read(all);
-                    if (read != fileSize) {
-                        logError("Failed to read full file for fragmentation: " + filePath);
-                        session.sendMessage(new MessageDownloadResult("Failed to read file for fragmentation: " + filePath));
-                        return;
-                    }
-                }
-
-                int total = (all.length + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE;
-                String fileId = file.getName() + "_" + System.currentTimeMillis();
-                logInfo("Starting fragmented download to " + session.getUsername() + ": file=" + filePath + " size=" + all.length + " fragments=" + total + " fileId=" + fileId);
-
-                FileTransferSession fts = new FileTransferSession(fileId, getClientKey(address, port), total, true);
-                fileSessions.put(getSessionKey(fileId, getClientKey(address, port)), fts);
-
-                for (int idx = 0; idx < total; idx++) {
-                    int start = idx * MAX_FRAGMENT_SIZE;
-                    int end = Math.min(start + MAX_FRAGMENT_SIZE, all.length);
-                    byte[] chunk = new byte[end - start];
-                    System.arraycopy(all, start, chunk, 0, chunk.length);
-
-                    byte fragType;
-                    if (idx == 0) fragType = MessageFragment.FRAGMENT_START;
-                    else if (idx == total - 1) fragType = MessageFragment.FRAGMENT_END;
-                    else fragType = MessageFragment.FRAGMENT_MIDDLE;
-
-                    MessageFragment frag = new MessageFragment(fragType, total, idx, fileId, file.getName(), chunk, chunk.length);
-
-                    boolean ackReceived = false;
-                    int tries = 0;
-                    while (!ackReceived && tries < MAX_RETRIES) {
-                        tries++;
-                        sendMessage(address, port, frag);
-                        logDebug("Sent fragment to " + session.getUsername() + " idx=" + idx + " try=" + tries);
-                        long waitStart = System.currentTimeMillis();
-                        synchronized (fts) {
-                            long waited = 0;
-                            while (!fts.acked[idx] && waited < FRAGMENT_TIMEOUT) {
-                                long toWait = FRAGMENT_TIMEOUT - waited;
-                                try {
-                                    fts.wait(toWait);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                }
-                                waited = System.currentTimeMillis() - waitStart;
-                            }
-                            ackReceived = fts.acked[idx];
-                        }
-
-                        if (!ackReceived) {
-                            logWarning("No ACK from " + session.getUsername() + " for fragment " + idx + " (try " + tries + ")");
-                        } else {
-                            logDebug("ACK received for fragment " + idx + " from " + session.getUsername());
-                        }
-                    }
-
-                    if (!ackReceived) {
-                        logError("Failed to receive ACK for fragment " + idx + " after " + MAX_RETRIES + " tries. Aborting transfer.");
-                        fileSessions.remove(getSessionKey(fileId, getClientKey(address, port)));
-                        session.sendMessage(new MessageDownloadResult("Failed to send file: transfer aborted (missing ACKs)"));
-                        return;
-                    }
-                }
-
-                logInfo("Fragmented download finished for " + session.getUsername() + " fileId=" + fileId);
-                MessageDownloadResult finalMsg = new MessageDownloadResult(file.getName(), file.length(), null, false, true);
-                session.sendMessage(finalMsg);
-                fileSessions.remove(getSessionKey(fileId, getClientKey(address, port)));
-            } catch (Exception e) {
-                logError("Error in fragmented download thread: " + e.getMessage());
-                try {
-                    session.sendMessage(new MessageDownloadResult("File download failed: " + e.getMessage()));
-                } catch (IOException ioException) {
-                    logError("Failed to notify client about download failure: " + ioException.getMessage());
-                }
-            }
-        }).start();
-
-    }
-
-    private void handleChdir(MessageChdir msg, InetAddress address, int port, UdpClientSession session) throws IOException {
-        if (session == null) return;
-
-        logInfo("UDP Directory change request from " + session.getUsername() + ": " + msg.newDirectory);
-
-        try {
-            File newDir = new File(msg.newDirectory);
-            if (!newDir.exists() || !newDir.isDirectory()) {
-                MessageChdirResult result = new MessageChdirResult("Directory does not exist: " + msg.newDirectory);
-                session.sendMessage(result);
-                return;
+    /**
+     * Sends the file as fragments, the channel window paces them and resends lost ones
+     */
+    private void sendFragmented(MessageDownloadResult result, UdpClientSession session) throws IOException {
+        byte[] all = result.fileData;
+        int total = (all.length + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE;
+        String fileId = result.fileName + "_" + System.currentTimeMillis();
+        logInfo("Starting fragmented download to " + session.getUsername() + ": file=" + result.fileName + " size=" + all.length + " fragments=" + total + " fileId=" + fileId);
+
+        for (int idx = 0; idx < total; idx++) {
+            int start = idx * MAX_FRAGMENT_SIZE;
+            byte[] chunk = Arrays.copyOfRange(all, start, Math.min(start + MAX_FRAGMENT_SIZE, all.length));
+
+            byte fragType;
+            if (idx == 0) fragType = MessageFragment.FRAGMENT_START;
+            else if (idx == total - 1) fragType = MessageFragment.FRAGMENT_END;
+            else fragType = MessageFragment.FRAGMENT_MIDDLE;
+
+            MessageFragment fragment = new MessageFragment(fragType, total, idx, fileId, result.fileName, chunk, chunk.length);
+            if (idx == 0) {
+                fragment.sha256 = result.sha256;
             }
-
-            String oldDirectory = session.getCurrentDirectory();
-            session.setCurrentDirectory(newDir.getAbsolutePath());
-
-            MessageChdirResult result = new MessageChdirResult(session.getCurrentDirectory(), oldDirectory);
-            session.sendMessage(result);
-            logInfo("UDP Directory changed for " + session.getUsername() + " successfully: " + oldDirectory + " -> " + session.getCurrentDirectory());
-        } catch (Exception e) {
-            logError("UDP Directory change failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageChdirResult result = new MessageChdirResult("Directory change failed: " + e.getMessage());
-            session.sendMessage(result);
+            session.sendMessage(fragment);
         }
-    }
 
-    private void handleGetdir(MessageGetdir msg, InetAddress address, int port, UdpClientSession session) throws IOException {
-        if (session == null) return;
-
-        logDebug("UDP Current directory request from " + session.getUsername());
-
-        try {
-            MessageGetdirResult result = new MessageGetdirResult(session.getCurrentDirectory(), 0);
-            session.sendMessage(result);
-        } catch (Exception e) {
-            logError("UDP Get directory failed for " + session.getUsername() + ": " + e.getMessage());
-            MessageGetdirResult result = new MessageGetdirResult("Get directory failed: " + e.getMessage());
-            session.sendMessage(result);
-        }
+        logInfo("Fragmented download finished for " + session.getUsername() + " fileId=" + fileId);
+        MessageDownloadResult finalMsg = new MessageDownloadResult(result.fileName, result.fileSize, null, result.isPartial, true);
+        finalMsg.dataSize = all.length;
+        finalMsg.sha256 = result.sha256;
+        session.sendMessage(finalMsg);
     }
 
+    /**
+     * Sends a message reliably, blocks while the client's congestion window is full
+     */
     public void sendMessage(InetAddress address, int port, Message msg) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream  oos = new ObjectOutputStream(baos);
-
-        oos.writeObject(msg);
-        oos.flush();
+        channel.send(address, port, msg, isFileFragment(msg));
+    }
 
-        byte[] data = baos.toByteArray();
-        DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
-        socket.send(packet);
+    private static boolean isFileFragment(Message msg) {
+        return msg instanceof MessageFragment && ((MessageFragment) msg).streamType == MessageFragment.STREAM_FILE;
     }
 
     private String getClientKey(InetAddress address, int port) {
@@ -502,96 +505,168 @@ public class UdpServerThread extends Thread {
         return clientKey + ":" + fileId;
     }
 
+    @Override
+    public String getProtocol() {
+        return "UDP";
+    }
+
+    @Override
+    public void startServer() {
+        start();
+    }
+
+    @Override
     public void stopServer() {
         running = false;
-        socket.close();
+        sessions.values().forEach(UdpClientSession::gracefulDisconnect);
+        channel.flushAll(1000);
+        channel.close();
     }
 
-    public int getNumUsers(){
-        return sessions.keySet().size();
+    @Override
+    public void awaitTermination(long millis) throws InterruptedException {
+        join(millis);
     }
 
-    public String[] getUsers(){
-        return sessions.keySet().toArray(new String[0]);
+    @Override
+    public Collection<? extends ClientSession> getSessions() {
+        return sessions.values();
     }
 
-    public void removeSession(String clientKey) {
+    public void removeSession(InetAddress address, int port) {
+        String clientKey = getClientKey(address, port);
         sessions.remove(clientKey);
+        fileSessions.values().removeIf(fts -> fts.clientKey.equals(clientKey));
+        failedUploads.keySet().removeIf(key -> key.startsWith(clientKey + ":"));
+        channel.forget(address, port);
+    }
+
+    /**
+     * Drops uploads that stopped receiving fragments, e.g. abandoned or never started ones
+     */
+    private void reapUploads() {
+        long now = System.currentTimeMillis();
+        fileSessions.values().removeIf(fts -> {
+            if (now - fts.lastActivity < UPLOAD_IDLE_TIMEOUT) {
+                return false;
+            }
+            logWarning("Dropped idle upload fileId=" + fts.fileId + " from " + fts.clientKey + " ("
+                    + fts.receivedFragments + "/" + fts.totalFragments + " fragments)");
+            return true;
+        });
+        failedUploads.values().removeIf(expiry -> expiry < now);
+    }
+
+    private int countUploads(String clientKey) {
+        int n = 0;
+        for (FileTransferSession fts : fileSessions.values()) {
+            if (fts.clientKey.equals(clientKey)) {
+                n++;
+            }
+        }
+        return n;
     }
 
+    /**
+     * Collects upload fragments; they are processed in parallel, so the start fragment with the
+     * file header may be handled after others of the same file
+     */
     private void handleFragment(MessageFragment msg, InetAddress address, int port, UdpClientSession session) {
         String clientKey = getClientKey(address, port);
         String key = getSessionKey(msg.fileId, clientKey);
 
+        if (failedUploads.containsKey(key)) {
+            logDebug("Dropped fragment " + msg.fragmentIndex + " of failed upload " + msg.fileId + " from " + clientKey);
+            return;
+        }
         try {
+            if (msg.totalFragments <= 0 || msg.fragmentIndex < 0 || msg.fragmentIndex >= msg.totalFragments) {
+                logWarning("Invalid upload fragment " + msg.fragmentIndex + "/" + msg.totalFragments + " from " + clientKey);
+                sendMessage(address, port, new MessageFragmentResult(msg.fileId, msg.fragmentIndex, false));
+                return;
+            }
+            if (!msg.isIntact()) {
+                throw new IOException("CRC32C mismatch in fragment " + msg.fragmentIndex + " of " + msg.fileId);
+            }
             FileTransferSession fts = fileSessions.get(key);
+            if (fts == null) {
+                if (countUploads(clientKey) >= MAX_UPLOADS) {
+                    throw new IOException("Too many uploads in progress (max " + MAX_UPLOADS + ")");
+                }
+                fts = fileSessions.computeIfAbsent(key, k -> {
+                    logInfo("Created upload session for " + clientKey + " fileId=" + msg.fileId + " totalFragments=" + msg.totalFragments);
+                    return new FileTransferSession(msg.fileId, clientKey, msg.totalFragments);
+                });
+                if (failedUploads.containsKey(key)) {
+                    fileSessions.remove(key, fts);     // Failed while this fragment was on its way here
+                    return;
+                }
+            }
+            if (msg.totalFragments != fts.totalFragments) {
+                throw new IOException("Fragment count changed within upload " + msg.fileId);
+            }
 
-            if (fts == null && msg.fragmentType == MessageFragment.FRAGMENT_START) {
+            byte[] chunk = msg.data;
+            if (msg.fragmentType == MessageFragment.FRAGMENT_START) {
                 byte[] payload = msg.data;
                 if (payload == null || payload.length < 4) {
-                    logWarning("Invalid fragment start without header from " + clientKey);
-                    MessageFragmentResult nack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, false);
-                    sendMessage(address, port, nack);
-                    return;
+                    throw new IOException("Invalid fragment start without header");
                 }
                 int headerLen = ((payload[0] & 0xFF) << 24) | ((payload[1] & 0xFF) << 16) | ((payload[2] & 0xFF) << 8) | (payload[3] & 0xFF);
                 if (headerLen < 0 || headerLen > payload.length - 4) {
-                    logWarning("Invalid header length in fragment start from " + clientKey);
-                    MessageFragmentResult nack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, false);
-                    sendMessage(address, port, nack);
-                    return;
+                    throw new IOException("Invalid header length in fragment start");
                 }
-                byte[] headerBytes = new byte[headerLen];
-                System.arraycopy(payload, 4, headerBytes, 0, headerLen);
-                String headerJson = new String(headerBytes, "UTF-8");
-                String fn = extractJsonString(headerJson, "fileName");
-                String td = extractJsonString(headerJson, "targetDir");
+                String headerJson = new String(payload, 4, headerLen, "UTF-8");
                 String ovStr = extractJsonString(headerJson, "overwrite");
-                String fsStr = extractJsonString(headerJson, "fileSize");
-                boolean overwrite = "true".equalsIgnoreCase(ovStr) || "1".equals(ovStr);
                 long fileSize = 0;
                 try {
-                    fileSize = Long.parseLong(fsStr);
+                    fileSize = Long.parseLong(extractJsonString(headerJson, "fileSize"));
                 } catch (Exception ignore) {}
-
-                fts = new FileTransferSession(msg.fileId, clientKey, msg.totalFragments, false);
-                fts.fileName = fn;
-                fts.targetDir = td;
-                fts.overwrite = overwrite;
-                fts.fileSize = fileSize;
-                fileSessions.put(key, fts);
-                logInfo("Created upload session for " + clientKey + " fileId=" + msg.fileId + " fileName=" + fn + " totalFragments=" + msg.totalFragments);
-                int remainder = payload.length - 4 - headerLen;
-                if (remainder > 0) {
-                    byte[] chunk = new byte[remainder];
-                    System.arraycopy(payload, 4 + headerLen, chunk, 0, remainder);
-                    fts.fragments[msg.fragmentIndex] = chunk;
-                    fts.receivedFragments++;
+                // The fragment count of the declared size bounds what the upload may hold
+                long maxFragments = Math.max(1, (fileSize + MAX_FRAGMENT_SIZE - 1) / MAX_FRAGMENT_SIZE);
+                if (fileSize < 0 || msg.totalFragments > maxFragments) {
+                    throw new IOException("Upload of " + fileSize + " bytes cannot have " + msg.totalFragments + " fragments");
                 }
-            } else if (fts == null) {
-                logWarning("Received non-start fragment for unknown upload session: fileId=" + msg.fileId + " from " + clientKey);
-                MessageFragmentResult nack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, false);
-                sendMessage(address, port, nack);
-                return;
-            } else {
-                if (fts.fragments[msg.fragmentIndex] == null) {
-                    fts.fragments[msg.fragmentIndex] = msg.data;
+                synchronized (fts) {
+                    fts.fileName = extractJsonString(headerJson, "fileName");
+                    fts.targetDir = extractJsonString(headerJson, "targetDir");
+                    fts.overwrite = "true".equalsIgnoreCase(ovStr) || "1".equals(ovStr);
+                    fts.fileSize = fileSize;
+                    fts.sha256 = msg.sha256;
+                }
+                chunk = Arrays.copyOfRange(payload, 4 + headerLen, payload.length);
+            }
+
+            if (chunk != null && chunk.length > MAX_FRAGMENT_SIZE) {
+                throw new IOException("Fragment " + msg.fragmentIndex + " of " + msg.fileId + " exceeds " + MAX_FRAGMENT_SIZE + " bytes");
+            }
+            boolean complete;
+            synchronized (fts) {
+                if (!fts.fragments.containsKey(msg.fragmentIndex)) {
+                    if (fts.fileName == null && fts.receivedFragments >= MAX_EARLY_FRAGMENTS) {
+                        throw new IOException("Too many fragments of " + msg.fileId + " before its start fragment");
+                    }
+                    fts.fragments.put(msg.fragmentIndex, chunk);
                     fts.receivedFragments++;
                 } else {
                     logDebug("Duplicate fragment " + msg.fragmentIndex + " for " + msg.fileId + " from " + clientKey);
                 }
+                fts.lastActivity = System.currentTimeMillis();
+                complete = fts.receivedFragments == fts.totalFragments && fts.fileName != null
+                        && fileSessions.remove(key, fts);
             }
 
-            MessageFragmentResult ack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, true);
-            sendMessage(address, port, ack);
-
-            if (fts.receivedFragments == fts.totalFragments) {
+            if (complete) {
                 logInfo("All fragments received for upload fileId=" + msg.fileId + " from " + clientKey + " assembling...");
                 assembleAndSaveUpload(fts, address, port, session);
-                fileSessions.remove(key);
             }
         } catch (Exception e) {
             logError("Error handling fragment from " + clientKey + ": " + e.getMessage());
+            // Remembered before the session is removed, so no fragment can recreate it in between
+            if (failedUploads.put(key, System.currentTimeMillis() + FAILED_UPLOAD_TTL) != null) {
+                return;     // Another fragment failed at the same time and was answered already
+            }
+            fileSessions.remove(key);
             try {
                 MessageFragmentResult nack = new MessageFragmentResult(msg.fileId, msg.fragmentIndex, false);
                 sendMessage(address, port, nack);
@@ -599,77 +674,28 @@ public class UdpServerThread extends Thread {
         }
     }
 
-    private void handleFragmentAck(MessageFragmentResult ack, InetAddress address, int port) {
-        String clientKey = getClientKey(address, port);
-        String key = getSessionKey(ack.fileId, clientKey);
-        FileTransferSession fts = fileSessions.get(key);
-        if (fts == null) {
-            logWarning("Received fragment ACK for unknown transfer: fileId=" + ack.fileId + " from " + clientKey);
-            return;
-        }
-        if (!fts.isDownload) {
-            logWarning("Received fragment ACK for upload-session (?) fileId=" + ack.fileId + " from " + clientKey);
-            return;
-        }
-        if (ack.fragmentIndex < 0 || ack.fragmentIndex >= fts.totalFragments) {
-            logWarning("Received fragment ACK index out of range: " + ack.fragmentIndex);
-            return;
-        }
-        if (ack.received) {
-            synchronized (fts) {
-                fts.acked[ack.fragmentIndex] = true;
-                fts.lastActivity = System.currentTimeMillis();
-                fts.notifyAll();
-            }
-            logDebug("ACK registered for fragment " + ack.fragmentIndex + " fileId=" + ack.fileId + " from " + clientKey);
-        } else {
-            logWarning("Negative ACK for fragment " + ack.fragmentIndex + " fileId=" + ack.fileId + " from " + clientKey);
-        }
-    }
-
     private void assembleAndSaveUpload(FileTransferSession fts, InetAddress address, int port, UdpClientSession session) {
+        if (session == null) return;
+
         try {
             int totalSize = 0;
-            for (int i = 0; i < fts.totalFragments; i++) {
-                byte[] b = fts.fragments[i];
+            for (byte[] b : fts.fragments.values()) {
                 if (b != null) totalSize += b.length;
             }
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream(totalSize);
             for (int i = 0; i < fts.totalFragments; i++) {
-                byte[] b = fts.fragments[i];
+                byte[] b = fts.fragments.get(i);
                 if (b != null) baos.write(b);
             }
 
-            byte[] fileData = baos.toByteArray();
-
-            String targetDir = (fts.targetDir == null || fts.targetDir.isEmpty()) ? (session == null ? "." : session.getCurrentDirectory()) : fts.targetDir;
-            File td = new File(targetDir);
-            if (!td.exists() || !td.isDirectory()) {
-                MessageUploadResult res = new MessageUploadResult("Invalid target directory: " + targetDir);
-                if (session != null) session.sendMessage(res);
-                return;
-            }
-
-            File outFile = new File(td, fts.fileName);
-            boolean existed = outFile.exists();
-            if (existed && !fts.overwrite) {
-                MessageUploadResult res = new MessageUploadResult("File already exists and overwrite is disabled: " + outFile.getAbsolutePath());
-                if (session != null) session.sendMessage(res);
-                return;
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                fos.write(fileData);
-            }
-
-            MessageUploadResult res = new MessageUploadResult(outFile.getAbsolutePath(), fileData.length, existed);
-            if (session != null) session.sendMessage(res);
-            logInfo("Saved uploaded file: " + outFile.getAbsolutePath() + " size=" + fileData.length);
+            MessageUpload upload = new MessageUpload(fts.fileName, fts.targetDir, baos.toByteArray(), fts.overwrite);
+            upload.sha256 = fts.sha256;     // Checked against the assembled file
+            session.sendMessage(CommandEngine.upload(upload, session));
         } catch (Exception e) {
             logError("Failed to assemble/save uploaded file: " + e.getMessage());
             try {
-                if (session != null) session.sendMessage(new MessageUploadResult("File upload failed: " + e.getMessage()));
+                session.sendMessage(new MessageUploadResult("File upload failed: " + e.getMessage()));
             } catch (IOException ignored) {}
         }
     }
@@ -0,0 +1,119 @@
+package csdev.threads;
+
+import csdev.threads.session.TcpClientSession;
+import csdev.utils.ChannelStreams;
+import csdev.utils.Logger;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * <p>Unix domain socket transport for clients on the server host
+ * <p>Speaks the TCP protocol over a socket file, bypassing the loopback TCP/IP stack.
+ * Clients connect with host "unix:&lt;path&gt;". The per-source connection limit applies per
+ * local user (peer credentials); where these are not available local clients are exempt.
+ * <br>Options:
+ * <br>remoteshell.unix.path - socket file, the transport is enabled when set
+ * @author cin-tie
+ * @version 1.0
+ */
+public class UnixTransport extends TcpTransport {
+
+    private final Path path;
+    private ServerSocketChannel server;
+
+    public UnixTransport(Path path) {
+        super();
+        this.path = path.toAbsolutePath();
+    }
+
+    @Override
+    public String getProtocol() {
+        return "UNIX";
+    }
+
+    @Override
+    protected void bind() throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            // A socket file left by a crashed server is replaced, a live one or any other file is not
+            if (!isSocket(path)) {
+                throw new IOException(path + " exists and is not a socket");
+            }
+            if (isListening(address)) {
+                throw new IOException("Socket " + path + " is in use by another server");
+            }
+            Files.delete(path);
+        }
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(address);
+        Logger.logServer("UNIX socket server initialized on " + path);
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & 0170000) == 0140000;     // S_IFSOCK
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+        }
+    }
+
+    private static boolean isListening(UnixDomainSocketAddress address) {
+        try {
+            SocketChannel.open(address).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected boolean isOpen() {
+        return server != null && server.isOpen();
+    }
+
+    @Override
+    protected Closeable acceptConnection() throws IOException {
+        return server.accept();     // Unblocked by closeServer
+    }
+
+    @Override
+    protected String describe(Closeable connection) {
+        return "local client";
+    }
+
+    @Override
+    protected String source(Closeable connection) {
+        try {
+            UnixDomainPrincipal peer = ((SocketChannel) connection).getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return "unix:" + peer.user().getName();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected TcpClientSession openSession(Closeable connection) throws IOException {
+        SocketChannel channel = (SocketChannel) connection;
+        return new TcpClientSession(ChannelStreams.in(channel), ChannelStreams.out(channel), channel, "unix:" + path, getProtocol());
+    }
+
+    @Override
+    protected void closeServer() throws IOException {
+        if (server != null && server.isOpen()) {
+            server.close();
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -1,23 +1,55 @@
 package csdev.threads.session;
 
+import csdev.Protocol;
 import csdev.messages.Message;
+import csdev.messages.MessageConnect;
+import csdev.messages.MessageTransferHandle;
+import csdev.server.DetachedSessions;
+import csdev.server.ServerConfig;
 import csdev.server.ServerMain;
-import csdev.threads.TcpServerThread;
+import csdev.server.SessionRegistry;
+import csdev.server.SessionTokens;
+import csdev.threads.FileTransfer;
+import csdev.threads.OutputCapture;
 import csdev.utils.Logger;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * <p>Base client session class
+ * <p>A session may have bulk data channels: extra connections bound to it by its token
+ * that carry file transfers, so commands on the session's own connection are not
+ * queued behind them. Chunked file transfers belong to the session, so the chunks of
+ * one file may arrive over several of its connections, and are parked with the session
+ * when its connection breaks.
+ * <br>Options:
+ * <br>remoteshell.session.maxChannels - bulk data channels per session
  * @author cin-tie
  * @version 1.0
  */
 public abstract class ClientSession {
     protected String username = null;
     protected String usernameFull;
-    protected String currentDirectory;
+    protected volatile String currentDirectory;
     protected volatile boolean gracefulShutdown = false;
     protected boolean disconnected = false;
+    protected volatile SessionRegistry.Entry registration;  // Entry in the server session registry
+    protected volatile String sessionId = UUID.randomUUID().toString();   // Named by tokens, replaced on resumption
+
+    private static final int MAX_OUTPUTS = 8;
+    private final ArrayDeque<String> outputs = new ArrayDeque<>();  // Spilled output capture ids
+
+    public static final int MAX_CHANNELS = ServerConfig.getInt("session.maxChannels", 4);
+    private final List<ClientSession> channels = new CopyOnWriteArrayList<>();    // Bulk data channels
+
+    private static final int MAX_TRANSFERS = 8;
+    private final ConcurrentHashMap<String, FileTransfer> transfers = new ConcurrentHashMap<>();
 
     public ClientSession(){
         this.currentDirectory = System.getProperty("user.dir");
@@ -27,6 +59,11 @@ public abstract class ClientSession {
     public abstract void disconnect();
     public abstract void gracefulDisconnect();
 
+    /**
+     * Transport name used in log messages
+     */
+    public abstract String getProtocol();
+
     public boolean isConnected() {
         return !disconnected;
     }
@@ -39,6 +76,17 @@ public abstract class ClientSession {
         return usernameFull;
     }
 
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Signed token the client may present instead of its password
+     */
+    public String issueToken() {
+        return SessionTokens.getInstance().issue(username, sessionId);
+    }
+
     public String getCurrentDirectory() {
         return currentDirectory;
     }
@@ -47,17 +95,171 @@ public abstract class ClientSession {
         this.currentDirectory = directory;
     }
 
+    /**
+     * Registers spilled command output owned by this session;
+     * the oldest outputs are released when the limit is reached
+     */
+    public void addOutput(String outputId) {
+        synchronized (outputs) {
+            outputs.addLast(outputId);
+            while (outputs.size() > MAX_OUTPUTS) {
+                OutputCapture.release(outputs.removeFirst());
+            }
+        }
+    }
+
+    /**
+     * True if the spilled output was registered by this session
+     */
+    public boolean ownsOutput(String outputId) {
+        synchronized (outputs) {
+            return outputId != null && outputs.contains(outputId);
+        }
+    }
+
+    protected void releaseOutputs() {
+        synchronized (outputs) {
+            while (!outputs.isEmpty()) {
+                OutputCapture.release(outputs.removeFirst());
+            }
+        }
+    }
+
     protected void register(String username, String usernameFull) {
         if(this.username == null){
             this.username = username;
             this.usernameFull = usernameFull;
+            registration = ServerMain.getSessionRegistry().register(this);
             logInfo("User '" + usernameFull + "' registered as '" + username + "'");
         }
     }
 
+    /**
+     * Registers the user of a connect request; a valid token of a detached session
+     * of the user restores that session's state
+     * @return true if a detached session was resumed
+     */
+    public boolean attach(MessageConnect msg) {
+        DetachedSessions.Detached d = msg.token == null ? null : DetachedSessions.getInstance().take(msg.token, msg.username);
+        if (d == null) {
+            register(msg.username, msg.usernameFull);
+            return false;
+        }
+        sessionId = d.getSessionId();
+        currentDirectory = d.getCurrentDirectory();
+        synchronized (outputs) {
+            outputs.addAll(d.getOutputs());
+        }
+        synchronized (this) {
+            d.getTransfers().forEach(t -> transfers.put(t.getId(), t));
+        }
+        register(d.getUsername(), d.getUsernameFull());
+        logInfo("User '" + d.getUsername() + "' resumed " + d.getProtocol() + " session via " + getProtocol());
+        return true;
+    }
+
+    /**
+     * Ends a session whose connection broke; unless the server is stopping
+     * its state is kept in {@link DetachedSessions} for resumption
+     */
+    public void connectionLost() {
+        if (!disconnected && !gracefulShutdown && username != null) {
+            List<String> kept;
+            synchronized (outputs) {
+                kept = new ArrayList<>(outputs);
+                outputs.clear();
+            }
+            List<FileTransfer> keptTransfers;
+            synchronized (this) {
+                keptTransfers = new ArrayList<>(transfers.values());
+                transfers.clear();
+            }
+            if (DetachedSessions.getInstance().keep(this, kept, keptTransfers)) {
+                logInfo(getProtocol() + " session of '" + username + "' detached, resumable for "
+                        + DetachedSessions.getInstance().getGrace() + "ms");
+            } else {
+                kept.forEach(OutputCapture::release);
+                keptTransfers.forEach(FileTransfer::close);
+            }
+        }
+        disconnect();
+    }
+
+    /**
+     * Binds a bulk data channel to this session, it is closed when the session ends
+     * @return false if the session is gone or has {@link #MAX_CHANNELS} channels
+     */
+    public boolean addChannel(ClientSession channel) {
+        synchronized (channels) {
+            if (disconnected || username == null || channels.size() >= MAX_CHANNELS) {
+                return false;
+            }
+            channels.add(channel);
+            return true;
+        }
+    }
+
+    public void removeChannel(ClientSession channel) {
+        channels.remove(channel);
+    }
+
+    public int getChannelCount() {
+        return channels.size();
+    }
+
+    protected void closeChannels() {
+        for (ClientSession channel : channels) {
+            channel.disconnect();
+        }
+        channels.clear();
+    }
+
+    /**
+     * Keeps an open chunked transfer until it is closed or the session ends
+     * @return false if the session has too many open transfers
+     */
+    public synchronized boolean addTransfer(FileTransfer transfer) {
+        if (disconnected || transfers.size() >= MAX_TRANSFERS) {
+            return false;
+        }
+        transfers.put(transfer.getId(), transfer);
+        return true;
+    }
+
+    public FileTransfer getTransfer(String handleId) {
+        return handleId == null ? null : transfers.get(handleId);
+    }
+
+    public FileTransfer removeTransfer(String handleId) {
+        return handleId == null ? null : transfers.remove(handleId);
+    }
+
+    /**
+     * Handles of the open chunked transfers, returned to a client that resumes the session
+     */
+    public MessageTransferHandle[] getTransferHandles() {
+        List<MessageTransferHandle> handles = new ArrayList<>();
+        for (FileTransfer t : transfers.values()) {
+            MessageTransferHandle h = new MessageTransferHandle(t.isUpload() ? Protocol.CMD_UPLOAD : Protocol.CMD_DOWNLOAD, t.getId(),
+                    t.getTarget().getFileName().toString(), t.getTarget().toString(), t.getSize(), FileTransfer.MAX_CHUNK);
+            h.received = t.isUpload() ? t.getReceived() : 0;
+            handles.add(h);
+        }
+        return handles.toArray(new MessageTransferHandle[0]);
+    }
+
+    protected synchronized void closeTransfers() {
+        transfers.values().forEach(FileTransfer::close);
+        transfers.clear();
+    }
+
     protected void unregister(){
+        closeChannels();
+        closeTransfers();
+        releaseOutputs();
         if(this.username != null){
-            ServerMain.setUser(username, null);
+            ServerMain.getSessionRegistry().unregister(registration);
+            registration = null;
             username = null;
         }
     }
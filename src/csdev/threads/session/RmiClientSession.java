@@ -5,6 +5,9 @@ import csdev.messages.MessageDisconnect;
 
 import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * <p>RMI client session implementation
@@ -13,6 +16,16 @@ import java.rmi.RemoteException;
  */
 public class RmiClientSession extends ClientSession {
 
+    // RMI dispatches calls of one client on arbitrary threads. Fair ordering makes a call
+    // that changes session state wait for earlier calls and run before later ones.
+    private final ReentrantReadWriteLock order = new ReentrantReadWriteLock(true);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long leaseExpiry = Long.MAX_VALUE;
+
+    public interface Call<T> {
+        T call() throws RemoteException;
+    }
+
     public RmiClientSession(){
         super();
     }
@@ -37,11 +50,47 @@ public class RmiClientSession extends ClientSession {
         disconnect();
     }
 
-    public void registerUser(String username, String usernameFull){
-        register(username, usernameFull);
+    /**
+     * Runs a call of this session: exclusive calls (chdir) run alone,
+     * the others run concurrently with each other
+     */
+    public <T> T process(boolean exclusive, Call<T> call) throws RemoteException {
+        Lock lock = exclusive ? order.writeLock() : order.readLock();
+        inFlight.incrementAndGet();
+        lock.lock();
+        try {
+            return call.call();
+        } finally {
+            lock.unlock();
+            inFlight.decrementAndGet();
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public void renewLease(long leaseMillis) {
+        leaseExpiry = System.currentTimeMillis() + leaseMillis;
+    }
+
+    public long getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    /**
+     * A session with calls in progress is alive even if its lease has run out
+     */
+    public boolean isLeaseExpired(long now) {
+        return inFlight.get() == 0 && now >= leaseExpiry;
     }
 
     public String getClientInfo() {
         return "RMI:" + username;
     }
+
+    @Override
+    public String getProtocol() {
+        return "RMI";
+    }
 }
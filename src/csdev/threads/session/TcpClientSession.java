@@ -3,37 +3,62 @@ package csdev.threads.session;
 
 import csdev.Protocol;
 import csdev.messages.*;
+import csdev.server.AdmissionController;
+import csdev.server.CredentialStore;
+import csdev.server.DetachedSessions;
 import csdev.server.ServerMain;
+import csdev.server.SessionTokens;
+import csdev.threads.CommandEngine;
 import csdev.threads.TcpServerThread;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.Vector;
-import java.util.concurrent.TimeUnit;
 
 /**
  * <p>TCP client session implementation
+ * <p>Also serves stream connections of other transports (Unix domain sockets)
+ * that speak the same protocol. A connection opened with a bulk connect request is a
+ * data channel of an existing session and only carries its file transfers.
  * @author cin-tie
  * @version 1.0
  */
 public class TcpClientSession extends ClientSession {
-    private Socket socket;
+    private Closeable connection;
     private ObjectInputStream in;
     private ObjectOutputStream out;
-    private InetAddress address;
+    private String address;
+    private final String protocol;
+    private volatile ClientSession owner;     // Session this data channel belongs to, null for a session connection
 
     private Object syncCommands = new Object();
     private Vector<String> commandQueue = null;
 
     public TcpClientSession(Socket s) throws IOException {
+        this(withTimeout(s).getInputStream(), s.getOutputStream(), s, s.getInetAddress().getHostAddress(), "TCP");
+    }
+
+    /**
+     * Session over a connected stream pair
+     * @param connection closed on disconnect
+     * @param address client address for logs
+     */
+    public TcpClientSession(InputStream is, OutputStream os, Closeable connection, String address, String protocol) throws IOException {
         super();
-        this.socket = s;
+        this.connection = connection;
+        this.address = address;
+        this.protocol = protocol;
+        // Serialization writes field data in small pieces, each reply is sent with one write on flush
+        out = new ObjectOutputStream(new BufferedOutputStream(os, 64 * 1024));
+        out.flush();
+        in = new ObjectInputStream(is);
+    }
+
+    private static Socket withTimeout(Socket s) throws IOException {
         s.setSoTimeout(1000);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
-        address = s.getInetAddress();
+        s.setTcpNoDelay(true);      // Replies are complete messages, don't wait for the ACK of the previous one
+        return s;
     }
 
     public void processMessages(TcpServerThread thread) throws IOException {
@@ -54,7 +79,7 @@ public class TcpClientSession extends ClientSession {
             }
 
             if(msg != null) {
-                logDebug("Received TCP message type: " + msg.getId() + " from " + username);
+                logDebug("Received " + protocol + " message type: " + msg.getId() + " from " + username);
                 processMessage(msg, thread);
             }
             if(Thread.interrupted()) {
@@ -65,8 +90,16 @@ public class TcpClientSession extends ClientSession {
     }
 
     private void processMessage(Message msg, TcpServerThread thread) throws IOException {
+        if (owner != null) {
+            processTransfer(msg);
+            return;
+        }
         switch (msg.getId()) {
             case Protocol.CMD_CONNECT:
+                if (((MessageConnect) msg).bulk) {
+                    connectChannel((MessageConnect) msg);
+                    break;
+                }
                 if(!connect((MessageConnect) msg, thread))
                     return;
                 break;
@@ -76,23 +109,17 @@ public class TcpClientSession extends ClientSession {
                 break;
 
             case Protocol.CMD_EXECUTE:
-                executeCommand((MessageExecute) msg);
-                break;
-
             case Protocol.CMD_UPLOAD:
-                uploadFile((MessageUpload) msg);
-                break;
-
             case Protocol.CMD_DOWNLOAD:
-                downloadFile((MessageDownload) msg);
-                break;
-
             case Protocol.CMD_CHDIR:
-                changeDirectory((MessageChdir) msg);
+            case Protocol.CMD_GETDIR:
+            case Protocol.CMD_OUTPUT:
+            case Protocol.CMD_LIST:
+                sendMessage(CommandEngine.process(msg, this));
                 break;
 
-            case Protocol.CMD_GETDIR:
-                getCurrentDirectory((MessageGetdir) msg);
+            case Protocol.CMD_ARCHIVE:
+                archive((MessageArchive) msg, this);
                 break;
 
             default:
@@ -102,201 +129,114 @@ public class TcpClientSession extends ClientSession {
     }
 
     boolean connect(MessageConnect msg, TcpServerThread thread) throws IOException {
-        logInfo("TCP connecting attempt from: " + msg.username + "(" + msg.usernameFull + ")");
+        logInfo(protocol + " connecting attempt from: " + msg.username + "(" + msg.usernameFull + ")");
 
-        if(ServerMain.isPasswordRequired()){
-            if(msg.password == null || !msg.password.equals(ServerMain.getServerPassword())){
+        CredentialStore credentials = CredentialStore.getInstance();
+        if(credentials.isPasswordRequired()){
+            if(!credentials.authenticate(msg)){
                 MessageConnectResult result = new MessageConnectResult("Wrong password");
                 sendMessage(result);
-                logWarning("TCP Connection rejected - invalid password for user: " + msg.username);
+                logWarning(protocol + " Connection rejected - invalid password for user: " + msg.username);
+                // Another guess needs a new connection, which passes the per-source admission limit
+                disconnect();
                 return false;
             }
         }
 
-        super.register(msg.username,  msg.password);
-        ServerMain.registerUser(username, thread);
+        DetachedSessions.getInstance().takeOver(msg);
+        String rejected = AdmissionController.getInstance().checkUser(msg.username);
+        if (rejected != null) {
+            sendMessage(new MessageConnectResult(rejected));
+            logWarning(protocol + " Connection rejected - " + rejected);
+            return false;
+        }
+
+        boolean resumed = attach(msg);
 
         String serverOS = System.getProperty("os.name") + " " + System.getProperty("os.version");
         String serverVersion = "Remote Shell server 1.1";
         MessageConnectResult result = new MessageConnectResult(serverOS, currentDirectory, serverVersion);
+        result.token = issueToken();
+        result.resumed = resumed;
+        if (resumed) {
+            result.transfers = getTransferHandles();
+        }
         sendMessage(result);
-        logInfo("User connected successfully via TCP: " + msg.username);
+        logInfo("User connected successfully via " + protocol + ": " + msg.username);
         return true;
     }
 
-    void executeCommand(MessageExecute msg) throws IOException {
-        logInfo("Executing command for " + username + ": " + msg.command);
-
-        try{
-            String command = msg.command;
-            String workingDirectory = (msg.workingDir == null || msg.workingDir.isEmpty()) ? currentDirectory : msg.workingDir;
-            long timeout = msg.timeMillis > 0 ? msg.timeMillis : 30000;
-
-            ProcessBuilder pb = new  ProcessBuilder();
-            pb.command("sh", "-c", command);
-            pb.directory(new File(workingDirectory));
-
-            long startTime = System.currentTimeMillis();
-            Process p = pb.start();
-
-            boolean finished = false;
-            try{
-                finished = p.waitFor(timeout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                p.destroy();
-                Thread.currentThread().interrupt();
-                throw new IOException("Command execution interrupted");
-            }
-
-            long timeMillis = System.currentTimeMillis() -  startTime;
-
-            if(!finished) {
-                p.destroyForcibly();
-                MessageExecuteResult result = new MessageExecuteResult("Command timed out after " + timeMillis + " ms");
-                sendMessage(result);
-                logWarning("Command timed out for: " + username + " after " + timeMillis + " ms");
-                return;
-            }
-
-            String output = readStream(p.getInputStream());
-            String error = readStream(p.getErrorStream());
-            int exitCode = p.exitValue();
-
-            MessageExecuteResult result = new MessageExecuteResult(output, error, exitCode, timeMillis, workingDirectory);
-            sendMessage(result);
-
-            logInfo("Command completed for " + username + " [exitCode=" + exitCode + ", time=" + timeMillis + "ms]");
-        } catch (Exception e){
-            logError("Command execution failed for " + username + ": " + e.getMessage());
-            MessageExecuteResult result = new MessageExecuteResult("Command execution failed: " + e.getMessage());
-            sendMessage(result);
-        }
-    }
-
-    void uploadFile(MessageUpload msg) throws IOException {
-        logInfo("Uploading file from " + username + ": " + msg.fileName);
-
-        try {
-            File targetDirectory = new File(currentDirectory);
-            if(!targetDirectory.exists() || !targetDirectory.isDirectory()) {
-                MessageUploadResult result = new MessageUploadResult("Invalid target directory: " + msg.filePath);
-                sendMessage(result);
-                return;
-            }
-
-            File targetFile = new File(targetDirectory, msg.fileName);
-            boolean fileExists = targetFile.exists();
-
-            if(fileExists && !msg.overwrite) {
-                MessageUploadResult result = new MessageUploadResult("File already exists and overwrite is disabled: " + msg.filePath);
-                sendMessage(result);
-                return;
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(targetFile)) {
-                fos.write(msg.fileData);
-            }
-
-            MessageUploadResult result = new MessageUploadResult(targetFile.getAbsolutePath(), msg.fileSize, fileExists);
-            sendMessage(result);
-
-            logInfo("File uploaded successfully: " + targetFile.getAbsolutePath() + " [size=" + msg.fileSize + " bytes, overwrite=" + fileExists + "]");
-        } catch (Exception e) {
-            logError("File upload failed for " + username + ": " + e.getMessage());
-            MessageUploadResult result = new MessageUploadResult("File upload failed: " + e.getMessage());
-            sendMessage(result);
-        }
-    }
-
-    void downloadFile(MessageDownload msg) throws IOException {
-        logInfo("File download request from " + username + ": " + msg.filePath);
-
-        try {
-            File file = new File(msg.filePath.isEmpty() ? currentDirectory : msg.filePath);
-            if (!file.exists() || !file.isFile()) {
-                MessageDownloadResult result = new MessageDownloadResult("File not found: " + msg.filePath);
-                sendMessage(result);
-                return;
-            }
-
-            if(!file.canRead()) {
-                MessageDownloadResult result = new MessageDownloadResult("Cannot read file: " + msg.filePath);
-                sendMessage(result);
-                return;
-            }
-
-            long size = file.length();
-            long offset = msg.offset;
-            long length = msg.length > 0 ? Math.min(size - offset, msg.length) : size - offset;
-
-            byte[] fileData = new byte[(int) length];
-            try (FileInputStream fis = new FileInputStream(file)) {
-                BufferedInputStream bis = new BufferedInputStream(fis);
-
-                bis.skip(offset);
-                int read = bis.read(fileData);
-                if(read != length) {
-                    throw new IOException("Failed to read complete file: " + msg.filePath);
-                }
-            }
-
-            boolean isPartial = (offset > 0 || length < size);
-            MessageDownloadResult result = new MessageDownloadResult(file.getName(), size, fileData, isPartial, false);
-            sendMessage(result);
-            logInfo("File downloaded successfully: " + file.getAbsolutePath() + " [size=" + size + " bytes, sent=" + length + " bytes, partial=" + isPartial + "]");
-        } catch (Exception e) {
-            logError("File download failed for " + username + ": " + e.getMessage());
-            MessageDownloadResult result = new MessageDownloadResult("File download failed: " + e.getMessage());
-            sendMessage(result);
+    /**
+     * Binds this connection as a data channel to the session named by the token
+     */
+    private void connectChannel(MessageConnect msg) throws IOException {
+        SessionTokens.Token token = SessionTokens.getInstance().parse(msg.token);
+        ClientSession session = token == null || !token.username.equals(msg.username)
+                ? null : ServerMain.getSessionRegistry().find(token.sessionId);
+        if (session == null || !session.addChannel(this)) {
+            sendMessage(new MessageConnectResult(session == null ? "Invalid session token" : "Too many data channels, max " + MAX_CHANNELS));
+            logWarning(protocol + " Data channel rejected for user: " + msg.username);
+            disconnect();
+            return;
         }
+        owner = session;
+        String serverOS = System.getProperty("os.name") + " " + System.getProperty("os.version");
+        sendMessage(new MessageConnectResult(serverOS, session.getCurrentDirectory(), "Remote Shell server 1.1"));
+        logInfo(protocol + " Data channel " + session.getChannelCount() + " opened for " + session.getProtocol() + " session of " + msg.username);
     }
 
-    void changeDirectory(MessageChdir msg) throws IOException {
-        logInfo("Directory change request from " + username + ": " + msg.newDirectory);
+    /**
+     * Messages of a data channel run in the context of the session it belongs to
+     */
+    private void processTransfer(Message msg) throws IOException {
+        switch (msg.getId()) {
+            case Protocol.CMD_DISCONNECT:
+                disconnect();
+                break;
 
-        try {
-            File newDir = new File(msg.newDirectory);
-            if (!newDir.exists() || !newDir.isDirectory()) {
-                MessageChdirResult result = new MessageChdirResult("Directory does not exist: " + msg.newDirectory);
-                sendMessage(result);
-                return;
-            }
+            case Protocol.CMD_UPLOAD:
+            case Protocol.CMD_DOWNLOAD:
+            case Protocol.CMD_OUTPUT:
+                sendMessage(CommandEngine.process(msg, owner));
+                // Transferred data is not referenced again, don't keep it in the stream's handle table
+                out.reset();
+                break;
 
-            String oldDirectory = currentDirectory;
-            currentDirectory = newDir.getAbsolutePath();
+            case Protocol.CMD_ARCHIVE:
+                archive((MessageArchive) msg, owner);
+                break;
 
-            MessageChdirResult result = new MessageChdirResult(currentDirectory, oldDirectory);
-            sendMessage(result);
-            logInfo("Directory changed for " + username + " successfully: " + oldDirectory + " -> " + currentDirectory);
-        } catch (Exception e) {
-            logError("Directory change failed for " + username + ": " + e.getMessage());
-            MessageChdirResult result = new MessageChdirResult("Directory change failed: " + e.getMessage());
-            sendMessage(result);
+            default:
+                sendMessage(new MessageExecuteResult("Only file transfers are accepted on a data channel"));
+                break;
         }
     }
 
-    void getCurrentDirectory(MessageGetdir msg) throws IOException {
-        logDebug("Current directory request from " + username);
-
-        try {
-            MessageGetdirResult result = new MessageGetdirResult(currentDirectory, 0);
-            sendMessage(result);
-        } catch (Exception e) {
-            logError("Get directory failed for " + username + ": " + e.getMessage());
-            MessageGetdirResult result = new MessageGetdirResult("Get directory failed: " + e.getMessage());
-            sendMessage(result);
-        }
+    /**
+     * Streams a directory tree over this connection, no other message is processed meanwhile
+     */
+    private void archive(MessageArchive msg, ClientSession session) throws IOException {
+        sendMessage(CommandEngine.archive(msg, session, m -> {
+            sendMessage(m);
+            out.reset();
+        }, this::receiveMessage));
+        out.reset();
     }
 
-    private String readStream(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line).append("\n");
+    /**
+     * Next message of a stream sent by the client, read timeouts are waited out
+     */
+    private Message receiveMessage() throws IOException {
+        while (!disconnected && !gracefulShutdown) {
+            try {
+                return (Message) in.readObject();
+            } catch (SocketTimeoutException e) {
+                // Client is still reading its files
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid message received: " + e.getMessage());
             }
         }
-        return sb.toString();
+        throw new IOException("Session closed");
     }
 
     @Override
@@ -333,21 +273,24 @@ public class TcpClientSession extends ClientSession {
         if(!disconnected) {
             try {
                 if(gracefulShutdown) {
-                    logInfo("TCP Client gracefully disconnected: " + getClientInfo());
+                    logInfo(protocol + " Client gracefully disconnected: " + getClientInfo());
                 }
                 else{
-                    logInfo("TCP Client disconnected: " + getClientInfo());
+                    logInfo(protocol + " Client disconnected: " + getClientInfo());
                 }
                 unregister();
+                if (owner != null) {
+                    owner.removeChannel(this);
+                }
                 if(out != null)
                     out.close();
                 if(in != null)
                     in.close();
-                if(socket != null)
-                    socket.close();
+                if(connection != null)
+                    connection.close();
             } catch (IOException e){
                 if(!gracefulShutdown) {
-                    logError("Error while disconnecting TCP client: " + e.getMessage());
+                    logError("Error while disconnecting " + protocol + " client: " + e.getMessage());
                 }
             }
             finally {
@@ -357,10 +300,17 @@ public class TcpClientSession extends ClientSession {
     }
 
     public String getClientInfo() {
-        return address != null ? address.getHostAddress() + " (" + username + ")" : "Unknown";
+        ClientSession session = owner;
+        String user = session != null ? session.getUsername() + " data channel" : username;
+        return address != null ? address + " (" + user + ")" : "Unknown";
     }
 
     public boolean isGracefulShutdown() {
         return gracefulShutdown;
     }
-}
\ No newline at end of file
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+}
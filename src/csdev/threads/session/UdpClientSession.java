@@ -4,10 +4,7 @@ import csdev.messages.Message;
 import csdev.messages.MessageDisconnect;
 import csdev.threads.UdpServerThread;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.net.InetAddress;
 
 /**
@@ -40,8 +37,7 @@ public class UdpClientSession extends ClientSession{
         if(!disconnected){
             disconnected = true;
             unregister();
-            String clientKey = getClientKey();
-            server.removeSession(clientKey);
+            server.removeSession(address, port);
             logInfo("UDP Session cleaned up: " + getClientInfo());
         }
     }
@@ -58,21 +54,6 @@ public class UdpClientSession extends ClientSession{
         disconnect();
     }
 
-    public String readStream(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(in))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line).append("\n");
-            }
-        }
-        return sb.toString();
-    }
-
-    public void registerUser(String username, String usernameFull) {
-        register(username, usernameFull);
-    }
-
     private void updateActivity(){
         this.lastActivity = System.currentTimeMillis();
     }
@@ -88,4 +69,9 @@ public class UdpClientSession extends ClientSession{
     public String getClientInfo(){
         return getClientKey() + "(" + username + ")";
     }
+
+    @Override
+    public String getProtocol() {
+        return "UDP";
+    }
 }
@@ -0,0 +1,95 @@
+package csdev.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>Checksums of transferred file data
+ * <p>CRC32C guards each chunk or fragment a message carries, SHA-256 the whole file.
+ * Hex digests are lower case; a CRC of -1 means none was sent.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class Checksums {
+
+    private static final int BUFFER = 1024 * 1024;
+
+    private Checksums() {
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * CRC32C of a byte range
+     * @return the checksum, -1 for null data
+     */
+    public static long crc32c(byte[] data, int offset, int length) {
+        if (data == null) {
+            return -1;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    /**
+     * SHA-256 of a byte range
+     * @return lower case hex digest
+     */
+    public static String sha256(byte[] data, int offset, int length) {
+        MessageDigest digest = sha256();
+        digest.update(data, offset, length);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * SHA-256 of the first size bytes of a channel, read with positional reads
+     * @return lower case hex digest
+     */
+    public static String sha256(FileChannel channel, long size) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER);
+        long position = 0;
+        while (position < size) {
+            buf.clear().limit((int) Math.min(BUFFER, size - position));
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("File ended at " + position + " of " + size + " bytes");
+            }
+            buf.flip();
+            digest.update(buf);
+            position += n;
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * SHA-256 of a whole file
+     * @return lower case hex digest
+     */
+    public static String sha256(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return sha256(channel, channel.size());
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,806 @@
+package csdev.utils;
+
+import csdev.messages.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * <p>Reliable message channel over a UDP socket
+ * <p>Every message travels in one datagram with a sequence number. The receiver delivers the
+ * messages of a peer once and in order, acknowledges them with the next expected number and a
+ * bitmap of datagrams received beyond it, and sends a NACK instead when it sees a gap.
+ * Unacknowledged datagrams are resent after a timeout computed from the measured round trip
+ * time (RFC 6298), holes reported by a NACK are resent at once. The number of datagrams in flight
+ * is limited by a congestion window (slow start, halved on loss, reset on timeout).
+ * <p>Optionally datagrams sent as protected get forward error correction: after every group of
+ * {@link #setFecGroup(int)} of them a parity datagram with their XOR follows, so the receiver
+ * rebuilds one lost datagram per group without waiting for a resend.
+ * <p>Peers are identified by address and port. Each side of a peer picks a random connection id,
+ * so state of a restarted peer is recognised and replaced. A datagram from an unknown source
+ * opens a peer only if it carries a readable message accepted by {@link #setOpener(Predicate)};
+ * the owner {@link #bind(InetAddress, int)}s the peers it keeps, the others are dropped after a
+ * short idle time.
+ * <p>Messages arrive through {@link #receive()}, which must be called by a single thread,
+ * either the owner's loop or the thread started by {@link #start()}.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class ReliableDatagramChannel implements Closeable {
+
+    public interface Handler {
+        /**
+         * Called on the receiving thread in delivery order, must not block on sending
+         */
+        void onMessage(InetAddress address, int port, Message msg);
+    }
+
+    public interface LossListener {
+        /**
+         * Called when a datagram to the peer stayed unacknowledged after all retries
+         */
+        void onPeerLost(InetAddress address, int port);
+    }
+
+    private static final byte DATA = 1;
+    private static final byte ACK = 2;
+    private static final byte NACK = 3;
+    private static final byte DATA_PROTECTED = 4;       // DATA covered by a parity datagram
+    private static final byte PARITY = 5;               // type, connection id, count, (seq, length)*, XOR
+
+    private static final int DATA_HEADER = 17;          // type, connection id, seq, base
+    private static final int ACK_SIZE = 21;             // type, connection id, next, bitmap
+    public static final int MAX_MESSAGE_SIZE = 65507 - DATA_HEADER;
+
+    private static final int INITIAL_WINDOW = 10;       // Datagrams
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 256;
+    private static final double INITIAL_RTO = 300;      // ms
+    private static final double MIN_RTO = 20;
+    private static final double MAX_RTO = 5000;
+    public static final int MAX_FEC_GROUP = 32;
+    private static final int MAX_PARITIES = 64;         // Unrecoverable parities kept per peer
+    private static final int MAX_RETRIES = 10;          // Resends of a datagram before the peer is lost
+    private static final long TICK = 10;                // ms between retransmission checks
+    private static final long IDLE_TIMEOUT = 600000;    // ms before state of a quiet peer is dropped
+    private static final long UNBOUND_IDLE_TIMEOUT = 10000; // ms for a peer the owner didn't bind
+    private static final int MAX_PEERS = 4096;          // Peers opened by remote sources
+
+    private static class Outgoing {
+        final int seq;
+        final byte[] data;
+        long sentAt;        // System.nanoTime of the last send
+        int sends = 1;
+
+        Outgoing(int seq, byte[] data, long sentAt) {
+            this.seq = seq;
+            this.data = data;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private static class Parity {
+        final int[] seqs;
+        final int[] lengths;
+        final byte[] xor;
+
+        Parity(int[] seqs, int[] lengths, byte[] xor) {
+            this.seqs = seqs;
+            this.lengths = lengths;
+            this.xor = xor;
+        }
+    }
+
+    private static class Peer {
+        final InetAddress address;
+        final int port;
+        final long connectionId;
+        long lastActivity = System.currentTimeMillis();
+        boolean lost = false;
+        boolean closing = false;    // Dropped once everything sent is acknowledged
+        boolean removed = false;
+        boolean bound = true;       // Kept for IDLE_TIMEOUT, unbound peers only for UNBOUND_IDLE_TIMEOUT
+
+        // Sending side
+        int nextSeq = 0;
+        final TreeMap<Integer, Outgoing> inFlight = new TreeMap<>();
+        double cwnd = INITIAL_WINDOW;
+        double ssthresh = MAX_WINDOW;
+        double srtt = -1;           // ms
+        double rttvar = 0;
+        double rto = INITIAL_RTO;
+        int recoverySeq = 0;        // Losses below it belong to the last congestion event
+        final List<Integer> groupSeqs = new ArrayList<>();      // Protected datagrams of the open parity group
+        final List<byte[]> groupPayloads = new ArrayList<>();
+        long groupTouched;
+
+        // Receiving side
+        boolean remoteKnown = false;
+        long remoteId;
+        boolean retiredKnown = false;
+        long retiredId;             // Replaced connection of a restarted peer, its late datagrams are dropped
+        int expected = 0;
+        final TreeMap<Integer, Message> early = new TreeMap<>();
+        final TreeMap<Integer, byte[]> protectedPayloads = new TreeMap<>();    // Kept to rebuild lost ones
+        final List<Parity> parities = new ArrayList<>();
+
+        Peer(InetAddress address, int port, long connectionId) {
+            this.address = address;
+            this.port = port;
+            this.connectionId = connectionId;
+        }
+    }
+
+    private final DatagramSocket socket;
+    private final Handler handler;
+    private volatile LossListener lossListener;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] buffer = new byte[65536];
+    private final ScheduledExecutorService timer;
+    private volatile boolean closed = false;
+    private volatile int fecGroup = 0;
+    private volatile Predicate<Message> opener;
+
+    public ReliableDatagramChannel(DatagramSocket socket, Handler handler) {
+        this.socket = socket;
+        this.handler = handler;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "UdpRetransmit");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::checkTimeouts, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    public void setLossListener(LossListener lossListener) {
+        this.lossListener = lossListener;
+    }
+
+    /**
+     * Restricts which first message of an unknown source opens a peer, peers opened by it stay
+     * unbound until {@link #bind(InetAddress, int)}; by default any readable message opens a bound peer
+     */
+    public void setOpener(Predicate<Message> opener) {
+        this.opener = opener;
+    }
+
+    /**
+     * Keeps the state of a peer opened by a remote source for the full idle timeout,
+     * also when it was forgotten before
+     */
+    public void bind(InetAddress address, int port) {
+        Peer peer = peers.get(key(address, port));
+        if (peer != null) {
+            synchronized (peer) {
+                peer.bound = true;
+                peer.closing = false;
+            }
+        }
+    }
+
+    /**
+     * Runs a housekeeping task of the channel owner periodically on the channel timer,
+     * the task must be short and must not block
+     */
+    public void schedule(Runnable task, long periodMillis) {
+        timer.scheduleWithFixedDelay(task, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param fecGroup protected datagrams per parity datagram, 0 or 1 disables FEC
+     */
+    public void setFecGroup(int fecGroup) {
+        this.fecGroup = Math.max(0, Math.min(MAX_FEC_GROUP, fecGroup));
+    }
+
+    public int getFecGroup() {
+        return fecGroup;
+    }
+
+    /**
+     * Starts a daemon thread receiving until the channel is closed
+     */
+    public void start() {
+        Thread t = new Thread(() -> {
+            while (!closed) {
+                try {
+                    receive();
+                } catch (IOException e) {
+                    if (!closed) {
+                        Logger.logDebug("UDP receive error: " + e.getMessage());
+                    }
+                }
+            }
+        }, "UdpReceiver");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends a message, blocks while the congestion window of the peer is full
+     * @throws IOException if the peer is lost or the message doesn't fit in a datagram
+     */
+    public void send(InetAddress address, int port, Message msg) throws IOException {
+        send(address, port, msg, false);
+    }
+
+    /**
+     * Sends a message
+     * @param protect cover the datagram by parity when FEC is enabled, meant for bulk data
+     */
+    public void send(InetAddress address, int port, Message msg, boolean protect) throws IOException {
+        byte[] payload = serialize(msg);
+        if (payload.length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Message too large for a datagram: " + payload.length + " bytes");
+        }
+        Peer peer;
+        List<byte[]> datagrams = new ArrayList<>(2);
+        while (true) {
+            peer = peer(address, port);
+            synchronized (peer) {
+                if (!peer.removed) {
+                    enqueue(peer, payload, protect && fecGroup > 1, datagrams);
+                    break;
+                }
+            }
+        }
+        for (byte[] data : datagrams) {
+            transmit(peer, data);
+        }
+    }
+
+    private void enqueue(Peer peer, byte[] payload, boolean protect, List<byte[]> datagrams) throws IOException {
+        while (!peer.lost && !closed && peer.inFlight.size() >= (int) peer.cwnd) {
+            try {
+                peer.wait(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sending");
+            }
+        }
+        if (closed) {
+            throw new IOException("Channel closed");
+        }
+        if (peer.lost) {
+            throw new IOException("Peer " + key(peer.address, peer.port) + " is not responding");
+        }
+        if (!protect && !peer.groupSeqs.isEmpty()) {
+            datagrams.add(closeGroup(peer));
+        }
+        int seq = peer.nextSeq++;
+        int base = peer.inFlight.isEmpty() ? seq : peer.inFlight.firstKey();
+        byte[] data = ByteBuffer.allocate(DATA_HEADER + payload.length)
+                .put(protect ? DATA_PROTECTED : DATA).putLong(peer.connectionId).putInt(seq).putInt(base).put(payload).array();
+        peer.inFlight.put(seq, new Outgoing(seq, data, System.nanoTime()));
+        peer.lastActivity = System.currentTimeMillis();
+        datagrams.add(data);
+        if (protect) {
+            peer.groupSeqs.add(seq);
+            peer.groupPayloads.add(payload);
+            peer.groupTouched = System.nanoTime();
+            if (peer.groupSeqs.size() >= fecGroup) {
+                datagrams.add(closeGroup(peer));
+            }
+        }
+    }
+
+    /**
+     * Builds the parity datagram of the open group and starts a new group
+     */
+    private static byte[] closeGroup(Peer peer) {
+        int count = peer.groupSeqs.size();
+        int max = 0;
+        for (byte[] payload : peer.groupPayloads) {
+            max = Math.max(max, payload.length);
+        }
+        byte[] xor = new byte[max];
+        for (byte[] payload : peer.groupPayloads) {
+            for (int i = 0; i < payload.length; i++) {
+                xor[i] ^= payload[i];
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(13 + 8 * count + max).put(PARITY).putLong(peer.connectionId).putInt(count);
+        for (int i = 0; i < count; i++) {
+            out.putInt(peer.groupSeqs.get(i)).putInt(peer.groupPayloads.get(i).length);
+        }
+        peer.groupSeqs.clear();
+        peer.groupPayloads.clear();
+        return out.put(xor).array();
+    }
+
+    /**
+     * Waits until everything sent to the peer is acknowledged
+     * @return false on timeout or if the peer is lost
+     */
+    public boolean flush(InetAddress address, int port, long timeoutMillis) {
+        Peer peer = peers.get(key(address, port));
+        if (peer == null) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (peer) {
+            long left;
+            while (!peer.inFlight.isEmpty() && !peer.lost && !closed && (left = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    peer.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return peer.inFlight.isEmpty();
+        }
+    }
+
+    /**
+     * Waits until every peer has acknowledged everything sent to it
+     */
+    public void flushAll(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Peer peer : peers.values()) {
+            flush(peer.address, peer.port, Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Releases the state of a peer once the datagrams in flight are acknowledged
+     */
+    public void forget(InetAddress address, int port) {
+        Peer peer = peers.get(key(address, port));
+        if (peer != null) {
+            synchronized (peer) {
+                peer.closing = true;
+            }
+        }
+    }
+
+    /**
+     * Drops the state of a peer at once, datagrams in flight are discarded;
+     * the next message to the address starts a new connection
+     */
+    public void abandon(InetAddress address, int port) {
+        Peer peer = peers.remove(key(address, port));
+        if (peer != null) {
+            synchronized (peer) {
+                peer.removed = true;
+                peer.lost = true;
+                peer.inFlight.clear();
+                peer.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Receives one datagram, messages that become deliverable are passed to the handler
+     */
+    public void receive() throws IOException {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        socket.receive(packet);
+        if (packet.getLength() < DATA_HEADER) {
+            Logger.logDebug("UDP datagram too short from " + key(packet.getAddress(), packet.getPort()));
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+        byte type = in.get();
+        long connectionId = in.getLong();
+        String key = key(packet.getAddress(), packet.getPort());
+        Peer peer = peers.get(key);
+        if (type == DATA || type == DATA_PROTECTED) {
+            int seq = in.getInt();
+            int base = in.getInt();
+            Message msg = readMessage(key, in.array(), in.position(), in.remaining(), peer != null);
+            if (peer == null && (peer = open(packet.getAddress(), packet.getPort(), msg)) == null) {
+                return;
+            }
+            onData(peer, connectionId, seq, base, in, type == DATA_PROTECTED, msg);
+        } else if (peer == null) {
+            Logger.logDebug("UDP datagram type " + type + " from unknown peer " + key);
+        } else if (type == PARITY) {
+            onParity(peer, connectionId, in);
+        } else if ((type == ACK || type == NACK) && packet.getLength() >= ACK_SIZE) {
+            onAck(peer, connectionId, in.getInt(), in.getLong(), type == NACK);
+        } else {
+            Logger.logDebug("Unknown UDP datagram type " + type + " from " + key(peer.address, peer.port));
+        }
+    }
+
+    /**
+     * Opens a peer for the first message of an unknown source
+     * @return null if the message doesn't open one
+     */
+    private Peer open(InetAddress address, int port, Message msg) {
+        Predicate<Message> opener = this.opener;
+        if (msg == null || (opener != null && !opener.test(msg))) {
+            Logger.logDebug("UDP datagram from unknown peer " + key(address, port) + " dropped");
+            return null;
+        }
+        if (peers.size() >= MAX_PEERS) {
+            Logger.logWarning("UDP peer limit reached, datagram from " + key(address, port) + " dropped");
+            return null;
+        }
+        Peer peer = peer(address, port);
+        synchronized (peer) {
+            if (peer.remoteKnown || peer.nextSeq > 0) {
+                return peer;    // Opened meanwhile by a send
+            }
+            peer.bound = opener == null;
+        }
+        return peer;
+    }
+
+    private void onData(Peer peer, long connectionId, int seq, int base, ByteBuffer in, boolean protect, Message msg) throws IOException {
+        List<Message> ready = new ArrayList<>();
+        byte[] ack;
+        synchronized (peer) {
+            if (peer.retiredKnown && peer.retiredId == connectionId) {
+                return;
+            }
+            peer.lastActivity = System.currentTimeMillis();
+            if (!peer.remoteKnown || peer.remoteId != connectionId) {
+                // New or restarted peer, everything below base was delivered before
+                if (peer.remoteKnown) {
+                    peer.retiredKnown = true;
+                    peer.retiredId = peer.remoteId;
+                }
+                peer.remoteKnown = true;
+                peer.remoteId = connectionId;
+                peer.expected = base;
+                peer.early.clear();
+                peer.protectedPayloads.clear();
+                peer.parities.clear();
+            }
+            if (protect && seq >= peer.expected) {
+                peer.protectedPayloads.put(seq, Arrays.copyOfRange(in.array(), in.position(), in.limit()));
+            }
+            accept(peer, seq, msg);
+            recover(peer);
+            drain(peer, ready);
+            // A gap among protected datagrams may still be filled from parity
+            ack = ack(peer, !protect && !peer.early.isEmpty());
+        }
+        transmit(peer, ack);
+        for (Message m : ready) {
+            handler.onMessage(peer.address, peer.port, m);
+        }
+    }
+
+    private void onParity(Peer peer, long connectionId, ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 1 || count > MAX_FEC_GROUP || in.remaining() < 8 * count) {
+            Logger.logDebug("Invalid UDP parity datagram from " + key(peer.address, peer.port));
+            return;
+        }
+        int[] seqs = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            seqs[i] = in.getInt();
+            lengths[i] = in.getInt();
+        }
+        for (int length : lengths) {
+            if (length < 0 || length > in.remaining()) {
+                Logger.logDebug("Invalid UDP parity datagram from " + key(peer.address, peer.port));
+                return;
+            }
+        }
+        byte[] xor = Arrays.copyOfRange(in.array(), in.position(), in.limit());
+
+        List<Message> ready = new ArrayList<>();
+        byte[] ack;
+        synchronized (peer) {
+            if (!peer.remoteKnown || peer.remoteId != connectionId) {
+                return;
+            }
+            peer.lastActivity = System.currentTimeMillis();
+            peer.parities.add(new Parity(seqs, lengths, xor));
+            if (peer.parities.size() > MAX_PARITIES) {
+                peer.parities.remove(0);
+            }
+            recover(peer);
+            drain(peer, ready);
+            ack = ack(peer, !peer.early.isEmpty());
+        }
+        transmit(peer, ack);
+        for (Message m : ready) {
+            handler.onMessage(peer.address, peer.port, m);
+        }
+    }
+
+    private static void accept(Peer peer, int seq, Message msg) {
+        if (seq >= peer.expected && seq - peer.expected < 2 * MAX_WINDOW && !peer.early.containsKey(seq)) {
+            peer.early.put(seq, msg);
+        }
+    }
+
+    /**
+     * Rebuilds datagrams that are the only ones missing from a parity group
+     */
+    private void recover(Peer peer) {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            Iterator<Parity> it = peer.parities.iterator();
+            while (it.hasNext()) {
+                Parity parity = it.next();
+                int missing = -1;
+                int count = 0;
+                for (int i = 0; i < parity.seqs.length; i++) {
+                    int seq = parity.seqs[i];
+                    if (seq >= peer.expected && !peer.early.containsKey(seq)) {
+                        missing = i;
+                        count++;
+                    }
+                }
+                if (count > 1) {
+                    continue;   // Wait for resends
+                }
+                it.remove();
+                if (count == 0) {
+                    continue;
+                }
+                byte[] data = parity.xor.clone();
+                boolean complete = true;
+                for (int i = 0; i < parity.seqs.length && complete; i++) {
+                    if (i == missing) {
+                        continue;
+                    }
+                    byte[] other = peer.protectedPayloads.get(parity.seqs[i]);
+                    if (other == null) {
+                        complete = false;
+                    } else {
+                        for (int j = 0; j < other.length; j++) {
+                            data[j] ^= other[j];
+                        }
+                    }
+                }
+                if (!complete || parity.lengths[missing] > data.length) {
+                    continue;
+                }
+                int seq = parity.seqs[missing];
+                byte[] payload = Arrays.copyOf(data, parity.lengths[missing]);
+                peer.protectedPayloads.put(seq, payload);
+                accept(peer, seq, readMessage(key(peer.address, peer.port), payload, 0, payload.length, true));
+                Logger.logDebug("Rebuilt UDP datagram " + seq + " from parity for " + key(peer.address, peer.port));
+                progress = true;
+            }
+        }
+    }
+
+    /**
+     * Moves messages that are next in order to the ready list
+     */
+    private static void drain(Peer peer, List<Message> ready) {
+        while (peer.early.containsKey(peer.expected)) {
+            Message m = peer.early.remove(peer.expected++);
+            if (m != null) {
+                ready.add(m);
+            }
+        }
+        peer.protectedPayloads.headMap(peer.expected - MAX_WINDOW).clear();
+    }
+
+    private static byte[] ack(Peer peer, boolean nack) {
+        long bitmap = 0;
+        for (int seqAhead : peer.early.keySet()) {
+            int bit = seqAhead - peer.expected - 1;
+            if (bit < 64) {
+                bitmap |= 1L << bit;
+            }
+        }
+        return ByteBuffer.allocate(ACK_SIZE)
+                .put(nack ? NACK : ACK).putLong(peer.remoteId).putInt(peer.expected).putLong(bitmap).array();
+    }
+
+    /**
+     * @param known whether the source is a peer, garbage from unknown sources is only logged for debugging
+     */
+    private static Message readMessage(String key, byte[] data, int off, int len, boolean known) {
+        try {
+            return deserialize(data, off, len);
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // Acknowledged anyway, a resend would not be readable either
+            String text = "Unreadable UDP message from " + key + ": " + e.getMessage();
+            if (known) {
+                Logger.logWarning(text);
+            } else {
+                Logger.logDebug(text);
+            }
+            return null;
+        }
+    }
+
+    private void onAck(Peer peer, long connectionId, int next, long bitmap, boolean nack) throws IOException {
+        List<Outgoing> resend = new ArrayList<>();
+        synchronized (peer) {
+            if (connectionId != peer.connectionId) {
+                return;     // Acknowledges an earlier incarnation of this peer
+            }
+            long now = System.nanoTime();
+            peer.lastActivity = System.currentTimeMillis();
+            Outgoing sample = null;
+            Iterator<Outgoing> it = peer.inFlight.values().iterator();
+            while (it.hasNext()) {
+                Outgoing o = it.next();
+                int bit = o.seq - next - 1;
+                boolean acked = o.seq < next || (bit >= 0 && bit < 64 && (bitmap & (1L << bit)) != 0);
+                if (!acked) {
+                    continue;
+                }
+                it.remove();
+                // Karn's rule: resent datagrams give ambiguous samples
+                if (o.sends == 1) {
+                    sample = o;
+                }
+                if (peer.cwnd < peer.ssthresh) {
+                    peer.cwnd += 1;
+                } else {
+                    peer.cwnd += 1 / peer.cwnd;
+                }
+                peer.cwnd = Math.min(peer.cwnd, MAX_WINDOW);
+            }
+            if (sample != null) {
+                updateRtt(peer, (now - sample.sentAt) / 1e6);
+            }
+            if (nack && bitmap != 0) {
+                int highest = next + 64 - Long.numberOfLeadingZeros(bitmap);
+                long recent = (long) (Math.max(peer.srtt, 1) * 1e6);
+                for (Outgoing o : peer.inFlight.headMap(highest).values()) {
+                    if (now - o.sentAt >= recent) {
+                        resend.add(o);
+                    }
+                }
+                if (!resend.isEmpty() && resend.get(resend.size() - 1).seq >= peer.recoverySeq) {
+                    peer.ssthresh = Math.max(peer.cwnd / 2, MIN_WINDOW);
+                    peer.cwnd = peer.ssthresh;
+                    peer.recoverySeq = peer.nextSeq;
+                }
+                for (Outgoing o : resend) {
+                    o.sends++;
+                    o.sentAt = now;
+                }
+            }
+            peer.notifyAll();
+        }
+        for (Outgoing o : resend) {
+            transmit(peer, o.data);
+        }
+    }
+
+    private static void updateRtt(Peer peer, double rtt) {
+        if (peer.srtt < 0) {
+            peer.srtt = rtt;
+            peer.rttvar = rtt / 2;
+        } else {
+            peer.rttvar = 0.75 * peer.rttvar + 0.25 * Math.abs(peer.srtt - rtt);
+            peer.srtt = 0.875 * peer.srtt + 0.125 * rtt;
+        }
+        peer.rto = Math.min(MAX_RTO, Math.max(MIN_RTO, peer.srtt + 4 * peer.rttvar));
+    }
+
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        for (Peer peer : peers.values()) {
+            List<Outgoing> resend = new ArrayList<>();
+            byte[] parity = null;
+            boolean lostNow = false;
+            synchronized (peer) {
+                // The tail of a transfer gets its parity once the sender pauses
+                if (!peer.groupSeqs.isEmpty() && now - peer.groupTouched >= TimeUnit.MILLISECONDS.toNanos(TICK)) {
+                    parity = closeGroup(peer);
+                }
+                if (peer.inFlight.isEmpty()) {
+                    long idle = peer.bound ? IDLE_TIMEOUT : UNBOUND_IDLE_TIMEOUT;
+                    if (peer.closing || nowMillis - peer.lastActivity > idle) {
+                        peers.remove(key(peer.address, peer.port), peer);
+                        peer.removed = true;
+                    }
+                    continue;
+                }
+                long rto = (long) (peer.rto * 1e6);
+                for (Outgoing o : peer.inFlight.values()) {
+                    if (now - o.sentAt < rto) {
+                        continue;
+                    }
+                    if (o.sends > MAX_RETRIES) {
+                        lostNow = true;
+                        break;
+                    }
+                    resend.add(o);
+                }
+                if (lostNow) {
+                    peer.lost = true;
+                    peer.inFlight.clear();
+                    resend.clear();
+                    if (peer.closing) {
+                        lostNow = false;    // Nobody is waiting for it any more
+                    }
+                } else if (!resend.isEmpty()) {
+                    peer.ssthresh = Math.max(peer.inFlight.size() / 2.0, MIN_WINDOW);
+                    peer.cwnd = 1;
+                    peer.rto = Math.min(peer.rto * 2, MAX_RTO);
+                    peer.recoverySeq = peer.nextSeq;
+                    for (Outgoing o : resend) {
+                        o.sends++;
+                        o.sentAt = now;
+                    }
+                }
+                peer.notifyAll();
+            }
+            try {
+                if (parity != null) {
+                    transmit(peer, parity);
+                }
+                for (Outgoing o : resend) {
+                    transmit(peer, o.data);
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Logger.logDebug("UDP resend to " + key(peer.address, peer.port) + " failed: " + e.getMessage());
+                }
+            }
+            LossListener listener = lossListener;
+            if (lostNow && listener != null) {
+                listener.onPeerLost(peer.address, peer.port);
+            }
+        }
+    }
+
+    private Peer peer(InetAddress address, int port) {
+        return peers.computeIfAbsent(key(address, port), k -> new Peer(address, port, random.nextLong()));
+    }
+
+    private void transmit(Peer peer, byte[] data) throws IOException {
+        socket.send(new DatagramPacket(data, data.length, peer.address, peer.port));
+    }
+
+    private static String key(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    private static byte[] serialize(Message msg) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+            oos.writeObject(msg);
+        }
+        return baos.toByteArray();
+    }
+
+    private static Message deserialize(byte[] data, int off, int len) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, off, len))) {
+            return (Message) ois.readObject();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        timer.shutdownNow();
+        socket.close();
+        for (Peer peer : peers.values()) {
+            synchronized (peer) {
+                peer.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package csdev.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>Hashed timer wheel for coarse timeouts of many items
+ * <p>Scheduling and expiry are O(1) per item; deadlines are rounded up to whole ticks.
+ * The owner calls {@link #advance(long)} periodically, expired items are passed to
+ * the handler outside the wheel lock, so the handler may schedule them again.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class TimerWheel<T> {
+
+    public interface Handler<T> {
+        void onExpired(T item);
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long deadlineTick;
+
+        Entry(T item, long deadlineTick) {
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private final long tickMillis;
+    private final long startMillis;
+    private final List<List<Entry<T>>> buckets;
+    private final Handler<T> handler;
+    private long currentTick = 0;
+    private int size = 0;
+
+    public TimerWheel(long tickMillis, int wheelSize, Handler<T> handler) {
+        this.tickMillis = Math.max(1, tickMillis);
+        this.startMillis = System.currentTimeMillis();
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        this.handler = handler;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules the item to expire at the given time (ms since epoch)
+     */
+    public synchronized void schedule(T item, long deadlineMillis) {
+        long tick = Math.max(currentTick + 1, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+        buckets.get((int) (tick % buckets.size())).add(new Entry<>(item, tick));
+        size++;
+    }
+
+    /**
+     * Processes all ticks up to the given time
+     */
+    public void advance(long nowMillis) {
+        List<T> expired = new ArrayList<>();
+        synchronized (this) {
+            long target = (nowMillis - startMillis) / tickMillis;
+            // A late call never needs more than one turn of the wheel
+            if (target - currentTick > buckets.size()) {
+                currentTick = target - buckets.size();
+            }
+            while (currentTick < target) {
+                currentTick++;
+                Iterator<Entry<T>> it = buckets.get((int) (currentTick % buckets.size())).iterator();
+                while (it.hasNext()) {
+                    Entry<T> e = it.next();
+                    if (e.deadlineTick <= currentTick) {
+                        it.remove();
+                        size--;
+                        expired.add(e.item);
+                    }
+                }
+            }
+        }
+        for (T item : expired) {
+            handler.onExpired(item);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,461 @@
+package csdev.utils;
+
+import csdev.messages.Message;
+import csdev.messages.MessageFragment;
+import csdev.messages.MessageResult;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>Directory tree packed into one stream of archive fragments
+ * <p>The archive is a magic number followed by one entry per directory and regular file in
+ * walk order: a type byte, the path relative to the root with '/' separators, the modification
+ * time, and for files the size and content; a zero type byte ends it. The packer reads the
+ * tree while the fragments are sent, so a tree of many small files moves in a single stream
+ * without a round trip per file. The archive may be deflated; each fragment carries a CRC32C
+ * and the last one the SHA-256 of the uncompressed archive. Symbolic links and special files
+ * are not sent, extracted paths can't leave the target directory.
+ * @author cin-tie
+ * @version 1.0
+ */
+public class TreeArchive {
+
+    public static final int FRAGMENT_SIZE = 256 * 1024;     // Archive bytes per fragment
+
+    private static final int MAGIC = 0x52534152;    // "RSAR"
+    private static final byte END = 0;
+    private static final byte DIRECTORY = 'd';
+    private static final byte FILE = 'f';
+    private static final int BUFFER = 64 * 1024;
+
+    private TreeArchive() {
+    }
+
+    /**
+     * Sends the messages of a stream
+     */
+    public interface Sink {
+        void send(Message msg) throws IOException;
+    }
+
+    /**
+     * Receives the messages of a stream
+     */
+    public interface Source {
+        Message receive() throws IOException;
+    }
+
+    /**
+     * Counts of a packed or extracted tree
+     */
+    public static final class Stats {
+        public int files;
+        public int directories;
+        public int skipped;         // Unreadable or special entries, existing files that were kept
+        public long bytes;          // File content
+        public long wireBytes;      // Archive bytes in fragments, after compression
+        public String sha256;       // Hex SHA-256 of the uncompressed archive
+    }
+
+    /**
+     * Archive bytes cut into fragments
+     */
+    public static final class Output extends OutputStream {
+        private final String id;
+        private final String name;
+        private final Sink sink;
+        private byte[] buf = new byte[FRAGMENT_SIZE];
+        private int count = 0;
+        private int index = 0;
+        private long wireBytes = 0;
+
+        public Output(String id, String name, Sink sink) {
+            this.id = id;
+            this.name = name;
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                emit(MessageFragment.FRAGMENT_MIDDLE, null);
+            }
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) {
+                    emit(MessageFragment.FRAGMENT_MIDDLE, null);
+                }
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Sends the remaining bytes in the last fragment
+         */
+        void finish(String sha256) throws IOException {
+            emit(MessageFragment.FRAGMENT_END, sha256);
+        }
+
+        /**
+         * Tells the receiver to discard the stream
+         */
+        public void abort() throws IOException {
+            count = 0;
+            emit(MessageFragment.FRAGMENT_ABORT, null);
+        }
+
+        private void emit(byte type, String sha256) throws IOException {
+            // Each fragment owns its array, a sent array is never changed
+            byte[] data = count == buf.length ? buf : Arrays.copyOf(buf, count);
+            MessageFragment f = new MessageFragment(type, 0, index++, id, name, data, count);
+            f.streamType = MessageFragment.STREAM_ARCHIVE;
+            f.sha256 = sha256;
+            sink.send(f);
+            wireBytes += count;
+            if (data == buf) {
+                buf = new byte[FRAGMENT_SIZE];
+            }
+            count = 0;
+        }
+    }
+
+    /**
+     * Archive bytes read from fragments
+     */
+    public static final class Input extends InputStream {
+        private final Source source;
+        private byte[] data = new byte[0];
+        private int pos = 0;
+        private int limit = 0;
+        private int index = 0;
+        private boolean ended = false;
+        private String sha256 = null;
+        private long wireBytes = 0;
+
+        public Input(Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (pos == limit) {
+                if (ended) {
+                    return -1;
+                }
+                next();
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private void next() throws IOException {
+            Message msg;
+            try {
+                msg = source.receive();
+            } catch (IOException e) {
+                ended = true;
+                throw e;
+            }
+            if (!(msg instanceof MessageFragment)) {
+                ended = true;
+                throw new IOException(msg instanceof MessageResult && ((MessageResult) msg).Error()
+                        ? ((MessageResult) msg).getErrorMessage() : "Archive stream ended unexpectedly");
+            }
+            MessageFragment f = (MessageFragment) msg;
+            if (f.fragmentType == MessageFragment.FRAGMENT_ABORT) {
+                ended = true;
+                throw new IOException("Archive transfer aborted by sender");
+            }
+            if (f.fragmentType == MessageFragment.FRAGMENT_END) {
+                ended = true;
+                sha256 = f.sha256;
+            }
+            if (f.streamType != MessageFragment.STREAM_ARCHIVE || f.fragmentIndex != index) {
+                throw new IOException("Archive fragment " + f.fragmentIndex + " out of order, expected " + index);
+            }
+            if (!f.isIntact()) {
+                throw new IOException("CRC32C mismatch in archive fragment " + f.fragmentIndex);
+            }
+            index++;
+            data = f.data != null ? f.data : new byte[0];
+            pos = 0;
+            limit = f.data != null ? f.dataSize : 0;
+            wireBytes += limit;
+        }
+
+        /**
+         * Reads the fragments up to the end of the stream without using them, so the next
+         * message of the connection can be read after a failed extraction
+         */
+        public void discard() {
+            while (!ended) {
+                try {
+                    next();
+                } catch (IOException ignored) {
+                    // Keep reading to the end fragment
+                }
+            }
+            pos = limit;
+        }
+    }
+
+    /**
+     * Packs a directory tree into fragments, ended by a fragment with the SHA-256
+     * @return counts of the sent entries
+     */
+    public static Stats pack(Path root, Output frames, boolean compress) throws IOException {
+        Stats stats = new Stats();
+        MessageDigest sha256 = Checksums.sha256();
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        try {
+            OutputStream packed = compress ? new DeflaterOutputStream(frames, deflater, BUFFER) : frames;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(packed, sha256), BUFFER));
+            out.writeInt(MAGIC);
+            Path base = root.toRealPath();
+            Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(base)) {
+                        out.writeByte(DIRECTORY);
+                        out.writeUTF(relative(base, dir));
+                        out.writeLong(attrs.lastModifiedTime().toMillis());
+                        stats.directories++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!attrs.isRegularFile()) {
+                        stats.skipped++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                    InputStream in;
+                    try {
+                        in = Files.newInputStream(file);
+                    } catch (IOException e) {
+                        stats.skipped++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try (InputStream is = in) {
+                        out.writeByte(FILE);
+                        out.writeUTF(relative(base, file));
+                        out.writeLong(attrs.lastModifiedTime().toMillis());
+                        out.writeLong(attrs.size());
+                        copy(is, out, attrs.size(), file);
+                    }
+                    stats.files++;
+                    stats.bytes += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    stats.skipped++;
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            out.writeByte(END);
+            out.flush();
+            if (deflater != null) {
+                ((DeflaterOutputStream) packed).finish();
+            }
+            stats.sha256 = Checksums.toHex(sha256.digest());
+            frames.finish(stats.sha256);
+            stats.wireBytes = frames.wireBytes;
+            return stats;
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Extracts an archive into a directory, created if missing. Files are written as they
+     * arrive; the archive is checked against the sender's SHA-256 at its end
+     * @param overwrite replace existing files, else they are kept and their entries skipped
+     * @return counts of the extracted entries
+     */
+    public static Stats extract(Input frames, Path target, boolean overwrite, boolean compress) throws IOException {
+        Stats stats = new Stats();
+        MessageDigest sha256 = Checksums.sha256();
+        Inflater inflater = compress ? new Inflater() : null;
+        try {
+            InputStream packed = compress ? new InflaterInputStream(frames, inflater, BUFFER) : frames;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new DigestInputStream(packed, sha256), BUFFER));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a directory archive");
+            }
+            Path base = Files.createDirectories(target.toAbsolutePath().normalize()).toRealPath();
+            List<Path> dirs = new ArrayList<>();
+            List<Long> dirTimes = new ArrayList<>();
+            Path checked = base;
+            byte type;
+            while ((type = in.readByte()) != END) {
+                Path dest = resolve(base, in.readUTF());
+                long modified = in.readLong();
+                if (type == DIRECTORY) {
+                    createDirectories(base, dest);
+                    dirs.add(dest);
+                    dirTimes.add(modified);
+                    stats.directories++;
+                    continue;
+                }
+                if (type != FILE) {
+                    throw new IOException("Corrupted archive entry type: " + type);
+                }
+                long size = in.readLong();
+                Path parent = dest.getParent();
+                if (!parent.equals(checked)) {
+                    createDirectories(base, parent);
+                    checked = parent;
+                }
+                if (!overwrite && Files.exists(dest, LinkOption.NOFOLLOW_LINKS)) {
+                    skip(in, size);
+                    stats.skipped++;
+                    continue;
+                }
+                try (OutputStream os = Files.newOutputStream(dest, LinkOption.NOFOLLOW_LINKS, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    copy(in, os, size, dest);
+                }
+                setModified(dest, modified);
+                stats.files++;
+                stats.bytes += size;
+            }
+            // Read to the end of the stream, so the digest covers all archive bytes
+            byte[] rest = new byte[BUFFER];
+            while (in.read(rest) >= 0) {
+            }
+            frames.discard();
+            stats.sha256 = Checksums.toHex(sha256.digest());
+            if (frames.sha256 == null || !frames.sha256.equals(stats.sha256)) {
+                throw new IOException("Checksum mismatch: expected " + frames.sha256 + ", received " + stats.sha256);
+            }
+            // Children are extracted after their directory, set its time last
+            for (int i = dirs.size() - 1; i >= 0; i--) {
+                setModified(dirs.get(i), dirTimes.get(i));
+            }
+            stats.wireBytes = frames.wireBytes;
+            return stats;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static String relative(Path base, Path path) {
+        StringBuilder sb = new StringBuilder();
+        for (Path name : base.relativize(path)) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Target path of an entry, only plain names are accepted
+     */
+    private static Path resolve(Path base, String entry) throws IOException {
+        Path path = base;
+        for (String name : entry.split("/", -1)) {
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.indexOf('\0') >= 0 || name.contains(File.separator)) {
+                throw new IOException("Invalid archive entry: " + entry);
+            }
+            path = path.resolve(name);
+        }
+        return path;
+    }
+
+    /**
+     * Creates the directories of an entry one level at a time. Each existing component is
+     * checked without following links before anything is created below it, so a link in the
+     * target directory can't lead the entry out of it
+     */
+    private static void createDirectories(Path base, Path dir) throws IOException {
+        Path path = base;
+        for (Path name : base.relativize(dir)) {
+            path = path.resolve(name);
+            try {
+                Files.createDirectory(path);
+                continue;
+            } catch (FileAlreadyExistsException e) {
+                // Existing component, checked below
+            }
+            if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException("Archive entry conflicts with an existing file or link: " + base.relativize(path));
+            }
+        }
+        if (!dir.toRealPath().startsWith(base)) {
+            throw new IOException("Archive entry outside target directory: " + base.relativize(dir));
+        }
+    }
+
+    /**
+     * Sets the modification time of the entry itself, a link put in its place is not followed
+     */
+    private static void setModified(Path path, long modified) throws IOException {
+        Files.getFileAttributeView(path, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                .setTimes(FileTime.fromMillis(modified), null, null);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size, Path file) throws IOException {
+        byte[] buf = new byte[(int) Math.min(BUFFER, Math.max(1, size))];
+        long left = size;
+        while (left > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+            if (n < 0) {
+                throw new IOException("File shrunk during transfer: " + file);
+            }
+            out.write(buf, 0, n);
+            left -= n;
+        }
+    }
+
+    private static void skip(DataInputStream in, long size) throws IOException {
+        byte[] buf = new byte[(int) Math.min(BUFFER, Math.max(1, size))];
+        long left = size;
+        while (left > 0) {
+            int n = (int) Math.min(buf.length, left);
+            in.readFully(buf, 0, n);
+            left -= n;
+        }
+    }
+}